@@ -0,0 +1,92 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.ftpserver.ftplet.FtpException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import services.FtpEngine;
+import services.TransferQueue;
+
+/*
+ * End to end put and get through the FtpEngine the UI and the command line
+ * use: queue, journal, pool and segmented downloads included
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ClientBenchmark {
+
+	private static final String SERVED = "served.bin";
+
+	@Param({"1048576", "67108864"})
+	public long fileSize;
+
+	@Param({"1", "4"})
+	public int parallelism;
+
+	private EmbeddedFtpServer server;
+	private FtpEngine engine;
+	private Path home;
+	private File local;
+	private File downloads;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, FtpException {
+		// the queue and journal files go below user.home, keep them out of the real one
+		home = Files.createTempDirectory("bench-home");
+		System.setProperty("user.home", home.toString());
+		server = new EmbeddedFtpServer();
+		local = home.resolve("upload.bin").toFile();
+		downloads = Files.createDirectory(home.resolve("downloads")).toFile();
+		TransferBenchmark.writeRandom(local.toPath(), fileSize);
+		TransferBenchmark.writeRandom(server.getRoot().resolve(SERVED), fileSize);
+		engine = new FtpEngine(null, parallelism);
+		if(engine.connect(EmbeddedFtpServer.HOST, server.getPort()).join() != 0
+				|| engine.login(EmbeddedFtpServer.USER, EmbeddedFtpServer.PASSWORD).join() != 1) {
+			throw new IOException("Cannot log in to the embedded server");
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		engine.logout().join();
+		engine.shutdown();
+		server.close();
+	}
+
+	@Benchmark
+	public TransferQueue.Batch put() {
+		return check(engine.upload(new File[]{local}, "/").join());
+	}
+
+	@Benchmark
+	public TransferQueue.Batch get() {
+		return check(engine.download(List.of("/" + SERVED), downloads, TransferQueue.Priority.NORMAL).join());
+	}
+
+	private static TransferQueue.Batch check(TransferQueue.Batch batch) {
+		if(!batch.getFailed().isEmpty()) throw new IllegalStateException("Transfer failed");
+		return batch;
+	}
+}
@@ -0,0 +1,148 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+
+import org.apache.ftpserver.DataConnectionConfigurationFactory;
+import org.apache.ftpserver.FtpServer;
+import org.apache.ftpserver.FtpServerFactory;
+import org.apache.ftpserver.filesystem.nativefs.NativeFileSystemFactory;
+import org.apache.ftpserver.ftplet.FtpException;
+import org.apache.ftpserver.ftplet.UserManager;
+import org.apache.ftpserver.listener.Listener;
+import org.apache.ftpserver.listener.ListenerFactory;
+import org.apache.ftpserver.ssl.SslConfiguration;
+import org.apache.ftpserver.ssl.SslConfigurationFactory;
+import org.apache.ftpserver.usermanager.PropertiesUserManagerFactory;
+import org.apache.ftpserver.usermanager.impl.BaseUser;
+import org.apache.ftpserver.usermanager.impl.WritePermission;
+
+import services.ChannelFTPClient;
+
+/*
+ * Apache MINA FtpServer on a free localhost port, serving a temporary
+ * directory to one user with write access. Given a key store it also speaks
+ * FTPS: AUTH TLS on the default port and implicit TLS on a second one, with
+ * one SSL configuration for control and data connections so that the data
+ * connections can resume the session of the control connection.
+ */
+public class EmbeddedFtpServer implements AutoCloseable {
+
+	public static final String USER = "bench";
+	public static final String PASSWORD = "bench";
+	public static final String HOST = "127.0.0.1";
+
+	private final Path root;
+	private final FtpServer server;
+	private final Listener listener;
+	// null without a key store
+	private final Listener implicitListener;
+
+	public EmbeddedFtpServer() throws IOException, FtpException {
+		this(null, null);
+	}
+
+	/*
+	 * @param keyStore: PKCS12 key store holding the server certificate, null for plain FTP only
+	 * @param password: of the key store and of the key
+	 */
+	public EmbeddedFtpServer(File keyStore, String password) throws IOException, FtpException {
+		root = Files.createTempDirectory("ftp-bench");
+		FtpServerFactory factory = new FtpServerFactory();
+		ListenerFactory listenerFactory = new ListenerFactory();
+		listenerFactory.setServerAddress(HOST);
+		// 0 binds any free port, read back from the listener once started
+		listenerFactory.setPort(0);
+		if(keyStore != null) {
+			SslConfigurationFactory ssl = new SslConfigurationFactory();
+			ssl.setKeystoreFile(keyStore);
+			ssl.setKeystoreType("PKCS12");
+			ssl.setKeystorePassword(password);
+			ssl.setKeyPassword(password);
+			SslConfiguration shared = ssl.createSslConfiguration();
+			listenerFactory.setSslConfiguration(shared);
+			DataConnectionConfigurationFactory data = new DataConnectionConfigurationFactory();
+			data.setSslConfiguration(shared);
+			listenerFactory.setDataConnectionConfiguration(data.createDataConnectionConfiguration());
+		}
+		listener = listenerFactory.createListener();
+		factory.addListener("default", listener);
+		if(keyStore != null) {
+			listenerFactory.setImplicitSsl(true);
+			implicitListener = listenerFactory.createListener();
+			factory.addListener("implicit", implicitListener);
+		}else {
+			implicitListener = null;
+		}
+
+		UserManager users = new PropertiesUserManagerFactory().createUserManager();
+		BaseUser user = new BaseUser();
+		user.setName(USER);
+		user.setPassword(PASSWORD);
+		user.setHomeDirectory(root.toString());
+		user.setAuthorities(List.of(new WritePermission()));
+		users.save(user);
+		factory.setUserManager(users);
+
+		NativeFileSystemFactory fs = new NativeFileSystemFactory();
+		fs.setCreateHome(true);
+		factory.setFileSystem(fs);
+
+		server = factory.createServer();
+		server.start();
+	}
+
+	public int getPort() {
+		return listener.getPort();
+	}
+
+	/*
+	 * @return int: the port speaking implicit TLS, -1 without a key store
+	 */
+	public int getImplicitPort() {
+		return implicitListener == null ? -1 : implicitListener.getPort();
+	}
+
+	/*
+	 * @return Path: local directory seen by the user as "/"
+	 */
+	public Path getRoot() {
+		return root;
+	}
+
+	/*
+	 * @return ChannelFTPClient: a new logged-in session in binary mode
+	 */
+	public ChannelFTPClient connect() throws IOException {
+		ChannelFTPClient c = new ChannelFTPClient();
+		c.setDefaultPort(getPort());
+		c.connect(HOST);
+		if(!c.login(USER, PASSWORD)) throw new IOException("Login refused: " + c.getReplyString());
+		c.setFileType(ChannelFTPClient.BINARY_FILE_TYPE);
+		return c;
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.stop();
+		Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+			@Override
+			public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
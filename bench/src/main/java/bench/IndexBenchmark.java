@@ -0,0 +1,88 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import services.RemoteIndex;
+import services.RemoteListing;
+
+/*
+ * Searches over a RemoteIndex of a synthetic tree, without a server: a
+ * prefix served by the name order, a substring and a size filter that read
+ * every entry. The index is written once per trial, as the crawler would.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class IndexBenchmark {
+
+	private static final int FILES_PER_DIR = 1000;
+	private static final int LIMIT = 500;
+
+	@Param({"100000", "1000000"})
+	public int entries;
+
+	private Path dir;
+	private RemoteIndex index;
+	private RemoteIndex.Query prefix;
+	private RemoteIndex.Query substring;
+	private RemoteIndex.Query size;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		dir = Files.createTempDirectory("index-bench");
+		RemoteIndex.Builder builder = new RemoteIndex.Builder();
+		long now = System.currentTimeMillis();
+		for(int d = 0; d < entries / FILES_PER_DIR; d++) {
+			RemoteListing l = new RemoteListing();
+			for(int i = 0; i < FILES_PER_DIR; i++) l.add("report-" + d + "-" + i + (i % 10 == 0 ? ".csv" : ".log"), i * 1024L, now - i, false);
+			builder.add("/data/part" + d, -1, l);
+		}
+		index = builder.write(dir.resolve("bench.idx"), now);
+		prefix = RemoteIndex.Query.parse("report-42*");
+		substring = RemoteIndex.Query.parse("-990.csv");
+		size = RemoteIndex.Query.parse(">1000K");
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		// the mapping keeps the file alive until it is collected on some platforms
+		Files.deleteIfExists(dir.resolve("bench.idx"));
+		Files.deleteIfExists(dir);
+	}
+
+	@Benchmark
+	public List<RemoteIndex.Hit> prefix() {
+		return index.search(prefix, LIMIT);
+	}
+
+	@Benchmark
+	public List<RemoteIndex.Hit> substring() {
+		return index.search(substring, LIMIT);
+	}
+
+	@Benchmark
+	public List<RemoteIndex.Hit> sizeFilter() {
+		return index.search(size, LIMIT);
+	}
+}
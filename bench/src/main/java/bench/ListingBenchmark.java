@@ -0,0 +1,82 @@
+package bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.net.ftp.FTPClientConfig;
+import org.apache.commons.net.ftp.FTPFileEntryParser;
+import org.apache.commons.net.ftp.parser.DefaultFTPFileEntryParserFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import services.ChannelFTPClient;
+import services.FileListModel;
+import services.RemoteListing;
+
+/*
+ * CPU cost of a directory listing once its bytes have arrived: parsing UNIX
+ * LIST lines into a RemoteListing, and inflating it into the list model the
+ * way the UI reads it. No server is involved, see RemoteListingBenchmark.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ListingBenchmark {
+
+	@Param({"1000", "100000", "1000000"})
+	public int entries;
+
+	private String text;
+	private FTPFileEntryParser parser;
+	private RemoteListing parsed;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException {
+		text = unixListing(entries);
+		parser = new DefaultFTPFileEntryParserFactory().createFileEntryParser(FTPClientConfig.SYST_UNIX);
+		parsed = parse();
+	}
+
+	@Benchmark
+	public RemoteListing parse() throws IOException {
+		RemoteListing listing = new RemoteListing();
+		ChannelFTPClient.parseListing(new BufferedReader(new StringReader(text)), parser, listing::add);
+		return listing;
+	}
+
+	@Benchmark
+	public void inflate(Blackhole bh) {
+		FileListModel model = new FileListModel("/", parsed);
+		model.publish();
+		for(int i = 0; i < model.getSize(); i++) bh.consume(model.getElementAt(i));
+	}
+
+	/*
+	 * @return String: LIST output of a directory with a file every 10 entries being a subdirectory
+	 */
+	static String unixListing(int entries) {
+		StringBuilder sb = new StringBuilder(entries * 64);
+		for(int i = 0; i < entries; i++) {
+			if(i % 10 == 0) sb.append("drwxr-xr-x   2 bench bench      4096 Jan 10  2023 dir");
+			else sb.append("-rw-r--r--   1 bench bench ").append(String.format("%9d", i * 37L)).append(" Mar  3 14:07 file");
+			sb.append(i).append("\r\n");
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,70 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.ftpserver.ftplet.FtpException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import services.ChannelFTPClient;
+import services.RemoteListing;
+
+/*
+ * Full LIST of a directory on the embedded server, streamed into a
+ * RemoteListing as the browsing session does. A million files on disk is
+ * left to ListingBenchmark, which parses the same lines without a server.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RemoteListingBenchmark {
+
+	private static final String DIR = "/listing";
+
+	@Param({"1000", "100000"})
+	public int entries;
+
+	private EmbeddedFtpServer server;
+	private ChannelFTPClient session;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, FtpException {
+		server = new EmbeddedFtpServer();
+		Path dir = Files.createDirectory(server.getRoot().resolve(DIR.substring(1)));
+		for(int i = 0; i < entries; i++) Files.createFile(dir.resolve("file" + i));
+		session = server.connect();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		if(session.isConnected()) {
+			session.logout();
+			session.disconnect();
+		}
+		server.close();
+	}
+
+	@Benchmark
+	public RemoteListing streamList() throws IOException {
+		RemoteListing listing = new RemoteListing();
+		if(!session.streamList(DIR, listing::add)) throw new IOException("LIST failed: " + session.getReplyString());
+		return listing;
+	}
+}
@@ -0,0 +1,107 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.ftpserver.ftplet.FtpException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import services.FtpEngine;
+import services.TransferQueue;
+
+/*
+ * A directory of many tiny files put and got through the FtpEngine, where
+ * the cost is round trips per file rather than bytes. Compare with the 1 MB
+ * case of ClientBenchmark, which moves about as many bytes in one file.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SmallFileBenchmark {
+
+	private static final String DIR = "small";
+
+	@Param({"500"})
+	public int files;
+
+	@Param({"2048"})
+	public int fileSize;
+
+	@Param({"1", "4"})
+	public int parallelism;
+
+	private EmbeddedFtpServer server;
+	private FtpEngine engine;
+	private Path home;
+	private File local;
+	private File downloads;
+	private List<String> served;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, FtpException {
+		// the queue and journal files go below user.home, keep them out of the real one
+		home = Files.createTempDirectory("bench-home");
+		System.setProperty("user.home", home.toString());
+		server = new EmbeddedFtpServer();
+		local = Files.createDirectory(home.resolve(DIR)).toFile();
+		downloads = Files.createDirectory(home.resolve("downloads")).toFile();
+		Path remote = Files.createDirectory(server.getRoot().resolve("served"));
+		byte[] data = new byte[fileSize];
+		new Random(fileSize).nextBytes(data);
+		served = new ArrayList<>();
+		for(int i = 0; i < files; i++) {
+			String name = String.format("f%05d.bin", i);
+			Files.write(local.toPath().resolve(name), data);
+			Files.write(remote.resolve(name), data);
+			served.add("/served/" + name);
+		}
+		engine = new FtpEngine(null, parallelism);
+		if(engine.connect(EmbeddedFtpServer.HOST, server.getPort()).join() != 0
+				|| engine.login(EmbeddedFtpServer.USER, EmbeddedFtpServer.PASSWORD).join() != 1) {
+			throw new IOException("Cannot log in to the embedded server");
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		engine.logout().join();
+		engine.shutdown();
+		server.close();
+	}
+
+	@Benchmark
+	public TransferQueue.Batch put() {
+		return check(engine.upload(new File[]{local}, "/").join());
+	}
+
+	@Benchmark
+	public TransferQueue.Batch get() {
+		return check(engine.download(served, downloads, TransferQueue.Priority.NORMAL).join());
+	}
+
+	private static TransferQueue.Batch check(TransferQueue.Batch batch) {
+		if(!batch.getFailed().isEmpty()) throw new IllegalStateException("Transfer failed");
+		return batch;
+	}
+}
@@ -0,0 +1,126 @@
+package bench;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.ftpserver.ftplet.FtpException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import services.ChannelFTPClient;
+import services.ConnectionPool;
+import services.SegmentedDownloader;
+import services.TransferEngine;
+import services.TransferJournal;
+
+/*
+ * Upload and download time of one file through the TransferEngine, on a
+ * single session and split in ranges over pooled sessions, for several file
+ * and buffer sizes. Throughput is fileSize divided by the reported time.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TransferBenchmark {
+
+	private static final String UPLOADED = "upload.bin";
+	private static final String SERVED = "download.bin";
+	private static final int SEGMENTS = 4;
+
+	@Param({"1048576", "16777216", "134217728"})
+	public long fileSize;
+
+	@Param({"16384", "262144", "1048576"})
+	public int bufferSize;
+
+	private EmbeddedFtpServer server;
+	private ChannelFTPClient session;
+	private ConnectionPool pool;
+	private TransferEngine engine;
+	private SegmentedDownloader downloader;
+	private Path local;
+	private Path target;
+	private Path journalFile;
+	private FileChannel source;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, FtpException {
+		server = new EmbeddedFtpServer();
+		local = Files.createTempFile("bench-up", ".bin");
+		target = Files.createTempFile("bench-down", ".bin");
+		journalFile = Files.createTempFile("bench", ".journal");
+		writeRandom(local, fileSize);
+		writeRandom(server.getRoot().resolve(SERVED), fileSize);
+		source = FileChannel.open(local, StandardOpenOption.READ);
+		engine = new TransferEngine(bufferSize, true);
+		session = server.connect();
+		pool = new ConnectionPool(EmbeddedFtpServer.HOST, EmbeddedFtpServer.USER, EmbeddedFtpServer.PASSWORD, SEGMENTS, 60);
+		pool.setSessionInitializer(c -> c.setDefaultPort(server.getPort()));
+		downloader = new SegmentedDownloader(pool, engine, new TransferJournal(journalFile), null, null, SEGMENTS, 1);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		downloader.shutdown();
+		pool.close();
+		if(session.isConnected()) {
+			session.logout();
+			session.disconnect();
+		}
+		source.close();
+		server.close();
+		Files.deleteIfExists(local);
+		Files.deleteIfExists(target);
+		Files.deleteIfExists(journalFile);
+	}
+
+	@Benchmark
+	public boolean upload() throws IOException {
+		return engine.upload(session, UPLOADED, source, 0, false, null);
+	}
+
+	@Benchmark
+	public boolean download() throws IOException {
+		try(FileChannel out = FileChannel.open(target, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			return engine.download(session, SERVED, 0, -1, out, null);
+		}
+	}
+
+	@Benchmark
+	public boolean segmentedDownload() throws IOException {
+		// a fresh file each time, else the journal would resume a finished download
+		Files.deleteIfExists(target);
+		return downloader.download("/" + SERVED, target.toFile());
+	}
+
+	static void writeRandom(Path file, long size) throws IOException {
+		byte[] chunk = new byte[1 << 20];
+		new Random(size).nextBytes(chunk);
+		try(RandomAccessFile raf = new RandomAccessFile(file.toFile(), "rw")) {
+			for(long written = 0; written < size; written += chunk.length) {
+				raf.write(chunk, 0, (int) Math.min(chunk.length, size - written));
+			}
+		}
+	}
+}
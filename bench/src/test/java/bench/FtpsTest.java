@@ -0,0 +1,187 @@
+package bench;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import services.ChannelFTPClient;
+import services.ConnectionProfile;
+
+/*
+ * FTPS of ChannelFTPClient against the embedded server: explicit and
+ * implicit handshakes, a protected STOR and RETR whose data connections
+ * resume the TLS session of the control connection, and a certificate that
+ * does not match the pinned fingerprint.
+ */
+public class FtpsTest {
+
+	private static final String PASSWORD = "secret";
+
+	private static Path keys;
+	private static EmbeddedFtpServer server;
+	private static String fingerprint;
+
+	private final List<ProbeClient> clients = new ArrayList<>();
+
+	/*
+	 * Keeps the TLS sessions of its connections, which ChannelFTPClient does not expose
+	 */
+	private static class ProbeClient extends ChannelFTPClient {
+		final List<SSLSession> dataSessions = new ArrayList<>();
+
+		Socket controlSocket() {
+			return _socket_;
+		}
+
+		SSLSession controlSession() {
+			return _socket_ instanceof SSLSocket ? ((SSLSocket) _socket_).getSession() : null;
+		}
+
+		@Override
+		protected Socket _openDataConnection_(String command, String arg) throws IOException {
+			Socket s = super._openDataConnection_(command, arg);
+			if(s instanceof SSLSocket) dataSessions.add(((SSLSocket) s).getSession());
+			return s;
+		}
+	}
+
+	@BeforeAll
+	public static void startServer() throws Exception {
+		keys = Files.createTempDirectory("ftps-keys");
+		File keyStore = keys.resolve("server.p12").toFile();
+		Process keytool = new ProcessBuilder(Path.of(System.getProperty("java.home"), "bin", "keytool").toString(),
+				"-genkeypair", "-alias", "server", "-keyalg", "RSA", "-keysize", "2048", "-validity", "2",
+				"-dname", "CN=" + EmbeddedFtpServer.HOST, "-storetype", "PKCS12",
+				"-keystore", keyStore.toString(), "-storepass", PASSWORD, "-keypass", PASSWORD)
+				.redirectErrorStream(true).start();
+		String output = new String(keytool.getInputStream().readAllBytes());
+		if(keytool.waitFor() != 0) throw new IOException("keytool failed: " + output);
+		KeyStore ks = KeyStore.getInstance("PKCS12");
+		try(InputStream in = Files.newInputStream(keyStore.toPath())) {
+			ks.load(in, PASSWORD.toCharArray());
+		}
+		fingerprint = ChannelFTPClient.fingerprint((X509Certificate) ks.getCertificate("server"));
+		server = new EmbeddedFtpServer(keyStore, PASSWORD);
+	}
+
+	@AfterAll
+	public static void stopServer() throws IOException {
+		if(server != null) server.close();
+		if(keys != null) {
+			Files.deleteIfExists(keys.resolve("server.p12"));
+			Files.deleteIfExists(keys);
+		}
+	}
+
+	@AfterEach
+	public void disconnect() throws IOException {
+		for(ProbeClient c : clients) {
+			if(c.isConnected()) c.disconnect();
+		}
+		clients.clear();
+	}
+
+	@Test
+	public void explicitHandshake() throws IOException {
+		ProbeClient c = connect(ConnectionProfile.Security.EXPLICIT, server.getPort(), fingerprint);
+		assertTrue(c.login(EmbeddedFtpServer.USER, EmbeddedFtpServer.PASSWORD));
+		assertInstanceOf(SSLSocket.class, c.controlSocket());
+		assertTrue(c.controlSession().isValid());
+	}
+
+	@Test
+	public void implicitHandshake() throws IOException {
+		ProbeClient c = connect(ConnectionProfile.Security.IMPLICIT, server.getImplicitPort(), fingerprint);
+		assertTrue(c.login(EmbeddedFtpServer.USER, EmbeddedFtpServer.PASSWORD));
+		assertInstanceOf(SSLSocket.class, c.controlSocket());
+	}
+
+	@Test
+	public void explicitRoundTripResumesSession() throws IOException {
+		roundTrip(ConnectionProfile.Security.EXPLICIT, server.getPort(), "explicit.bin");
+	}
+
+	@Test
+	public void implicitRoundTripResumesSession() throws IOException {
+		roundTrip(ConnectionProfile.Security.IMPLICIT, server.getImplicitPort(), "implicit.bin");
+	}
+
+	@Test
+	public void rejectsOtherFingerprint() {
+		String other = fingerprint.replace(fingerprint.charAt(0), fingerprint.charAt(0) == 'A' ? 'B' : 'A');
+		SSLException e = assertThrows(SSLException.class, () -> connect(ConnectionProfile.Security.EXPLICIT, server.getPort(), other));
+		// the refusal names the actual fingerprint so that it can be pinned
+		assertTrue(messages(e).contains(fingerprint), messages(e));
+		assertThrows(SSLException.class, () -> connect(ConnectionProfile.Security.IMPLICIT, server.getImplicitPort(), other));
+	}
+
+	@Test
+	public void rejectsUnpinnedSelfSignedCertificate() {
+		assertThrows(SSLException.class, () -> connect(ConnectionProfile.Security.EXPLICIT, server.getPort(), ""));
+	}
+
+	private void roundTrip(ConnectionProfile.Security security, int port, String name) throws IOException {
+		ProbeClient c = connect(security, port, fingerprint);
+		assertTrue(c.login(EmbeddedFtpServer.USER, EmbeddedFtpServer.PASSWORD));
+		c.setFileType(ChannelFTPClient.BINARY_FILE_TYPE);
+		byte[] data = new byte[300 * 1024];
+		new Random(port).nextBytes(data);
+
+		assertTrue(c.storeFile("/" + name, new ByteArrayInputStream(data)), c.getReplyString());
+		assertArrayEquals(data, Files.readAllBytes(server.getRoot().resolve(name)));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		assertTrue(c.retrieveFile("/" + name, out), c.getReplyString());
+		assertArrayEquals(data, out.toByteArray());
+
+		// both data connections were protected and resumed the control session instead of a full handshake
+		assertEquals(2, c.dataSessions.size());
+		byte[] control = c.controlSession().getId();
+		assertFalse(control.length == 0);
+		for(SSLSession s : c.dataSessions) assertArrayEquals(control, s.getId());
+	}
+
+	private ProbeClient connect(ConnectionProfile.Security security, int port, String pinned) throws IOException {
+		ConnectionProfile p = new ConnectionProfile(EmbeddedFtpServer.HOST);
+		p.port = port;
+		p.security = security;
+		p.tlsFingerprint = pinned;
+		ProbeClient c = new ProbeClient();
+		clients.add(c);
+		c.setProfile(p);
+		c.setDefaultPort(port);
+		c.connect(EmbeddedFtpServer.HOST, port);
+		return c;
+	}
+
+	private static String messages(Throwable e) {
+		StringBuilder sb = new StringBuilder();
+		for(Throwable t = e; t != null; t = t.getCause()) sb.append(t.getMessage()).append('\n');
+		return sb.toString();
+	}
+}
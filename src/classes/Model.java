@@ -6,5 +6,100 @@ public class Model {
 	public static final String FTP_SERVER_ADDR = "127.0.0.1";
 	public static final int FTP_CONTROL_PORT = 21;
 	public static final int FTP_DATA_PORT = 20;
+	public static final int FTPS_IMPLICIT_PORT = 990;
+	
+	// LOCAL DATA, relative to user.home
+	public static final String APP_DIR = ".tfp-client";
+	public static final String JOURNAL_FILE = "transfers.journal";
+	public static final String QUEUE_FILE_PREFIX = "queue-";
+	public static final String PROFILES_FILE = "profiles.properties";
+	public static final String INDEX_DIR = "index";
+	public static final String CACHE_DIR = "cache";
+	
+	// CONNECTION POOL
+	public static final int POOL_SIZE = 4;
+	public static final long POOL_KEEP_ALIVE_SECONDS = 60;
+	
+	// CONNECTION PROFILE DEFAULTS, overridden per server in PROFILES_FILE
+	public static final boolean PROFILE_PASSIVE = true;
+	public static final int PROFILE_SOCKET_BUFFER_SIZE = 0;
+	public static final boolean PROFILE_TCP_NO_DELAY = true;
+	public static final boolean PROFILE_COMPRESSION = false;
+	public static final int PROFILE_COMPRESSION_LEVEL = 6;
+	public static final long PROFILE_CONTROL_KEEP_ALIVE_SECONDS = 120;
+	public static final int PROFILE_CONTROL_KEEP_ALIVE_REPLY_MS = 1000;
+	public static final boolean PROFILE_AUTO_TUNE = false;
+	public static final boolean PROFILE_VERIFY = false;
+	public static final int PROFILE_TIMEOUT_SECONDS = 60;
+	public static final boolean PROFILE_FXP = true;
+	public static final long TUNE_PROBE_BYTES = 8L * 1024 * 1024;
+	
+	// RECONNECT, backoff between attempts after a dropped connection
+	public static final int RECONNECT_MAX_ATTEMPTS = 8;
+	public static final long RECONNECT_BASE_DELAY_MS = 1000;
+	public static final long RECONNECT_MAX_DELAY_MS = 60000;
+	
+	// LISTING CACHE
+	public static final int LISTING_CACHE_SIZE = 256;
+	public static final long LISTING_CACHE_TTL_MS = 30000;
+	
+	// LISTING PREFETCH
+	public static final boolean PREFETCH_ENABLED = true;
+	public static final int PREFETCH_DEPTH = 1;
+	public static final int PREFETCH_MAX_DIRS = 32;
+	public static final int PREFETCH_CONCURRENCY = 1;
+	
+	// REMOTE INDEX, crawled in background for search
+	public static final boolean INDEX_ENABLED = true;
+	public static final int INDEX_CONCURRENCY = 2;
+	public static final long INDEX_REFRESH_MINUTES = 30;
+	public static final long INDEX_FULL_CRAWL_HOURS = 24;
+	public static final int INDEX_SEARCH_LIMIT = 500;
+	
+	// TRANSFER ENGINE
+	public static final int TRANSFER_BUFFER_SIZE = 256 * 1024;
+	public static final boolean TRANSFER_DIRECT_BUFFERS = true;
+	
+	// BANDWIDTH, bytes per second, 0 = unlimited; weights share the link by queue priority
+	public static final long BANDWIDTH_GLOBAL_LIMIT = 0;
+	public static final long BANDWIDTH_TRANSFER_LIMIT = 0;
+	public static final int BANDWIDTH_WEIGHT_HIGH = 4;
+	public static final int BANDWIDTH_WEIGHT_NORMAL = 2;
+	public static final int BANDWIDTH_WEIGHT_LOW = 1;
+	
+	// TRANSFER QUEUE
+	public static final int TRANSFER_MAX_ATTEMPTS = 3;
+	public static final long TRANSFER_RETRY_DELAY_MS = 2000;
+	
+	// INTEGRITY, checksum algorithms in order of preference when verifying transfers
+	public static final String[] VERIFY_ALGORITHMS = { "CRC32C", "CRC32", "MD5", "SHA-256", "SHA-1" };
+	// the server reads the whole file before it answers, a reply timeout shorter than this is raised to it
+	public static final int CHECKSUM_REPLY_TIMEOUT_SECONDS = 900;
+	
+	// SYNC
+	public static final boolean SYNC_USE_CHECKSUMS = true;
+	
+	// SEGMENTED DOWNLOADS
+	public static final int DOWNLOAD_SEGMENTS = 4;
+	public static final long DOWNLOAD_MIN_SEGMENT_SIZE = 8L * 1024 * 1024;
+	// files up to this size go in one piece and are not journaled: sending one again costs less than its resume point
+	public static final long SMALL_FILE_SIZE = 256 * 1024;
+	
+	// DOWNLOAD CACHE, unchanged files above SMALL_FILE_SIZE are linked or copied from it instead of fetched
+	public static final boolean CACHE_ENABLED = true;
+	public static final long CACHE_MAX_BYTES = 4L * 1024 * 1024 * 1024;
+	
+	// SERVER TO SERVER COPY, bytes held in memory between the two sessions
+	public static final int COPY_PIPE_SIZE = 4 * 1024 * 1024;
+	
+	// REMOTE STREAMS, bytes read ahead of the reader before the download waits for it
+	public static final int STREAM_READ_AHEAD = 1024 * 1024;
+	
+	// BULK DELETE / MKDIR, commands in flight per session
+	public static final int BULK_PIPELINE_DEPTH = 16;
+	
+	// METRICS
+	public static final long METRICS_LOG_SECONDS = 60;
+	public static final int METRICS_UI_REFRESH_MS = 500;
 
 }
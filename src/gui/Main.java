@@ -6,15 +6,20 @@ import java.awt.EventQueue;
 import java.awt.Font;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
+import java.awt.GridLayout;
 import java.awt.Insets;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.io.File;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
@@ -22,16 +27,25 @@ import javax.swing.JList;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
 import javax.swing.JPasswordField;
+import javax.swing.JProgressBar;
 import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
 import javax.swing.JTextField;
 import javax.swing.ListSelectionModel;
 import javax.swing.ScrollPaneConstants;
 import javax.swing.SwingConstants;
+import javax.swing.Timer;
 import javax.swing.WindowConstants;
 import javax.swing.border.EmptyBorder;
 
 import classes.Model;
+import services.BandwidthLimiter;
+import services.ConnectionProfile;
 import services.MyClient;
+import services.RemoteIndex;
+import services.SessionManager;
+import services.SyncEngine;
+import services.TransferMetrics;
 import util.Utilidades;
 
 public class Main extends JFrame implements ActionListener, MouseListener{
@@ -54,6 +68,19 @@ public class Main extends JFrame implements ActionListener, MouseListener{
 	private String selectedItem;
 	private JButton btnCrearDirectorio;
 	private JButton btnEliminarDirectorio;
+	private JButton btnSync;
+	private JButton btnProfile;
+	private JButton btnBandwidth;
+	private JTextField txtSearch;
+	private JButton btnSearch;
+	private JProgressBar progressBar;
+	private JLabel lblProgress;
+	private JComboBox<String> cbSessions;
+	private JButton btnNewSession;
+	private JButton btnCopy;
+	// every session of the window, ftpClient is the one shown
+	private final SessionManager sessions = new SessionManager(Model.POOL_SIZE);
+	private final List<MyClient> clients = new ArrayList<>();
 
 	/**
 	 * Launch the application.
@@ -150,6 +177,46 @@ public class Main extends JFrame implements ActionListener, MouseListener{
 		gbc_txtPass.gridy = 2;
 		contentPane.add(txtPass, gbc_txtPass);
 		
+		cbSessions = new JComboBox<>();
+		cbSessions.setToolTipText("Phiên đang hiển thị");
+		GridBagConstraints gbc_cbSessions = new GridBagConstraints();
+		gbc_cbSessions.insets = new Insets(0, 0, 5, 5);
+		gbc_cbSessions.fill = GridBagConstraints.HORIZONTAL;
+		gbc_cbSessions.gridx = 6;
+		gbc_cbSessions.gridy = 2;
+		contentPane.add(cbSessions, gbc_cbSessions);
+		
+		JLabel lblSearch = new JLabel("Tìm kiếm");
+		lblSearch.setForeground(Color.BLUE);
+		lblSearch.setFont(new Font("Tahoma", Font.BOLD, 12));
+		GridBagConstraints gbc_lblSearch = new GridBagConstraints();
+		gbc_lblSearch.insets = new Insets(0, 0, 5, 5);
+		gbc_lblSearch.gridx = 1;
+		gbc_lblSearch.gridy = 3;
+		contentPane.add(lblSearch, gbc_lblSearch);
+		
+		txtSearch = new JTextField();
+		txtSearch.setToolTipText("Tên hoặc mẫu *.csv, >10M <1G, after:2024-01-31 before:..., type:f|d, in:/thư/mục");
+		GridBagConstraints gbc_txtSearch = new GridBagConstraints();
+		gbc_txtSearch.insets = new Insets(0, 0, 5, 5);
+		gbc_txtSearch.fill = GridBagConstraints.HORIZONTAL;
+		gbc_txtSearch.gridx = 3;
+		gbc_txtSearch.gridy = 3;
+		contentPane.add(txtSearch, gbc_txtSearch);
+		// Enter in the field searches too
+		txtSearch.addActionListener(this);
+		txtSearch.setEnabled(false);
+		
+		btnSearch = new JButton("Tìm");
+		btnSearch.setFont(new Font("Lucida Grande", Font.BOLD, 13));
+		GridBagConstraints gbc_btnSearch = new GridBagConstraints();
+		gbc_btnSearch.insets = new Insets(0, 0, 5, 5);
+		gbc_btnSearch.gridx = 6;
+		gbc_btnSearch.gridy = 3;
+		contentPane.add(btnSearch, gbc_btnSearch);
+		btnSearch.addActionListener(this);
+		btnSearch.setEnabled(false);
+		
 		JScrollPane scrollPane = new JScrollPane();
 		scrollPane.setHorizontalScrollBarPolicy(ScrollPaneConstants.HORIZONTAL_SCROLLBAR_ALWAYS);
 		scrollPane.setVerticalScrollBarPolicy(ScrollPaneConstants.VERTICAL_SCROLLBAR_ALWAYS);
@@ -164,7 +231,9 @@ public class Main extends JFrame implements ActionListener, MouseListener{
 		
 		list = new JList<>();
 		list.setFont(new Font("Tahoma", Font.PLAIN, 12));
-		list.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		list.setSelectionMode(ListSelectionModel.MULTIPLE_INTERVAL_SELECTION);
+		// fixed cell size, so huge listings are not measured row by row
+		list.setPrototypeCellValue("(DIR) WWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWWW");
 		scrollPane.setViewportView(list);
 		
 		btnConnect = new JButton("Đăng nhập");
@@ -182,6 +251,15 @@ public class Main extends JFrame implements ActionListener, MouseListener{
 		
 		btnConnect.setEnabled(true);
 		
+		btnNewSession = new JButton("Phiên mới");
+		btnNewSession.setFont(new Font("Lucida Grande", Font.BOLD, 13));
+		GridBagConstraints gbc_btnNewSession = new GridBagConstraints();
+		gbc_btnNewSession.insets = new Insets(0, 0, 5, 5);
+		gbc_btnNewSession.gridx = 6;
+		gbc_btnNewSession.gridy = 5;
+		contentPane.add(btnNewSession, gbc_btnNewSession);
+		btnNewSession.addActionListener(this);
+		
 		btnDisconnect = new JButton("Đăng xuất");
 		btnDisconnect.setFont(new Font("Tahoma", Font.BOLD, 13));
 		GridBagConstraints gbc_btnDisconnect = new GridBagConstraints();
@@ -230,6 +308,44 @@ public class Main extends JFrame implements ActionListener, MouseListener{
 		contentPane.add(btnEliminarDirectorio, gbc_btnEliminarDirectorio);
 		btnEliminarDirectorio.addActionListener(this);
 		
+		btnSync = new JButton("Đồng bộ");
+		btnSync.setFont(new Font("Lucida Grande", Font.BOLD, 13));
+		GridBagConstraints gbc_btnSync = new GridBagConstraints();
+		gbc_btnSync.insets = new Insets(0, 0, 5, 5);
+		gbc_btnSync.gridx = 6;
+		gbc_btnSync.gridy = 11;
+		contentPane.add(btnSync, gbc_btnSync);
+		btnSync.addActionListener(this);
+		btnSync.setEnabled(false);
+		
+		btnProfile = new JButton("Cấu hình kết nối");
+		btnProfile.setFont(new Font("Lucida Grande", Font.BOLD, 13));
+		GridBagConstraints gbc_btnProfile = new GridBagConstraints();
+		gbc_btnProfile.insets = new Insets(0, 0, 5, 5);
+		gbc_btnProfile.gridx = 6;
+		gbc_btnProfile.gridy = 12;
+		contentPane.add(btnProfile, gbc_btnProfile);
+		btnProfile.addActionListener(this);
+		
+		btnBandwidth = new JButton("Băng thông");
+		btnBandwidth.setFont(new Font("Lucida Grande", Font.BOLD, 13));
+		GridBagConstraints gbc_btnBandwidth = new GridBagConstraints();
+		gbc_btnBandwidth.insets = new Insets(0, 0, 5, 5);
+		gbc_btnBandwidth.gridx = 6;
+		gbc_btnBandwidth.gridy = 13;
+		contentPane.add(btnBandwidth, gbc_btnBandwidth);
+		btnBandwidth.addActionListener(this);
+		
+		btnCopy = new JButton("Sao chép sang...");
+		btnCopy.setFont(new Font("Lucida Grande", Font.BOLD, 13));
+		GridBagConstraints gbc_btnCopy = new GridBagConstraints();
+		gbc_btnCopy.insets = new Insets(0, 0, 5, 5);
+		gbc_btnCopy.gridx = 6;
+		gbc_btnCopy.gridy = 14;
+		contentPane.add(btnCopy, gbc_btnCopy);
+		btnCopy.addActionListener(this);
+		btnCopy.setEnabled(false);
+		
 		btnExit = new JButton("Rời khỏi");
 		btnExit.setForeground(Color.RED);
 		btnExit.setFont(new Font("Lucida Grande", Font.BOLD, 13));
@@ -240,6 +356,24 @@ public class Main extends JFrame implements ActionListener, MouseListener{
 		contentPane.add(btnExit, gbc_btnExit);
 		btnExit.addActionListener(this);
 		
+		progressBar = new JProgressBar(0, 100);
+		progressBar.setStringPainted(true);
+		progressBar.setString("");
+		GridBagConstraints gbc_progressBar = new GridBagConstraints();
+		gbc_progressBar.gridwidth = 4;
+		gbc_progressBar.insets = new Insets(0, 0, 5, 5);
+		gbc_progressBar.fill = GridBagConstraints.HORIZONTAL;
+		gbc_progressBar.gridx = 1;
+		gbc_progressBar.gridy = 16;
+		contentPane.add(progressBar, gbc_progressBar);
+		
+		lblProgress = new JLabel(" ");
+		GridBagConstraints gbc_lblProgress = new GridBagConstraints();
+		gbc_lblProgress.insets = new Insets(0, 0, 5, 5);
+		gbc_lblProgress.gridx = 6;
+		gbc_lblProgress.gridy = 16;
+		contentPane.add(lblProgress, gbc_lblProgress);
+		
 		lblTxt = new JLabel("-");
 		GridBagConstraints gbc_lblTxt = new GridBagConstraints();
 		gbc_lblTxt.insets = new Insets(0, 0, 5, 5);
@@ -263,7 +397,12 @@ public class Main extends JFrame implements ActionListener, MouseListener{
 			txtServer.setText(Model.FTP_SERVER_ADDR);
 		}
 		
-		ftpClient = new MyClient(txtUser, txtPass, txtServer, list, lblTxt, lblError);
+		addSession();
+		// listens only now, the first session is already shown
+		cbSessions.addActionListener(this);
+		
+		// the transfers of all sessions report into the shared metrics; the bar just polls them
+		new Timer(Model.METRICS_UI_REFRESH_MS, e -> showProgress(sessions.getMetrics().getProgress())).start();
 	
 	}
 
@@ -275,45 +414,21 @@ public class Main extends JFrame implements ActionListener, MouseListener{
 			if(!txtUser.getText().equalsIgnoreCase("") && 
 					!new String(txtPass.getPassword()).equalsIgnoreCase("") && !txtServer.getText().equalsIgnoreCase("")){
 				
-				int out = ftpClient.getConnection();;
-				
-				if(out == 0) out = ftpClient.logUser();
-				
-				switch(out){
-				
-				case 1:
-					JOptionPane.showMessageDialog(this, "Đăng nhập thành công!");
-					btnConnect.setEnabled(false);
-					btnDownload.setEnabled(false);
-					btnUpload.setEnabled(true);
-					btnDisconnect.setEnabled(true);
-					
-					try {
-						ftpClient.changeDirAndInflateList();
-					} catch (Exception e1) {
-						e1.printStackTrace();
-					}
-					break;
-				case 0:
-					JOptionPane.showMessageDialog(this, "Lỗi");
-					break;
-				case -1:
-					JOptionPane.showMessageDialog(this, "Lỗi máy chủ");
-					break;
-				}
+				btnConnect.setEnabled(false);
+				ftpClient.getConnection()
+					.thenCompose(out -> out == 0 ? ftpClient.logUser() : CompletableFuture.completedFuture(out))
+					.thenAcceptAsync(this::onLoginResult, MyClient.EDT);
 				
 			}else {
 				JOptionPane.showMessageDialog(this, "Bạn phải hoàn thành tất cả các trường để có thể đăng nhập ...");
 			}
 			
 		}else if(e.getSource() == btnExit){
-			if(btnConnect.isEnabled())
-				try {
-					ftpClient.disconnectClient();
+			if(clients.stream().noneMatch(MyClient::isLoggedIn))
+				CompletableFuture.runAsync(sessions::shutdown).whenComplete((v, ex) -> {
+					if(ex != null) ex.printStackTrace();
 					System.exit(0);
-				} catch (IOException e1) {
-					e1.printStackTrace();
-				}
+				});
 			else
 				JOptionPane.showMessageDialog(this, "Bạn phải đăng xuất trước khi ngắt kết nối!", "Error", JOptionPane.WARNING_MESSAGE);
 		}else if(e.getSource() == btnDownload){
@@ -326,44 +441,91 @@ public class Main extends JFrame implements ActionListener, MouseListener{
 			
 			JFileChooser jFile = new JFileChooser();
 			jFile.setDialogTitle("Chọn tệp để tải lên");
-			jFile.setFileSelectionMode(JFileChooser.FILES_ONLY);
+			jFile.setFileSelectionMode(JFileChooser.FILES_AND_DIRECTORIES);
+			jFile.setMultiSelectionEnabled(true);
 			int result = jFile.showDialog(this, "Subir");
 			
 			if(result == JFileChooser.APPROVE_OPTION){
 				
-				File fich = jFile.getSelectedFile();
-				ftpClient.uploadFile(fich);
+				File[] fich = jFile.getSelectedFiles();
+				ftpClient.uploadFiles(fich);
 				
 			}
 			
 		}else if(e.getSource() == btnDisconnect){
 			
 			if(!btnConnect.isEnabled())
-				try {
-					ftpClient.logoutClient();
-				} catch (IOException e1) {
-					e1.printStackTrace();
-				}
+				ftpClient.logoutClient().exceptionally(ex -> {
+					ex.printStackTrace();
+					return -1;
+				});
 			
-			btnConnect.setEnabled(true);
-			btnDownload.setEnabled(false);
-			btnUpload.setEnabled(false);
-			btnDisconnect.setEnabled(false);
+			showLoggedIn(false);
 			
 			ftpClient.clearList();	
+		}else if(e.getSource() == btnSync){
+			
+			JFileChooser jDir = new JFileChooser();
+			jDir.setDialogTitle("Chọn thư mục để đồng bộ");
+			jDir.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+			int result = jDir.showDialog(this, "Đồng bộ");
+			
+			if(result == JFileChooser.APPROVE_OPTION){
+				
+				String[] modes = {"Tải lên", "Tải xuống"};
+				int mode = JOptionPane.showOptionDialog(this, "Hướng đồng bộ với thư mục hiện tại", "Đồng bộ",
+						JOptionPane.DEFAULT_OPTION, JOptionPane.QUESTION_MESSAGE, null, modes, modes[0]);
+				if(mode < 0) return;
+				boolean dryRun = JOptionPane.showConfirmDialog(this, "Chỉ chạy thử, không chuyển tệp?", "Đồng bộ",
+						JOptionPane.YES_NO_OPTION) == JOptionPane.YES_OPTION;
+				
+				ftpClient.sync(jDir.getSelectedFile(), mode == 0 ? SyncEngine.Mode.PUSH : SyncEngine.Mode.PULL, dryRun)
+					.thenAcceptAsync(planned -> {
+						if(dryRun) showSyncReport(planned);
+					}, MyClient.EDT);
+			}
+			
 		}else if(e.getSource() == btnCrearDirectorio){
 			
-			String newDirName = JOptionPane.showInputDialog("Nhập tên của tệp mới");
+			String newDirName = JOptionPane.showInputDialog("Nhập tên thư mục mới (nhiều tên cách nhau bằng dấu phẩy, a/b/c tạo cả thư mục cha)");
 			
-			if(!newDirName.equals("")) ftpClient.createDir(newDirName);
+			if(newDirName != null && !newDirName.trim().equals("")) ftpClient.createDirs(newDirName);
 		}else if(e.getSource() == btnEliminarDirectorio){
 			
 			if(list.isSelectionEmpty()) {
-				ftpClient.deleteDir();
-			}else if(!isDir(list.getSelectedValue())){
-				ftpClient.deleteFile(list.getSelectedValue());
+				int opt = JOptionPane.showConfirmDialog(this, "Xóa thư mục hiện tại và toàn bộ nội dung?", "Xóa thư mục", JOptionPane.YES_NO_OPTION);
+				if(opt == JOptionPane.YES_OPTION) ftpClient.deleteDir();
+			}else {
+				// row 0 is the parent entry
+				List<String> items = new ArrayList<>(list.getSelectedValuesList());
+				if(list.isSelectedIndex(0)) items.remove(list.getModel().getElementAt(0));
+				if(items.isEmpty()) return;
+				int opt = JOptionPane.showConfirmDialog(this, "Xóa " + items.size() + " mục đã chọn?", "Xóa", JOptionPane.YES_NO_OPTION);
+				if(opt == JOptionPane.YES_OPTION) ftpClient.deleteEntries(items);
+			}
+			
+		}else if(e.getSource() == btnProfile){
+			
+			if(txtServer.getText().trim().equals("")) {
+				JOptionPane.showMessageDialog(this, "Hãy nhập địa chỉ máy chủ trước");
+				return;
 			}
+			editProfile(ftpClient.getProfile());
+		}else if(e.getSource() == btnBandwidth){
+			
+			editBandwidth(ftpClient.getBandwidthLimiter());
+		}else if(e.getSource() == btnNewSession){
+			
+			addSession();
+		}else if(e.getSource() == cbSessions){
 			
+			if(cbSessions.getSelectedIndex() >= 0) showSession(clients.get(cbSessions.getSelectedIndex()));
+		}else if(e.getSource() == btnCopy){
+			
+			copySelected();
+		}else if(e.getSource() == btnSearch || e.getSource() == txtSearch){
+			
+			if(!txtSearch.getText().trim().equals("")) search(txtSearch.getText());
 		}
 	}
 
@@ -372,12 +534,20 @@ public class Main extends JFrame implements ActionListener, MouseListener{
 		
 		if(e.getSource() == list){
 			
+			// ctrl and shift clicks build a selection for the delete button, only a plain click opens an entry
+			if(e.isControlDown() || e.isShiftDown() || e.isMetaDown() || list.getSelectedIndices().length > 1){
+				selectedItem = null;
+				lblTxt.setText(list.getSelectedIndices().length + " mục đã chọn");
+				btnDownload.setEnabled(false);
+				btnCopy.setEnabled(false);
+				btnEliminarDirectorio.setText("Xóa mục đã chọn");
+				return;
+			}
+			if(list.isSelectionEmpty()) return;
+			
 			if(list.getSelectedIndex() == 0){
 				btnEliminarDirectorio.setText("Xóa thư mục");
-				try {
-					ftpClient.changeToParentDirAndInflateList();
-				} catch (Exception e1) {
-				}
+				ftpClient.changeToParentDirAndInflateList();
 			}else {
 				
 				selectedItem = list.getSelectedValue();
@@ -386,17 +556,16 @@ public class Main extends JFrame implements ActionListener, MouseListener{
 				
 				if(isDir(selectedItem)){
 					btnDownload.setEnabled(false);
+					btnCopy.setEnabled(false);
 					btnEliminarDirectorio.setText("Xóa thư mục");
 					String dir = Utilidades.sliceSelectedItem(selectedItem).trim();
 					ftpClient.setSelectedDirectory(dir);
-					try {
-						ftpClient.changeDirAndInflateList();
-					} catch (Exception e1) {
-					}
+					ftpClient.changeDirAndInflateList();
 					
 				}else {
 					btnEliminarDirectorio.setText("Xóa tệp");
 					btnDownload.setEnabled(true);
+					btnCopy.setEnabled(true);
 				}
 				
 			}
@@ -420,6 +589,291 @@ public class Main extends JFrame implements ActionListener, MouseListener{
 	}
 	
 	
+	/*
+	 * Called on the EDT once connection and login have completed in background
+	 */
+	private void onLoginResult(int out){
+		
+		switch(out){
+		
+		case 1:
+			JOptionPane.showMessageDialog(this, "Đăng nhập thành công!");
+			showLoggedIn(true);
+			
+			ftpClient.changeDirAndInflateList();
+			break;
+		case 0:
+			btnConnect.setEnabled(true);
+			JOptionPane.showMessageDialog(this, "Lỗi");
+			break;
+		case -1:
+			btnConnect.setEnabled(true);
+			JOptionPane.showMessageDialog(this, "Lỗi máy chủ");
+			break;
+		}
+	}
+	
+	/*
+	 * Enables the buttons that make sense in or out of a login
+	 */
+	private void showLoggedIn(boolean loggedIn){
+		btnConnect.setEnabled(!loggedIn);
+		btnDownload.setEnabled(false);
+		btnCopy.setEnabled(false);
+		btnUpload.setEnabled(loggedIn);
+		btnSync.setEnabled(loggedIn);
+		btnSearch.setEnabled(loggedIn);
+		txtSearch.setEnabled(loggedIn);
+		btnDisconnect.setEnabled(loggedIn);
+	}
+	
+	/*
+	 * Opens another session, not logged in, and shows it
+	 */
+	private void addSession(){
+		String name = "Phiên " + (clients.size() + 1);
+		clients.add(new MyClient(sessions, name, txtUser, txtPass, txtServer, list, lblTxt, lblError));
+		cbSessions.addItem(name);
+		cbSessions.setSelectedIndex(clients.size() - 1);
+		showSession(clients.get(clients.size() - 1));
+	}
+	
+	/*
+	 * Puts the session in the window: its listing, its login fields and buttons;
+	 * the other sessions go on in the background
+	 */
+	private void showSession(MyClient client){
+		if(client == ftpClient) return;
+		for(MyClient c : clients) c.setActive(c == client);
+		ftpClient = client;
+		txtServer.setText(client.getServer() != null ? client.getServer() : "");
+		txtUser.setText(client.getUsername() != null ? client.getUsername() : "");
+		txtPass.setText("");
+		selectedItem = null;
+		lblTxt.setText("-");
+		lblError.setText("-");
+		showLoggedIn(client.isLoggedIn());
+		if(!client.isLoggedIn()) client.clearList();
+	}
+	
+	/*
+	 * Copies the selected file into a directory of another logged in session,
+	 * from server to server
+	 */
+	private void copySelected(){
+		if(selectedItem == null || isDir(selectedItem)) return;
+		List<MyClient> targets = new ArrayList<>();
+		for(MyClient c : clients) if(c != ftpClient && c.isLoggedIn()) targets.add(c);
+		if(targets.isEmpty()) {
+			JOptionPane.showMessageDialog(this, "Hãy đăng nhập một phiên khác trước");
+			return;
+		}
+		String[] names = new String[targets.size()];
+		for(int i = 0; i < names.length; i++) names[i] = targets.get(i).getName() + " - " + targets.get(i).getServer();
+		JComboBox<String> target = new JComboBox<>(names);
+		JTextField dir = new JTextField(targets.get(0).getWorkingDirectory());
+		target.addActionListener(ev -> dir.setText(targets.get(target.getSelectedIndex()).getWorkingDirectory()));
+		JPanel panel = new JPanel(new GridLayout(0, 2, 5, 5));
+		panel.add(new JLabel("Phiên đích:"));
+		panel.add(target);
+		panel.add(new JLabel("Thư mục đích:"));
+		panel.add(dir);
+		String file = Utilidades.sliceSelectedItem(selectedItem);
+		int opt = JOptionPane.showConfirmDialog(this, panel, "Sao chép " + file, JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+		if(opt != JOptionPane.OK_OPTION || dir.getText().trim().equals("")) return;
+		ftpClient.copyTo(targets.get(target.getSelectedIndex()), file, dir.getText().trim());
+	}
+	
+	private void showProgress(TransferMetrics.Progress p){
+		if(p.active == 0){
+			progressBar.setIndeterminate(false);
+			progressBar.setValue(0);
+			progressBar.setString("");
+			lblProgress.setText(" ");
+			return;
+		}
+		int percent = p.getPercent();
+		progressBar.setIndeterminate(percent < 0);
+		if(percent >= 0) progressBar.setValue(percent);
+		progressBar.setString(p.active + " tệp - " + TransferMetrics.formatBytes(p.done)
+				+ (p.expected > 0 ? " / " + TransferMetrics.formatBytes(p.expected) : ""));
+		long eta = p.getEtaSeconds();
+		lblProgress.setText(TransferMetrics.formatRate(p.bytesPerSecond)
+				+ (p.compressionRatio > 0 ? String.format("  nén x%.1f", p.compressionRatio) : "")
+				+ (eta >= 0 ? String.format("  còn %d:%02d", eta / 60, eta % 60) : ""));
+	}
+	
+	/*
+	 * Edits the connection settings of the server; they apply from the next transfer,
+	 * the port and FTPS from the next login
+	 */
+	private void editProfile(ConnectionProfile p){
+		JTextField port = new JTextField(Integer.toString(p.port));
+		JCheckBox passive = new JCheckBox("Chế độ bị động (PASV)", p.passive);
+		JTextField buffer = new JTextField(Integer.toString(p.bufferSize / 1024));
+		JTextField socketBuffer = new JTextField(Integer.toString(p.socketBufferSize / 1024));
+		JCheckBox noDelay = new JCheckBox("TCP_NODELAY trên kết nối điều khiển", p.tcpNoDelay);
+		JCheckBox compression = new JCheckBox("Nén khi truyền (MODE Z) nếu máy chủ hỗ trợ", p.compression);
+		JTextField level = new JTextField(Integer.toString(p.compressionLevel));
+		JCheckBox verify = new JCheckBox("Kiểm tra checksum sau khi truyền", p.verify);
+		JTextField keepAlive = new JTextField(Long.toString(p.controlKeepAliveSeconds));
+		JTextField idleKeepAlive = new JTextField(Long.toString(p.idleKeepAliveSeconds));
+		JCheckBox autoTune = new JCheckBox("Tự động tối ưu ở lần đăng nhập đầu", p.autoTune);
+		JComboBox<ConnectionProfile.Security> security = new JComboBox<>(ConnectionProfile.Security.values());
+		security.setSelectedItem(p.security);
+		JTextField fingerprint = new JTextField(p.tlsFingerprint);
+		JPanel panel = new JPanel(new GridLayout(0, 2, 5, 5));
+		panel.add(new JLabel("Cổng:"));
+		panel.add(port);
+		panel.add(new JLabel("FTPS (NONE = không mã hóa, IMPLICIT dùng cổng " + Model.FTPS_IMPLICIT_PORT + " nếu để 21):"));
+		panel.add(security);
+		panel.add(new JLabel("Vân tay SHA-256 chứng chỉ (trống = tin CA hệ thống):"));
+		panel.add(fingerprint);
+		panel.add(new JLabel("Bộ đệm truyền (KB):"));
+		panel.add(buffer);
+		panel.add(new JLabel("Bộ đệm socket (KB, 0 = mặc định):"));
+		panel.add(socketBuffer);
+		panel.add(new JLabel("Giữ kết nối khi truyền (giây, 0 = tắt):"));
+		panel.add(keepAlive);
+		panel.add(new JLabel("Giữ kết nối khi rảnh (giây, 0 = tắt):"));
+		panel.add(idleKeepAlive);
+		panel.add(new JLabel("Mức nén (1-9):"));
+		panel.add(level);
+		panel.add(compression);
+		panel.add(verify);
+		panel.add(passive);
+		panel.add(noDelay);
+		panel.add(autoTune);
+		panel.add(new JLabel(p.tunedAt > 0 ? "Đã tối ưu: " + TransferMetrics.formatRate(p.tunedBytesPerSecond) : "Chưa tối ưu"));
+		
+		String[] options = btnConnect.isEnabled() ? new String[]{"Lưu", "Hủy"} : new String[]{"Lưu", "Lưu và tối ưu ngay", "Hủy"};
+		int opt = JOptionPane.showOptionDialog(this, panel, "Cấu hình kết nối " + p.host, JOptionPane.DEFAULT_OPTION,
+				JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
+		if(opt < 0 || opt == options.length - 1) return;
+		try {
+			int newPort = Integer.parseInt(port.getText().trim());
+			int newBuffer = Integer.parseInt(buffer.getText().trim()) * 1024;
+			int newSocketBuffer = Integer.parseInt(socketBuffer.getText().trim()) * 1024;
+			long newKeepAlive = Long.parseLong(keepAlive.getText().trim());
+			long newIdleKeepAlive = Long.parseLong(idleKeepAlive.getText().trim());
+			int newLevel = Integer.parseInt(level.getText().trim());
+			if(newPort <= 0 || newPort > 65535 || newBuffer <= 0 || newSocketBuffer < 0 || newKeepAlive < 0 || newIdleKeepAlive < 0
+					|| newLevel < 1 || newLevel > 9)
+				throw new NumberFormatException();
+			p.compressionLevel = newLevel;
+			p.port = newPort;
+			p.bufferSize = newBuffer;
+			p.socketBufferSize = newSocketBuffer;
+			p.controlKeepAliveSeconds = newKeepAlive;
+			p.idleKeepAliveSeconds = newIdleKeepAlive;
+		} catch (NumberFormatException ex) {
+			JOptionPane.showMessageDialog(this, "Giá trị không hợp lệ", "Error", JOptionPane.WARNING_MESSAGE);
+			return;
+		}
+		p.passive = passive.isSelected();
+		p.tcpNoDelay = noDelay.isSelected();
+		p.compression = compression.isSelected();
+		p.verify = verify.isSelected();
+		p.autoTune = autoTune.isSelected();
+		p.security = (ConnectionProfile.Security) security.getSelectedItem();
+		p.tlsFingerprint = fingerprint.getText().trim();
+		ftpClient.saveProfile();
+		if(opt == 1) ftpClient.tuneConnection();
+	}
+	
+	/*
+	 * Edits the bandwidth limits: for all transfers together, for each one by
+	 * default, and for every transfer running now. Rates are like 500K or 2M,
+	 * 0 or empty for no limit; they apply at once to running transfers.
+	 */
+	private void editBandwidth(BandwidthLimiter limiter){
+		JTextField global = new JTextField(formatLimit(limiter.getGlobalRate()));
+		JTextField each = new JTextField(formatLimit(limiter.getTransferRate()));
+		List<BandwidthLimiter.Flow> flows = limiter.getFlows();
+		List<JTextField> flowFields = new ArrayList<>();
+		JPanel panel = new JPanel(new GridLayout(0, 2, 5, 5));
+		panel.add(new JLabel("Tổng tất cả (ví dụ 2M, 0 = không giới hạn):"));
+		panel.add(global);
+		panel.add(new JLabel("Mỗi tệp mặc định:"));
+		panel.add(each);
+		for(BandwidthLimiter.Flow f : flows){
+			// empty keeps the per-transfer default
+			JTextField field = new JTextField(f.getRate() == limiter.getTransferRate() ? "" : formatLimit(f.getRate()));
+			panel.add(new JLabel(f.toString()));
+			panel.add(field);
+			flowFields.add(field);
+		}
+		int opt = JOptionPane.showConfirmDialog(this, panel, "Giới hạn băng thông", JOptionPane.OK_CANCEL_OPTION, JOptionPane.PLAIN_MESSAGE);
+		if(opt != JOptionPane.OK_OPTION) return;
+		try {
+			long newGlobal = parseLimit(global.getText());
+			long newEach = parseLimit(each.getText());
+			long[] newFlows = new long[flows.size()];
+			for(int i = 0; i < flows.size(); i++){
+				String t = flowFields.get(i).getText().trim();
+				newFlows[i] = t.isEmpty() ? -1 : parseLimit(t);
+			}
+			limiter.setGlobalRate(newGlobal);
+			limiter.setTransferRate(newEach);
+			for(int i = 0; i < flows.size(); i++) flows.get(i).setRate(newFlows[i]);
+		} catch (IllegalArgumentException ex) {
+			JOptionPane.showMessageDialog(this, ex.getMessage(), "Error", JOptionPane.WARNING_MESSAGE);
+		}
+	}
+	
+	private static String formatLimit(long bytesPerSecond){
+		return bytesPerSecond <= 0 ? "0" : (bytesPerSecond / 1024) + "K";
+	}
+	
+	private static long parseLimit(String text){
+		return text.trim().isEmpty() ? 0 : BandwidthLimiter.parseRate(text);
+	}
+	
+	/*
+	 * Queries the local index of the server and offers to open the directory of a match
+	 */
+	private void search(String query){
+		if(!ftpClient.hasIndex()) {
+			JOptionPane.showMessageDialog(this, "Chỉ mục của máy chủ đang được tạo, hãy thử lại sau");
+			return;
+		}
+		List<RemoteIndex.Hit> hits;
+		long start = System.nanoTime();
+		try {
+			hits = ftpClient.search(query);
+		} catch (IllegalArgumentException ex) {
+			JOptionPane.showMessageDialog(this, ex.getMessage(), "Error", JOptionPane.WARNING_MESSAGE);
+			return;
+		}
+		long millis = (System.nanoTime() - start) / 1000000;
+		
+		JList<RemoteIndex.Hit> results = new JList<>(hits.toArray(new RemoteIndex.Hit[0]));
+		results.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+		results.setVisibleRowCount(20);
+		if(!hits.isEmpty()) results.setSelectedIndex(0);
+		JScrollPane pane = new JScrollPane(results);
+		pane.setPreferredSize(new Dimension(700, 400));
+		
+		String[] options = {"Mở thư mục", "Lập lại chỉ mục", "Đóng"};
+		int opt = JOptionPane.showOptionDialog(this, pane, hits.size() + " kết quả (" + millis + " ms)", JOptionPane.DEFAULT_OPTION,
+				JOptionPane.PLAIN_MESSAGE, null, options, options[0]);
+		if(opt == 0 && results.getSelectedValue() != null) {
+			ftpClient.setSelectedDirectory(results.getSelectedValue().dir);
+			ftpClient.changeDirAndInflateList();
+		}else if(opt == 1) {
+			ftpClient.reindex();
+		}
+	}
+	
+	private void showSyncReport(List<SyncEngine.Action> planned){
+		StringBuilder sb = new StringBuilder();
+		for(SyncEngine.Action a : planned) sb.append(a).append('\n');
+		if(planned.isEmpty()) sb.append("Không có tệp nào cần chuyển");
+		JTextArea area = new JTextArea(sb.toString(), 20, 80);
+		area.setEditable(false);
+		JOptionPane.showMessageDialog(this, new JScrollPane(area), "Chạy thử đồng bộ", JOptionPane.INFORMATION_MESSAGE);
+	}
+	
 	private boolean isDir(String item){
 		return item.startsWith("(DIR)");
 	}
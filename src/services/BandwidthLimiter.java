@@ -0,0 +1,232 @@
+package services;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Token buckets that cap the bytes per second of all transfers together and
+ * of each transfer on its own. Both limits can be changed while transfers
+ * run and 0 means unlimited.
+ *
+ * Transfers take turns on the global bucket through a fair lock, each turn
+ * paying for at most one quantum, so a bulk upload cannot hold the link
+ * while a small download waits. The quantum grows with the weight of the
+ * flow, which shares the bandwidth in proportion to the weights among the
+ * transfers that want more than their share; a transfer that needs less
+ * leaves the rest to the others. All sessions of one transfer, like the
+ * ranges of a segmented download, share one flow and one turn.
+ */
+public class BandwidthLimiter {
+
+	// what a bucket may save up while its flow is idle, in seconds of its rate
+	private static final double BURST_SECONDS = 0.2;
+	// turns per second at the global rate, bounded by the quantum limits
+	private static final int TURNS_PER_SECOND = 50;
+	private static final int MIN_QUANTUM = 4 * 1024;
+	private static final int MAX_QUANTUM = 256 * 1024;
+
+	/*
+	 * Token bucket that may go into debt: take() always succeeds and tells how
+	 * long the caller has to wait to pay the bytes back
+	 */
+	private static class Bucket {
+		private double tokens;
+		private long last = System.nanoTime();
+
+		synchronized long take(long n, long rate) {
+			long now = System.nanoTime();
+			if(rate <= 0) {
+				tokens = 0;
+				last = now;
+				return 0;
+			}
+			double burst = Math.max(MIN_QUANTUM, rate * BURST_SECONDS);
+			tokens = Math.min(burst, tokens + (now - last) * rate / 1e9);
+			last = now;
+			tokens -= n;
+			return tokens >= 0 ? 0 : (long) (-tokens * 1e9 / rate);
+		}
+	}
+
+	/*
+	 * Bandwidth of one transfer. Get one with open() and close it when the transfer ends.
+	 */
+	public class Flow implements AutoCloseable {
+		public final String name;
+		public final int weight;
+		private final Bucket bucket = new Bucket();
+		// the sessions of this transfer queue here, so it takes one global turn at a time
+		private final ReentrantLock turn = new ReentrantLock(true);
+		private final AtomicLong bytes = new AtomicLong();
+		private final long start = System.nanoTime();
+		// -1 takes the limiter's per-transfer limit
+		private volatile long rate = -1;
+
+		Flow(String name, int weight) {
+			this.name = name;
+			this.weight = Math.max(1, weight);
+		}
+
+		/*
+		 * @param bytesPerSecond: limit of this transfer, 0 for none, -1 for the shared per-transfer limit
+		 */
+		public void setRate(long bytesPerSecond) {
+			rate = bytesPerSecond;
+		}
+
+		/*
+		 * @return long: limit in effect for this transfer, 0 if there is none
+		 */
+		public long getRate() {
+			long r = rate;
+			return r >= 0 ? r : transferRate;
+		}
+
+		public long getBytes() {
+			return bytes.get();
+		}
+
+		public double getBytesPerSecond() {
+			long elapsed = System.nanoTime() - start;
+			return elapsed <= 0 ? 0 : bytes.get() * 1e9 / elapsed;
+		}
+
+		/*
+		 * @param chunk: what the engine would move at once without a limit
+		 * @return int: bytes to move before the next consume(), small enough to keep turns short
+		 */
+		public int quantum(int chunk) {
+			long g = globalRate;
+			long own = getRate();
+			if(g <= 0 && own <= 0) return chunk;
+			long q = Long.MAX_VALUE;
+			if(g > 0) q = Math.min(q, clamp(g / TURNS_PER_SECOND) * weight);
+			if(own > 0) q = Math.min(q, clamp(own / TURNS_PER_SECOND));
+			return (int) Math.max(1, Math.min(chunk, q));
+		}
+
+		/*
+		 * Accounts n bytes just moved, blocking until both limits allow them
+		 */
+		public void consume(long n) throws IOException {
+			if(n <= 0) return;
+			bytes.addAndGet(n);
+			if(globalRate <= 0 && getRate() <= 0) return;
+			try {
+				turn.lockInterruptibly();
+				try {
+					pause(bucket.take(n, getRate()));
+					global.lockInterruptibly();
+					try {
+						pause(globalBucket.take(n, globalRate));
+					} finally {
+						global.unlock();
+					}
+				} finally {
+					turn.unlock();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttled");
+			}
+		}
+
+		@Override
+		public void close() {
+			flows.remove(this);
+		}
+
+		@Override
+		public String toString() {
+			long r = getRate();
+			return name + ": " + TransferMetrics.formatRate(getBytesPerSecond())
+					+ (r > 0 ? " (tối đa " + TransferMetrics.formatRate(r) + ")" : "");
+		}
+	}
+
+	private final Bucket globalBucket = new Bucket();
+	// fair, so the flows waiting for bandwidth are served in turn
+	private final ReentrantLock global = new ReentrantLock(true);
+	private final List<Flow> flows = new CopyOnWriteArrayList<>();
+	private volatile long globalRate;
+	private volatile long transferRate;
+
+	/*
+	 * @param globalRate: bytes per second of all transfers together, 0 for unlimited
+	 * @param transferRate: bytes per second of each transfer, 0 for unlimited
+	 */
+	public BandwidthLimiter(long globalRate, long transferRate) {
+		this.globalRate = Math.max(0, globalRate);
+		this.transferRate = Math.max(0, transferRate);
+	}
+
+	public long getGlobalRate() {
+		return globalRate;
+	}
+
+	public void setGlobalRate(long bytesPerSecond) {
+		globalRate = Math.max(0, bytesPerSecond);
+	}
+
+	public long getTransferRate() {
+		return transferRate;
+	}
+
+	/*
+	 * Changes the limit of every transfer that has none of its own, running ones included
+	 */
+	public void setTransferRate(long bytesPerSecond) {
+		transferRate = Math.max(0, bytesPerSecond);
+	}
+
+	/*
+	 * @param weight: share of the bandwidth relative to the other transfers, at least 1
+	 */
+	public Flow open(String name, int weight) {
+		Flow f = new Flow(name, weight);
+		flows.add(f);
+		return f;
+	}
+
+	/*
+	 * @return List<Flow>: the transfers running now
+	 */
+	public List<Flow> getFlows() {
+		return new ArrayList<>(flows);
+	}
+
+	private static long clamp(long quantum) {
+		return Math.max(MIN_QUANTUM, Math.min(MAX_QUANTUM, quantum));
+	}
+
+	private static void pause(long nanos) throws InterruptedException {
+		if(nanos > 0) TimeUnit.NANOSECONDS.sleep(nanos);
+	}
+
+	/*
+	 * @return long: bytes per second of a rate like 500K, 2.5M or 1G, 0 for unlimited
+	 */
+	public static long parseRate(String text) {
+		String s = text.trim().toUpperCase();
+		if(s.endsWith("/S")) s = s.substring(0, s.length() - 2);
+		if(s.endsWith("B")) s = s.substring(0, s.length() - 1);
+		long unit = 1;
+		if(s.endsWith("K")) unit = 1024;
+		else if(s.endsWith("M")) unit = 1024L * 1024;
+		else if(s.endsWith("G")) unit = 1024L * 1024 * 1024;
+		if(unit > 1) s = s.substring(0, s.length() - 1);
+		try {
+			double v = Double.parseDouble(s.trim());
+			if(v < 0) throw new NumberFormatException();
+			return (long) (v * unit);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Tốc độ không hợp lệ: " + text);
+		}
+	}
+}
@@ -0,0 +1,218 @@
+package services;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * Fixed size ring buffer between one thread producing bytes and one thread
+ * consuming them. The producer blocks while the ring is full and the
+ * consumer while it is empty, so a fast side never holds more than the
+ * capacity in memory. Closing the sink ends the stream for the consumer
+ * once the ring is drained; a failure on either side wakes up the other one
+ * with the error.
+ */
+public class BoundedPipe {
+
+	private final ByteBuffer ring;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notEmpty = lock.newCondition();
+	private final Condition notFull = lock.newCondition();
+	// next byte to read and bytes waiting in the ring
+	private int head;
+	private int count;
+	private boolean sinkClosed;
+	private boolean sourceClosed;
+	private IOException failure;
+
+	/*
+	 * @param capacity: bytes the pipe holds at most
+	 * @param direct: keep the ring off-heap
+	 */
+	public BoundedPipe(int capacity, boolean direct) {
+		ring = direct ? ByteBuffer.allocateDirect(Math.max(1, capacity)) : ByteBuffer.allocate(Math.max(1, capacity));
+	}
+
+	public int getCapacity() {
+		return ring.capacity();
+	}
+
+	/*
+	 * @return int: bytes written and not read yet
+	 */
+	public int available() {
+		lock.lock();
+		try {
+			return count;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Moves as many bytes of src as fit, waiting while the ring is full
+	 * @return int: bytes taken, at least one unless src is empty
+	 */
+	public int write(ByteBuffer src) throws IOException {
+		if(!src.hasRemaining()) return 0;
+		lock.lock();
+		try {
+			while(count == ring.capacity() && !sourceClosed && failure == null) await(notFull);
+			if(failure != null) throw new IOException("Pipe failed", failure);
+			if(sourceClosed) throw new IOException("Pipe closed by the reader");
+			int n = Math.min(src.remaining(), ring.capacity() - count);
+			int tail = (head + count) % ring.capacity();
+			int first = Math.min(n, ring.capacity() - tail);
+			copy(src, tail, first);
+			if(n > first) copy(src, 0, n - first);
+			count += n;
+			notEmpty.signal();
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Moves the waiting bytes into dst, as many as fit, waiting while the ring is empty
+	 * @return int: bytes moved, -1 once the sink is closed and everything was read
+	 */
+	public int read(ByteBuffer dst) throws IOException {
+		if(!dst.hasRemaining()) return 0;
+		lock.lock();
+		try {
+			while(count == 0 && !sinkClosed && failure == null) await(notEmpty);
+			if(failure != null) throw new IOException("Pipe failed", failure);
+			if(count == 0) return -1;
+			int n = Math.min(dst.remaining(), count);
+			int first = Math.min(n, ring.capacity() - head);
+			ByteBuffer from = ring.duplicate();
+			from.limit(head + first).position(head);
+			dst.put(from);
+			if(n > first) {
+				from.clear().limit(n - first);
+				dst.put(from);
+			}
+			head = (head + n) % ring.capacity();
+			count -= n;
+			notFull.signal();
+			return n;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * No more bytes will be written; the reader gets -1 after the last one
+	 */
+	public void closeSink() {
+		lock.lock();
+		try {
+			sinkClosed = true;
+			notEmpty.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * The reader stopped; a waiting writer fails instead of blocking forever
+	 */
+	public void closeSource() {
+		lock.lock();
+		try {
+			sourceClosed = true;
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * Makes both sides fail with the error of the other
+	 */
+	public void fail(IOException e) {
+		lock.lock();
+		try {
+			if(failure == null) failure = e;
+			notEmpty.signalAll();
+			notFull.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/*
+	 * @return WritableByteChannel: the producer end, closing it closes the sink
+	 */
+	public WritableByteChannel sink() {
+		return new WritableByteChannel() {
+			private boolean open = true;
+
+			@Override
+			public int write(ByteBuffer src) throws IOException {
+				int total = 0;
+				while(src.hasRemaining()) total += BoundedPipe.this.write(src);
+				return total;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return open;
+			}
+
+			@Override
+			public void close() {
+				open = false;
+				closeSink();
+			}
+		};
+	}
+
+	/*
+	 * @return ReadableByteChannel: the consumer end, closing it closes the source
+	 */
+	public ReadableByteChannel source() {
+		return new ReadableByteChannel() {
+			private boolean open = true;
+
+			@Override
+			public int read(ByteBuffer dst) throws IOException {
+				return BoundedPipe.this.read(dst);
+			}
+
+			@Override
+			public boolean isOpen() {
+				return open;
+			}
+
+			@Override
+			public void close() {
+				open = false;
+				closeSource();
+			}
+		};
+	}
+
+	private void copy(ByteBuffer src, int at, int n) {
+		ByteBuffer to = ring.duplicate();
+		to.limit(at + n).position(at);
+		ByteBuffer from = src.duplicate();
+		from.limit(from.position() + n);
+		to.put(from);
+		src.position(src.position() + n);
+	}
+
+	private static void await(Condition c) throws InterruptedIOException {
+		try {
+			c.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting on the pipe");
+		}
+	}
+}
@@ -0,0 +1,309 @@
+package services;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+/*
+ * Deletes whole remote trees and creates many directories at once. The work
+ * is split over several pooled sessions and on each of them DELE, RMD and
+ * MKD are pipelined instead of waiting for every reply. Directories are
+ * handled one depth level at a time, so parents are created before and
+ * removed after their children.
+ */
+public class BulkOperations {
+
+	// Paths a worker takes from the shared list at a time
+	private static final int CHUNK = 64;
+	// Failures kept for the report, the rest are only counted
+	private static final int MAX_REPORTED_FAILURES = 200;
+	private static final long PROGRESS_EVERY_MS = 200;
+
+	/*
+	 * Receives the number of paths handled so far
+	 */
+	public interface Progress {
+		void update(int done, int total);
+	}
+
+	public static class Report {
+		public int total;
+		public int done;
+		public int failed;
+		// "path: reply" of the first failures
+		public final List<String> failures = new ArrayList<>();
+
+		synchronized void success() {
+			done++;
+		}
+
+		synchronized void failure(String path, String reply) {
+			done++;
+			failed++;
+			if(failures.size() < MAX_REPORTED_FAILURES) failures.add(path + ": " + reply.trim());
+		}
+
+		@Override
+		public synchronized String toString() {
+			return (done - failed) + "/" + total + " thành công, " + failed + " lỗi";
+		}
+	}
+
+	private final ConnectionPool pool;
+	private final int concurrency;
+	private final int pipelineDepth;
+	private final TransferExecutor workers;
+
+	/*
+	 * @param concurrency: sessions used at the same time
+	 * @param pipelineDepth: commands in flight on each session, 1 disables pipelining
+	 */
+	public BulkOperations(ConnectionPool pool, int concurrency, int pipelineDepth) {
+		this.pool = pool;
+		this.concurrency = Math.max(1, concurrency);
+		this.pipelineDepth = Math.max(1, pipelineDepth);
+		workers = new TransferExecutor("ftp-bulk", this.concurrency);
+	}
+
+	/*
+	 * Removes the files, and the directories with everything below them
+	 * @param files: absolute paths of plain files
+	 * @param dirs: absolute paths of directories
+	 */
+	public Report delete(List<String> files, List<String> dirs, Progress progress) throws IOException {
+		List<String> allFiles = Collections.synchronizedList(new ArrayList<>(files));
+		TreeMap<Integer, List<String>> levels = new TreeMap<>(Comparator.reverseOrder());
+		List<String> level = new ArrayList<>(dirs);
+		// the walk also fans out: every level of the tree is listed in parallel
+		for(int depth = 0; !level.isEmpty(); depth++) {
+			levels.put(depth, level);
+			List<String> next = Collections.synchronizedList(new ArrayList<>());
+			forEach(level, (session, dir) -> {
+				// a directory that cannot be listed is left to fail its RMD and show up in the report
+				// LIST -a, or the dotfiles would be left behind and keep their directory from going
+				session.setListHiddenFiles(true);
+				try {
+					((ChannelFTPClient) session).streamList(dir, f -> {
+						if(f.getName().equals(".") || f.getName().equals("..")) return;
+						String path = SyncEngine.join(dir, f.getName());
+						if(f.isDirectory()) next.add(path);
+						else allFiles.add(path);
+					});
+				} finally {
+					// pooled sessions also list for browsing, which hides them
+					session.setListHiddenFiles(false);
+				}
+			});
+			level = new ArrayList<>(next);
+		}
+
+		Report report = new Report();
+		report.total = allFiles.size();
+		for(List<String> l : levels.values()) report.total += l.size();
+		Ticker ticker = new Ticker(report, progress);
+		run("DELE", new ArrayList<>(allFiles), report, ticker);
+		// deepest level first, a directory is empty once the level below is gone
+		for(List<String> l : levels.values()) run("RMD", l, report, ticker);
+		ticker.tick(true);
+		return report;
+	}
+
+	/*
+	 * Creates the directories and any missing parent; directories that already
+	 * exist are not counted as failures
+	 */
+	public Report makeDirectories(List<String> dirs, Progress progress) throws IOException {
+		TreeMap<Integer, List<String>> levels = new TreeMap<>();
+		Map<String, Boolean> seen = new HashMap<>();
+		for(String d : dirs) {
+			for(String p = d; !p.equals("/") && !p.isEmpty(); p = parentOf(p)) {
+				if(seen.put(p, Boolean.TRUE) != null) break;
+				levels.computeIfAbsent(depth(p), k -> new ArrayList<>()).add(p);
+			}
+		}
+		Report attempt = new Report();
+		for(List<String> l : levels.values()) attempt.total += l.size();
+		Ticker ticker = new Ticker(attempt, progress);
+		List<String> failed = Collections.synchronizedList(new ArrayList<>());
+		for(List<String> l : levels.values()) run("MKD", l, attempt, ticker, failed);
+		ticker.tick(true);
+
+		// MKD of an existing directory fails too: look the failed ones up in their parent
+		Report report = new Report();
+		report.total = attempt.total;
+		report.done = attempt.total;
+		Map<String, List<String>> byParent = new HashMap<>();
+		for(String f : failed) byParent.computeIfAbsent(parentOf(f), k -> new ArrayList<>()).add(f);
+		List<String> parents = new ArrayList<>(byParent.keySet());
+		forEach(parents, (session, parent) -> {
+			List<String> existing = new ArrayList<>();
+			((ChannelFTPClient) session).streamList(parent, f -> {
+				if(f.isDirectory()) existing.add(SyncEngine.join(parent, f.getName()));
+			});
+			for(String f : byParent.get(parent)) {
+				if(!existing.contains(f)) {
+					synchronized(report) {
+						report.failed++;
+						if(report.failures.size() < MAX_REPORTED_FAILURES) report.failures.add(f);
+					}
+				}
+			}
+		});
+		return report;
+	}
+
+	public void shutdown() {
+		workers.shutdown();
+	}
+
+	private interface SessionTask {
+		void run(FTPClient session, String path) throws IOException;
+	}
+
+	/*
+	 * Runs the task for every path, spread over the pooled sessions
+	 */
+	private void forEach(List<String> paths, SessionTask task) throws IOException {
+		AtomicInteger cursor = new AtomicInteger();
+		List<CompletableFuture<Void>> parts = new ArrayList<>();
+		for(int w = 0; w < Math.min(concurrency, paths.size()); w++) {
+			parts.add(workers.submit(() -> {
+				FTPClient session = pool.borrow(null);
+				try {
+					int i;
+					while((i = cursor.getAndIncrement()) < paths.size()) task.run(session, paths.get(i));
+					pool.release(session);
+					session = null;
+				} finally {
+					if(session != null) pool.invalidate(session);
+				}
+				return null;
+			}));
+		}
+		join(parts);
+	}
+
+	private void run(String command, List<String> paths, Report report, Ticker ticker) throws IOException {
+		run(command, paths, report, ticker, null);
+	}
+
+	/*
+	 * Sends command for every path, each worker pipelining chunks of paths on its own session
+	 * @param failedPaths: receives the paths that failed, may be null
+	 */
+	private void run(String command, List<String> paths, Report report, Ticker ticker, List<String> failedPaths) throws IOException {
+		AtomicInteger cursor = new AtomicInteger();
+		List<CompletableFuture<Void>> parts = new ArrayList<>();
+		int workersNeeded = Math.min(concurrency, (paths.size() + CHUNK - 1) / CHUNK);
+		for(int w = 0; w < workersNeeded; w++) {
+			parts.add(workers.submit(() -> {
+				FTPClient session = pool.borrow(null);
+				try {
+					int start;
+					while((start = cursor.getAndAdd(CHUNK)) < paths.size()) {
+						List<String> chunk = paths.subList(start, Math.min(paths.size(), start + CHUNK));
+						session = runChunk(session, command, chunk, report, ticker, failedPaths);
+					}
+					pool.release(session);
+					session = null;
+				} finally {
+					if(session != null) pool.invalidate(session);
+				}
+				return null;
+			}));
+		}
+		join(parts);
+	}
+
+	/*
+	 * @return FTPClient: the session to go on with, a new one if the pipeline broke the old one
+	 */
+	private FTPClient runChunk(FTPClient session, String command, List<String> chunk, Report report, Ticker ticker,
+			List<String> failedPaths) throws IOException {
+		int[] confirmed = {0};
+		ChannelFTPClient.ReplyHandler handler = (i, code, text) -> {
+			confirmed[0] = i + 1;
+			if(FTPReply.isPositiveCompletion(code)) {
+				report.success();
+			}else {
+				report.failure(chunk.get(i), text);
+				if(failedPaths != null) failedPaths.add(chunk.get(i));
+			}
+			ticker.tick(false);
+		};
+		try {
+			((ChannelFTPClient) session).pipeline(command, chunk, pipelineDepth, handler);
+			return session;
+		} catch (IOException e) {
+			// the server may not cope with pipelining: go on one command at a time on a new session
+			pool.invalidate(session);
+			FTPClient fresh = pool.borrow(null);
+			List<String> rest = chunk.subList(confirmed[0], chunk.size());
+			int offset = confirmed[0];
+			try {
+				((ChannelFTPClient) fresh).pipeline(command, rest, 1, (i, code, text) -> handler.reply(offset + i, code, text));
+			} catch (IOException again) {
+				pool.invalidate(fresh);
+				throw again;
+			}
+			return fresh;
+		}
+	}
+
+	private static void join(List<CompletableFuture<Void>> parts) throws IOException {
+		try {
+			CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).join();
+		} catch (CompletionException e) {
+			if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException("Bulk operation failed", e.getCause());
+		}
+	}
+
+	private static int depth(String path) {
+		int n = 0;
+		for(int i = 0; i < path.length(); i++) if(path.charAt(i) == '/') n++;
+		return n;
+	}
+
+	private static String parentOf(String path) {
+		int i = path.lastIndexOf('/');
+		return i <= 0 ? "/" : path.substring(0, i);
+	}
+
+	/*
+	 * Reports progress at most every PROGRESS_EVERY_MS
+	 */
+	private static class Ticker {
+		private final Report report;
+		private final Progress progress;
+		private long last;
+
+		Ticker(Report report, Progress progress) {
+			this.report = report;
+			this.progress = progress;
+		}
+
+		synchronized void tick(boolean force) {
+			if(progress == null) return;
+			long now = System.currentTimeMillis();
+			if(!force && now - last < PROGRESS_EVERY_MS) return;
+			last = now;
+			int done;
+			synchronized(report) {
+				done = report.done;
+			}
+			progress.update(done, report.total);
+		}
+	}
+}
@@ -0,0 +1,886 @@
+package services;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.SocketOption;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.net.ServerSocketFactory;
+import javax.net.SocketFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
+
+import jdk.net.ExtendedSocketOptions;
+
+import org.apache.commons.net.MalformedServerReplyException;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPClientConfig;
+import org.apache.commons.net.ftp.FTPCmd;
+import org.apache.commons.net.ftp.FTPFile;
+import org.apache.commons.net.ftp.FTPFileEntryParser;
+import org.apache.commons.net.ftp.FTPReply;
+import org.apache.commons.net.ftp.parser.DefaultFTPFileEntryParserFactory;
+import org.apache.commons.net.io.CRLFLineReader;
+
+/*
+ * FTPClient whose sockets are backed by NIO channels, and which hands out the
+ * raw data connection so the TransferEngine can move bytes with
+ * FileChannel.transferTo and direct buffers instead of heap streams.
+ * Socket options, data connection mode and buffer sizes come from its
+ * ConnectionProfile.
+ *
+ * The profile may also ask for FTPS, explicit (AUTH TLS after the greeting)
+ * or implicit (TLS from the first byte). Data connections are then
+ * protected too, with PROT P after login, and every one of them resumes the
+ * TLS session of the control connection: no full handshake per file, and
+ * servers that insist on the same session accept them. TLS sockets have no
+ * channel, so transfers go through their streams.
+ */
+public class ChannelFTPClient extends FTPClient {
+
+	private FTPFileEntryParser parser;
+
+	private volatile ConnectionProfile profile;
+	// keep-alive NOOPs sent during the current transfer, their replies not read yet
+	private int pendingNoops;
+	private long lastControlActivity;
+	// MODE Z: asked for the next data connection, in effect, advertised by the server (null = not asked yet)
+	private boolean deflateNext;
+	private boolean deflating;
+	private Boolean deflateSupported;
+	private boolean deflateLevelSent;
+	// algorithm HASH answers in on this connection, null until one was chosen
+	private String hashAlgorithm;
+	// TYPE and absolute working directory the server last accepted, so the same ones are not sent again
+	private int fileType = -1;
+	private String workingDirectory;
+	// data connection of the running file transfer, closed by the watchdog once it stalls
+	private volatile Socket transferSocket;
+	private volatile long lastDataActivity;
+	// TCP sockets under the TLS ones, for the options and the watchdog
+	private Socket plainSocket;
+	private Socket plainDataSocket;
+	// TLS of this client, its session cache is what data connections resume from
+	private SSLContext tls;
+	private String tlsPinned;
+	// host and port the control connection was opened to, the key of its cached session
+	private String tlsHost;
+	private int tlsPort;
+	private boolean secure;
+	private boolean protectData;
+
+	public ChannelFTPClient() {
+		setSocketFactory(new ChannelSocketFactory());
+		setServerSocketFactory(new ChannelServerSocketFactory());
+	}
+
+	/*
+	 * Uses the profile from the next connect on; data connection settings are
+	 * read again for every transfer
+	 */
+	public void setProfile(ConnectionProfile profile) {
+		this.profile = profile;
+		if(profile != null) profile.beforeConnect(this);
+	}
+
+	public ConnectionProfile getProfile() {
+		return profile;
+	}
+
+	@Override
+	protected void _connectAction_(Reader socketIsReader) throws IOException {
+		ConnectionProfile p = profile;
+		ConnectionProfile.Security security = p == null ? ConnectionProfile.Security.NONE : p.security;
+		plainSocket = _socket_;
+		secure = security != ConnectionProfile.Security.NONE;
+		protectData = false;
+		if(secure) {
+			if(tls == null || !p.tlsFingerprint.equals(tlsPinned)) {
+				tls = createContext(p.tlsFingerprint);
+				tlsPinned = p.tlsFingerprint;
+			}
+			tlsHost = _hostname_ != null ? _hostname_ : _socket_.getInetAddress().getHostAddress();
+			tlsPort = _socket_.getPort();
+		}
+		if(security == ConnectionProfile.Security.IMPLICIT) {
+			// the greeting is read by super, already over TLS
+			_socket_.setSoTimeout(_timeout_);
+			_socket_ = startTls(_socket_);
+		}
+		super._connectAction_(socketIsReader);
+		if(security == ConnectionProfile.Security.EXPLICIT) {
+			// a server that refuses TLS gets no password in cleartext
+			if(sendCommand("AUTH", "TLS") != FTPReply.SECURITY_DATA_EXCHANGE_COMPLETE) {
+				String reply = getReplyString().trim();
+				disconnect();
+				throw new SSLException("Server refused AUTH TLS: " + reply);
+			}
+			_socket_ = startTls(_socket_);
+			_input_ = _socket_.getInputStream();
+			_output_ = _socket_.getOutputStream();
+			_controlInput_ = new CRLFLineReader(new InputStreamReader(_input_, getControlEncoding()));
+			_controlOutput_ = new BufferedWriter(new OutputStreamWriter(_output_, getControlEncoding()));
+		}
+		deflating = false;
+		deflateSupported = null;
+		deflateLevelSent = false;
+		hashAlgorithm = null;
+		fileType = -1;
+		workingDirectory = null;
+		if(p != null) p.afterConnect(this);
+	}
+
+	/*
+	 * On a TLS connection, protects the data connections once logged in: RFC 4217
+	 * allows PBSZ and PROT before USER, but many servers only take them after
+	 */
+	@Override
+	public boolean login(String username, String password) throws IOException {
+		if(!super.login(username, password)) return false;
+		if(secure && !protectData) {
+			if(!FTPReply.isPositiveCompletion(sendCommand("PBSZ", "0")) || !FTPReply.isPositiveCompletion(sendCommand("PROT", "P"))) {
+				throw new SSLException("Server refused to protect data connections: " + getReplyString().trim());
+			}
+			protectData = true;
+		}
+		return true;
+	}
+
+	/*
+	 * Runs the TLS handshake as client over a connected socket, resuming the
+	 * session of the control connection if there is one
+	 */
+	private SSLSocket startTls(Socket socket) throws IOException {
+		SSLSocket ssl = (SSLSocket) tls.getSocketFactory().createSocket(socket, tlsHost, tlsPort, true);
+		ssl.setUseClientMode(true);
+		if(tlsPinned.isEmpty()) {
+			// without a pinned certificate it must at least be issued to this host
+			SSLParameters params = ssl.getSSLParameters();
+			params.setEndpointIdentificationAlgorithm("HTTPS");
+			ssl.setSSLParameters(params);
+		}
+		try {
+			ssl.startHandshake();
+		} catch (IOException e) {
+			ssl.close();
+			throw e;
+		}
+		return ssl;
+	}
+
+	/*
+	 * @param pinned: SHA-256 fingerprint the server certificate must have, empty to
+	 * check it against the trusted CAs of the JVM
+	 */
+	private static SSLContext createContext(String pinned) throws IOException {
+		try {
+			TrustManagerFactory factory = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+			factory.init((KeyStore) null);
+			X509ExtendedTrustManager trusted = null;
+			for(TrustManager t : factory.getTrustManagers()) {
+				if(t instanceof X509ExtendedTrustManager) trusted = (X509ExtendedTrustManager) t;
+			}
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, new TrustManager[]{new ServerTrust(trusted, pinned)}, null);
+			return context;
+		} catch (GeneralSecurityException e) {
+			throw new SSLException("TLS is not available", e);
+		}
+	}
+
+	/*
+	 * @return String: SHA-256 of the certificate as colon separated hex, the form pinned in profiles
+	 */
+	public static String fingerprint(X509Certificate certificate) throws CertificateException {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256").digest(certificate.getEncoded());
+			StringBuilder sb = new StringBuilder();
+			for(byte b : digest) {
+				if(sb.length() > 0) sb.append(':');
+				sb.append(String.format("%02X", b));
+			}
+			return sb.toString();
+		} catch (GeneralSecurityException e) {
+			throw new CertificateException(e);
+		}
+	}
+
+	/*
+	 * Trusts the server certificate with the pinned fingerprint, or else the ones
+	 * the JVM trusts; a refusal names the fingerprint so the user can pin it
+	 */
+	private static class ServerTrust extends X509ExtendedTrustManager {
+
+		private final X509ExtendedTrustManager trusted;
+		private final String pinned;
+
+		ServerTrust(X509ExtendedTrustManager trusted, String pinned) {
+			this.trusted = trusted;
+			this.pinned = pinned.replaceAll("[:\\s]", "");
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+			if(!isPinned(chain)) {
+				try {
+					trusted.checkServerTrusted(chain, authType, socket);
+				} catch (CertificateException e) {
+					throw refused(chain, e);
+				}
+			}
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+			if(!isPinned(chain)) {
+				try {
+					trusted.checkServerTrusted(chain, authType, engine);
+				} catch (CertificateException e) {
+					throw refused(chain, e);
+				}
+			}
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+			if(!isPinned(chain)) {
+				try {
+					trusted.checkServerTrusted(chain, authType);
+				} catch (CertificateException e) {
+					throw refused(chain, e);
+				}
+			}
+		}
+
+		/*
+		 * @return boolean: true if the certificate has the pinned fingerprint, false if
+		 * none is pinned; throws if another one is
+		 */
+		private boolean isPinned(X509Certificate[] chain) throws CertificateException {
+			if(pinned.isEmpty()) return false;
+			if(chain == null || chain.length == 0) throw new CertificateException("Server sent no certificate");
+			String actual = fingerprint(chain[0]);
+			if(!actual.replace(":", "").equalsIgnoreCase(pinned)) {
+				throw new CertificateException("Server certificate does not match the pinned one, its SHA-256 fingerprint is " + actual);
+			}
+			return true;
+		}
+
+		private static CertificateException refused(X509Certificate[] chain, CertificateException e) throws CertificateException {
+			if(chain == null || chain.length == 0) return e;
+			return new CertificateException(e.getMessage() + "; SHA-256 fingerprint of the server certificate: " + fingerprint(chain[0]), e);
+		}
+
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket) throws CertificateException {
+			throw new CertificateException("Client certificates are not accepted");
+		}
+
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine) throws CertificateException {
+			throw new CertificateException("Client certificates are not accepted");
+		}
+
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+			throw new CertificateException("Client certificates are not accepted");
+		}
+
+		@Override
+		public X509Certificate[] getAcceptedIssuers() {
+			return trusted == null ? new X509Certificate[0] : trusted.getAcceptedIssuers();
+		}
+	}
+
+	@Override
+	protected Socket _openDataConnection_(String command, String arg) throws IOException {
+		ConnectionProfile p = profile;
+		if(p != null) p.beforeDataConnection(this);
+		boolean deflate = deflateNext;
+		deflateNext = false;
+		// listings and other data connections opened by FTPClient itself are never compressed
+		if(deflate != deflating) setDeflating(deflate && isDeflateSupported(), p);
+		pendingNoops = 0;
+		lastControlActivity = System.currentTimeMillis();
+		Socket socket = super._openDataConnection_(command, arg);
+		plainDataSocket = socket;
+		if(socket == null) return null;
+		acknowledgeNow();
+		return protectData ? startTls(new ResumingSocket(socket, tlsPort)) : socket;
+	}
+
+	/*
+	 * A server that leaves Nagle's algorithm on holds back the transfer reply
+	 * until the preliminary one before it is acknowledged, and the delayed ACK
+	 * of a quiet control connection takes up to 40 ms: most of the time of a
+	 * small file. Turning quick ACK on sends the pending ACK right away.
+	 */
+	private void acknowledgeNow() {
+		Socket s = plainSocket;
+		if(s == null || !s.supportedOptions().contains(ExtendedSocketOptions.TCP_QUICKACK)) return;
+		try {
+			s.setOption(ExtendedSocketOptions.TCP_QUICKACK, true);
+		} catch (IOException e) {
+			// only a delay is at stake
+		}
+	}
+
+	/*
+	 * @return boolean: true if the server advertises MODE Z in FEAT; asked once per connection
+	 */
+	public boolean isDeflateSupported() throws IOException {
+		if(deflateSupported == null) deflateSupported = hasFeature("MODE", "Z");
+		return deflateSupported;
+	}
+
+	/*
+	 * @return boolean: true if the data connection opened last carries a zlib stream
+	 */
+	public boolean isDeflating() {
+		return deflating;
+	}
+
+	/*
+	 * Switches between MODE Z and MODE S only when the next transfer needs the
+	 * other one, so a run of compressed transfers costs no extra round trip
+	 */
+	private void setDeflating(boolean on, ConnectionProfile p) throws IOException {
+		if(!on) {
+			if(deflating && FTPReply.isPositiveCompletion(sendCommand("MODE", "S"))) deflating = false;
+			return;
+		}
+		if(!FTPReply.isPositiveCompletion(sendCommand("MODE", "Z"))) {
+			// advertised but refused: plain transfers from now on
+			deflateSupported = false;
+			return;
+		}
+		deflating = true;
+		if(!deflateLevelSent && p != null) {
+			// level the server compresses downloads with; not every server knows the option
+			deflateLevelSent = true;
+			try {
+				sendCommand("OPTS", "MODE Z LEVEL " + p.compressionLevel);
+			} catch (MalformedServerReplyException e) {
+				// some answer the unknown option with a bare code, the line is consumed anyway
+			}
+		}
+	}
+
+	/*
+	 * Sends TYPE only when it differs from the one in effect: every pooled
+	 * transfer asks for binary, and on small files that round trip counts
+	 */
+	@Override
+	public boolean setFileType(int fileType) throws IOException {
+		if(fileType == this.fileType) return true;
+		if(!super.setFileType(fileType)) return false;
+		this.fileType = fileType;
+		return true;
+	}
+
+	@Override
+	public boolean setFileType(int fileType, int formatOrByteSize) throws IOException {
+		this.fileType = -1;
+		return super.setFileType(fileType, formatOrByteSize);
+	}
+
+	/*
+	 * Answers a CWD to the absolute directory the session is already in without
+	 * asking the server, like the pool does before every borrowed transfer
+	 */
+	@Override
+	public int cwd(String directory) throws IOException {
+		if(directory != null && directory.startsWith("/") && directory.equals(workingDirectory)) return FTPReply.FILE_ACTION_OK;
+		workingDirectory = null;
+		int code = super.cwd(directory);
+		if(FTPReply.isPositiveCompletion(code) && directory != null && directory.startsWith("/")) workingDirectory = directory;
+		return code;
+	}
+
+	@Override
+	public int cdup() throws IOException {
+		workingDirectory = null;
+		return super.cdup();
+	}
+
+	/*
+	 * Makes HASH answer in the given algorithm, with OPTS HASH only when it is not
+	 * the one already chosen on this connection
+	 * @return boolean: true if the server accepted it
+	 */
+	public boolean selectHashAlgorithm(String algorithm) throws IOException {
+		if(algorithm.equals(hashAlgorithm)) return true;
+		if(!FTPReply.isPositiveCompletion(sendCommand("OPTS", "HASH " + algorithm))) return false;
+		hashAlgorithm = algorithm;
+		return true;
+	}
+
+	/*
+	 * Called by the TransferEngine while data flows, which also tells the stall
+	 * watchdog the transfer is alive: sends a NOOP on the control
+	 * connection once it has been quiet for the profile's keep-alive time, so
+	 * routers and servers do not drop it during a long transfer. Many servers
+	 * only answer once the transfer is over, so the reply is not waited for
+	 * here but read by completePendingCommand.
+	 */
+	public void keepAlive() {
+		lastDataActivity = System.currentTimeMillis();
+		long idle = getControlKeepAliveTimeout() * 1000;
+		if(idle <= 0 || _controlOutput_ == null) return;
+		long now = System.currentTimeMillis();
+		if(now - lastControlActivity < idle) return;
+		lastControlActivity = now;
+		try {
+			String message = FTPCmd.NOOP.getCommand() + "\r\n";
+			_controlOutput_.write(message);
+			_controlOutput_.flush();
+			fireCommandSent(FTPCmd.NOOP.getCommand(), message);
+			pendingNoops++;
+		} catch (IOException e) {
+			// the transfer itself will notice a dead connection
+		}
+	}
+
+	/*
+	 * Reads the transfer reply and those of the keep-alive NOOPs, which may come
+	 * before or after it; the NOOP replies are the 200 ones
+	 */
+	@Override
+	public boolean completePendingCommand() throws IOException {
+		if(pendingNoops == 0) return super.completePendingCommand();
+		int noops = pendingNoops;
+		pendingNoops = 0;
+		int code;
+		while((code = getReply()) == FTPReply.COMMAND_OK && noops > 0) noops--;
+		if(noops > 0) {
+			// replies still owed after the transfer reply are waited for only briefly
+			int timeout = getSoTimeout();
+			setSoTimeout(Math.max(1, getControlKeepAliveReplyTimeout()));
+			try {
+				for(; noops > 0; noops--) __getReplyNoReport();
+			} catch (SocketTimeoutException e) {
+				// this server does not answer NOOP during transfers at all
+			} finally {
+				setSoTimeout(timeout);
+			}
+		}
+		return FTPReply.isPositiveCompletion(code);
+	}
+
+	/*
+	 * Opens the data connection for a transfer command (REST is sent first if a
+	 * restart offset is set). The caller closes the socket and then calls
+	 * completePendingCommand().
+	 * @return Socket: the data connection, or null if the server refused the command
+	 */
+	public Socket openDataConnection(FTPCmd command, String arg) throws IOException {
+		return _openDataConnection_(command, arg);
+	}
+
+	/*
+	 * Like openDataConnection, but in MODE Z if the profile asks for compression
+	 * and the server supports it; isDeflating() then tells the data is a zlib stream
+	 */
+	public Socket openFileConnection(FTPCmd command, String arg) throws IOException {
+		ConnectionProfile p = profile;
+		deflateNext = p != null && p.compression;
+		Socket socket = _openDataConnection_(command, arg);
+		if(socket != null && p != null && p.timeoutSeconds > 0) {
+			// reads and writes on the socket channel ignore SO_TIMEOUT, so stalls are watched here;
+			// closing the TCP socket under a TLS one does not wait for a close_notify to be sent
+			transferSocket = plainDataSocket;
+			lastDataActivity = System.currentTimeMillis();
+			Watchdog.WATCHED.add(this);
+		}
+		return socket;
+	}
+
+	/*
+	 * Closes the data connection of a transfer that moved nothing for the
+	 * profile's timeout, which makes the blocked read or write fail
+	 * @return boolean: true once there is nothing left to watch
+	 */
+	private boolean closeIfStalled(long now) {
+		Socket s = transferSocket;
+		ConnectionProfile p = profile;
+		if(s == null || s.isClosed() || p == null || p.timeoutSeconds <= 0) return true;
+		if(now - lastDataActivity < p.timeoutSeconds * 1000L) return false;
+		try {
+			s.close();
+		} catch (IOException e) {
+			// closed anyway
+		}
+		return true;
+	}
+
+	/*
+	 * One thread checks the transfers of every client once a second
+	 */
+	private static class Watchdog {
+		static final Set<ChannelFTPClient> WATCHED = ConcurrentHashMap.newKeySet();
+
+		static {
+			Executors.newSingleThreadScheduledExecutor(TransferExecutor.daemonThreads("ftp-stall-watch")).scheduleWithFixedDelay(() -> {
+				long now = System.currentTimeMillis();
+				WATCHED.removeIf(c -> c.closeIfStalled(now));
+			}, 1, 1, TimeUnit.SECONDS);
+		}
+	}
+
+	/*
+	 * Lists a directory with LIST and hands every entry to the sink as soon as its
+	 * line arrives, without holding the whole listing like listFiles() or
+	 * FTPListParseEngine do
+	 * @param pathname: directory to list, null for the working directory
+	 * @return boolean: true if the server completed the listing
+	 */
+	public boolean streamList(String pathname, Consumer<FTPFile> sink) throws IOException {
+		FTPFileEntryParser parser = entryParser();
+		Socket socket = _openDataConnection_(FTPCmd.LIST, getListArguments(pathname));
+		if(socket == null) return false;
+		try(BufferedReader reader = new BufferedReader(new InputStreamReader(socket.getInputStream(), getControlEncoding()))) {
+			parseListing(reader, parser, sink);
+		} finally {
+			socket.close();
+		}
+		return completePendingCommand();
+	}
+
+	/*
+	 * Parses LIST output line by line, also used by the benchmarks without a server
+	 */
+	public static void parseListing(BufferedReader reader, FTPFileEntryParser parser, Consumer<FTPFile> sink) throws IOException {
+		String line;
+		while((line = parser.readNextEntry(reader)) != null) {
+			FTPFile f = parser.parseFTPEntry(line);
+			if(f != null) sink.accept(f);
+		}
+	}
+
+	/*
+	 * Receives the reply to one pipelined command
+	 */
+	public interface ReplyHandler {
+		void reply(int index, int code, String text);
+	}
+
+	/*
+	 * Sends command once for every argument without waiting for each reply,
+	 * keeping at most depth commands in flight. Replies come back in order.
+	 * @param depth: commands in flight, 1 sends them one by one
+	 */
+	public void pipeline(String command, List<String> args, int depth, ReplyHandler handler) throws IOException {
+		if(_controlOutput_ == null) throw new IOException("Connection is not open");
+		int window = Math.max(1, depth);
+		int sent = 0;
+		for(int received = 0; received < args.size(); received++) {
+			while(sent < args.size() && sent - received < window) {
+				String message = command + " " + args.get(sent++) + "\r\n";
+				_controlOutput_.write(message);
+				fireCommandSent(command, message);
+			}
+			_controlOutput_.flush();
+			int code = getReply();
+			handler.reply(received, code, getReplyString());
+		}
+	}
+
+	/*
+	 * Sends a command without waiting for its reply, which getReply() reads
+	 * later. Server to server copies need it: the target of an FXP copy may
+	 * only answer STOR once the source has connected to it.
+	 */
+	public void sendWithoutReply(String command, String arg) throws IOException {
+		if(_controlOutput_ == null) throw new IOException("Connection is not open");
+		String message = command + " " + arg + "\r\n";
+		_controlOutput_.write(message);
+		_controlOutput_.flush();
+		fireCommandSent(command, message);
+	}
+
+	private FTPFileEntryParser entryParser() throws IOException {
+		if(parser == null) {
+			String system;
+			try {
+				system = getSystemType();
+			} catch (IOException e) {
+				system = FTPClientConfig.SYST_UNIX;
+			}
+			parser = new DefaultFTPFileEntryParserFactory().createFileEntryParser(system);
+		}
+		return parser;
+	}
+
+	/*
+	 * A data connection as its TLS layer sees it. The JDK looks up the session
+	 * to resume by the host and port of the socket, and a data connection has a
+	 * port of its own, so this one answers with the port of the control
+	 * connection instead. It hides the channel too: the TLS socket hands out the
+	 * one of the socket below it, where bytes would bypass the encryption.
+	 */
+	private static class ResumingSocket extends Socket {
+
+		private final Socket socket;
+		private final int port;
+
+		ResumingSocket(Socket socket, int port) {
+			this.socket = socket;
+			this.port = port;
+		}
+
+		@Override
+		public int getPort() {
+			return port;
+		}
+
+		@Override
+		public SocketChannel getChannel() {
+			return null;
+		}
+
+		@Override
+		public InetAddress getInetAddress() {
+			return socket.getInetAddress();
+		}
+
+		@Override
+		public InetAddress getLocalAddress() {
+			return socket.getLocalAddress();
+		}
+
+		@Override
+		public int getLocalPort() {
+			return socket.getLocalPort();
+		}
+
+		@Override
+		public SocketAddress getRemoteSocketAddress() {
+			return socket.getRemoteSocketAddress();
+		}
+
+		@Override
+		public SocketAddress getLocalSocketAddress() {
+			return socket.getLocalSocketAddress();
+		}
+
+		@Override
+		public boolean isConnected() {
+			return socket.isConnected();
+		}
+
+		@Override
+		public boolean isBound() {
+			return socket.isBound();
+		}
+
+		@Override
+		public boolean isClosed() {
+			return socket.isClosed();
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return socket.getInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return socket.getOutputStream();
+		}
+
+		@Override
+		public void shutdownInput() throws IOException {
+			socket.shutdownInput();
+		}
+
+		@Override
+		public void shutdownOutput() throws IOException {
+			socket.shutdownOutput();
+		}
+
+		@Override
+		public boolean isInputShutdown() {
+			return socket.isInputShutdown();
+		}
+
+		@Override
+		public boolean isOutputShutdown() {
+			return socket.isOutputShutdown();
+		}
+
+		@Override
+		public void setSoTimeout(int timeout) throws SocketException {
+			socket.setSoTimeout(timeout);
+		}
+
+		@Override
+		public int getSoTimeout() throws SocketException {
+			return socket.getSoTimeout();
+		}
+
+		@Override
+		public void setTcpNoDelay(boolean on) throws SocketException {
+			socket.setTcpNoDelay(on);
+		}
+
+		@Override
+		public boolean getTcpNoDelay() throws SocketException {
+			return socket.getTcpNoDelay();
+		}
+
+		@Override
+		public void setSendBufferSize(int size) throws SocketException {
+			socket.setSendBufferSize(size);
+		}
+
+		@Override
+		public int getSendBufferSize() throws SocketException {
+			return socket.getSendBufferSize();
+		}
+
+		@Override
+		public void setReceiveBufferSize(int size) throws SocketException {
+			socket.setReceiveBufferSize(size);
+		}
+
+		@Override
+		public int getReceiveBufferSize() throws SocketException {
+			return socket.getReceiveBufferSize();
+		}
+
+		@Override
+		public void setKeepAlive(boolean on) throws SocketException {
+			socket.setKeepAlive(on);
+		}
+
+		@Override
+		public boolean getKeepAlive() throws SocketException {
+			return socket.getKeepAlive();
+		}
+
+		@Override
+		public void setSoLinger(boolean on, int linger) throws SocketException {
+			socket.setSoLinger(on, linger);
+		}
+
+		@Override
+		public int getSoLinger() throws SocketException {
+			return socket.getSoLinger();
+		}
+
+		@Override
+		public <T> Socket setOption(SocketOption<T> name, T value) throws IOException {
+			socket.setOption(name, value);
+			return this;
+		}
+
+		@Override
+		public <T> T getOption(SocketOption<T> name) throws IOException {
+			return socket.getOption(name);
+		}
+
+		@Override
+		public Set<SocketOption<?>> supportedOptions() {
+			return socket.supportedOptions();
+		}
+
+		@Override
+		public void close() throws IOException {
+			socket.close();
+		}
+
+		@Override
+		public String toString() {
+			return socket.toString();
+		}
+	}
+
+	private static class ChannelSocketFactory extends SocketFactory {
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return SocketChannel.open().socket();
+		}
+
+		@Override
+		public Socket createSocket(String host, int port) throws IOException {
+			return createSocket(InetAddress.getByName(host), port);
+		}
+
+		@Override
+		public Socket createSocket(InetAddress host, int port) throws IOException {
+			Socket s = createSocket();
+			s.connect(new InetSocketAddress(host, port));
+			return s;
+		}
+
+		@Override
+		public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+			return createSocket(InetAddress.getByName(host), port, localHost, localPort);
+		}
+
+		@Override
+		public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+			Socket s = createSocket();
+			s.bind(new InetSocketAddress(localAddress, localPort));
+			s.connect(new InetSocketAddress(address, port));
+			return s;
+		}
+	}
+
+	private static class ChannelServerSocketFactory extends ServerSocketFactory {
+
+		@Override
+		public ServerSocket createServerSocket() throws IOException {
+			return ServerSocketChannel.open().socket();
+		}
+
+		@Override
+		public ServerSocket createServerSocket(int port) throws IOException {
+			return createServerSocket(port, 50, null);
+		}
+
+		@Override
+		public ServerSocket createServerSocket(int port, int backlog) throws IOException {
+			return createServerSocket(port, backlog, null);
+		}
+
+		@Override
+		public ServerSocket createServerSocket(int port, int backlog, InetAddress ifAddress) throws IOException {
+			ServerSocket s = createServerSocket();
+			s.bind(new InetSocketAddress(ifAddress, port), backlog);
+			return s;
+		}
+	}
+}
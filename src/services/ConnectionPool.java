@@ -0,0 +1,222 @@
+package services;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+/*
+ * Pool of logged-in FTPClient sessions, so several transfers can run at once
+ * while the browsing session in MyClient stays free.
+ */
+public class ConnectionPool {
+
+	// Sessions idle for less than this are handed out without a NOOP round trip
+	private static final long HEALTH_CHECK_AFTER_MS = 5000;
+	private static final long WAIT_SLICE_MS = 250;
+
+	private final String server;
+	private final String username;
+	private final String password;
+	private final int size;
+
+	private final LinkedBlockingDeque<FTPClient> idle = new LinkedBlockingDeque<>();
+	private final Map<FTPClient, Long> lastUsed = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService keepAlive;
+
+	private int open;
+	private volatile boolean closed;
+	private volatile Consumer<FTPClient> initializer;
+
+	public ConnectionPool(String server, String username, String password, int size, long keepAliveSeconds) {
+		this.server = server;
+		this.username = username;
+		this.password = password;
+		this.size = Math.max(1, size);
+		keepAlive = Executors.newSingleThreadScheduledExecutor(TransferExecutor.daemonThreads("ftp-keepalive"));
+		if(keepAliveSeconds > 0) keepAlive.scheduleWithFixedDelay(this::sendKeepAlives, keepAliveSeconds, keepAliveSeconds, TimeUnit.SECONDS);
+	}
+
+	public String getServer() {
+		return server;
+	}
+
+	public int getSize() {
+		return size;
+	}
+
+	/*
+	 * Sets a hook run on every new session before it connects, e.g. to add listeners
+	 */
+	public void setSessionInitializer(Consumer<FTPClient> initializer) {
+		this.initializer = initializer;
+	}
+
+	/*
+	 * Borrows a session, opening a new one if the pool is not full, else waiting for a free one
+	 * @param workingDirectory: directory replayed on the session before it is returned
+	 */
+	public FTPClient borrow(String workingDirectory) throws IOException {
+		try {
+			while(true) {
+				FTPClient c = idle.pollFirst();
+				if(c == null) {
+					if(reserveSlot()) return prepare(openSession(), workingDirectory);
+					// wake up periodically in case a broken session freed its slot
+					c = idle.pollFirst(WAIT_SLICE_MS, TimeUnit.MILLISECONDS);
+					if(c == null) continue;
+				}
+				if(isHealthy(c)) return prepare(c, workingDirectory);
+				invalidate(c);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a pooled connection", e);
+		}
+	}
+
+	/*
+	 * Borrows a session only if one is available right now
+	 * @return FTPClient: the session, or null if every session is busy
+	 */
+	public FTPClient tryBorrow(String workingDirectory) throws IOException {
+		FTPClient c;
+		while((c = idle.pollFirst()) != null) {
+			if(isHealthy(c)) return prepare(c, workingDirectory);
+			invalidate(c);
+		}
+		return reserveSlot() ? prepare(openSession(), workingDirectory) : null;
+	}
+
+	public void release(FTPClient c) {
+		if(c == null) return;
+		if(closed || !c.isConnected()) {
+			invalidate(c);
+			return;
+		}
+		lastUsed.put(c, System.currentTimeMillis());
+		idle.offerFirst(c);
+	}
+
+	/*
+	 * Drops a broken session and frees its slot
+	 */
+	public void invalidate(FTPClient c) {
+		if(c == null) return;
+		lastUsed.remove(c);
+		synchronized(this) {
+			open--;
+		}
+		try {
+			if(c.isConnected()) c.disconnect();
+		} catch (IOException e) {
+			// the session is discarded anyway
+		}
+	}
+
+	/*
+	 * Drops every idle session, after the connection to the server was lost
+	 */
+	public void clearIdle() {
+		List<FTPClient> sessions = new ArrayList<>();
+		idle.drainTo(sessions);
+		for(FTPClient c : sessions) invalidate(c);
+	}
+
+	public void close() {
+		closed = true;
+		keepAlive.shutdownNow();
+		List<FTPClient> sessions = new ArrayList<>();
+		idle.drainTo(sessions);
+		for(FTPClient c : sessions) {
+			try {
+				if(c.isConnected()) {
+					c.logout();
+					c.disconnect();
+				}
+			} catch (IOException e) {
+				// closing anyway
+			}
+		}
+	}
+
+	private synchronized boolean reserveSlot() throws IOException {
+		if(closed) throw new IOException("Connection pool is closed");
+		if(open >= size) return false;
+		open++;
+		return true;
+	}
+
+	private FTPClient openSession() throws IOException {
+		FTPClient c = new ChannelFTPClient();
+		Consumer<FTPClient> init = initializer;
+		if(init != null) init.accept(c);
+		try {
+			c.connect(server);
+			if(!FTPReply.isPositiveCompletion(c.getReplyCode()) || !c.login(username, password)) {
+				throw new IOException("Pooled session refused by server: " + c.getReplyString());
+			}
+			c.setFileType(FTP.BINARY_FILE_TYPE);
+			return c;
+		} catch (IOException e) {
+			invalidate(c);
+			throw e;
+		}
+	}
+
+	private FTPClient prepare(FTPClient c, String workingDirectory) throws IOException {
+		try {
+			if(workingDirectory != null && !c.changeWorkingDirectory(workingDirectory)) {
+				throw new IOException("Cannot change pooled session to " + workingDirectory);
+			}
+			return c;
+		} catch (IOException e) {
+			invalidate(c);
+			throw e;
+		}
+	}
+
+	private boolean isHealthy(FTPClient c) {
+		if(!c.isConnected()) return false;
+		Long used = lastUsed.get(c);
+		if(used != null && System.currentTimeMillis() - used < HEALTH_CHECK_AFTER_MS) return true;
+		try {
+			return c.sendNoOp();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/*
+	 * Sends NOOP on idle sessions so the server does not drop them between transfers
+	 */
+	private void sendKeepAlives() {
+		int n = idle.size();
+		for(int i = 0; i < n; i++) {
+			FTPClient c = idle.pollLast();
+			if(c == null) return;
+			boolean alive;
+			try {
+				alive = c.isConnected() && c.sendNoOp();
+			} catch (IOException e) {
+				alive = false;
+			}
+			if(alive) {
+				lastUsed.put(c, System.currentTimeMillis());
+				idle.offerLast(c);
+			} else {
+				invalidate(c);
+			}
+		}
+	}
+}
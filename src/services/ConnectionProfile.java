@@ -0,0 +1,131 @@
+package services;
+
+import java.net.SocketException;
+
+import org.apache.commons.net.ftp.FTPClient;
+
+import classes.Model;
+
+/*
+ * Connection settings of one server: control port, data connection mode,
+ * buffer sizes, keep-alive and TCP options. A ChannelFTPClient reads its
+ * profile on every connect and every data connection, so a change made
+ * here, by the user or by the ConnectionTuner, reaches sessions that are
+ * already open from their next transfer on.
+ */
+public class ConnectionProfile {
+
+	// cleartext, AUTH TLS on the control port, or TLS from the first byte (FTPS_IMPLICIT_PORT)
+	public enum Security { NONE, EXPLICIT, IMPLICIT }
+
+	public final String host;
+	public volatile int port = Model.FTP_CONTROL_PORT;
+	// PASV/EPSV when set, else PORT/EPRT
+	public volatile boolean passive = Model.PROFILE_PASSIVE;
+	// copy buffer of the TransferEngine, one transferTo or read call at most
+	public volatile int bufferSize = Model.TRANSFER_BUFFER_SIZE;
+	// SO_SNDBUF / SO_RCVBUF of data connections, 0 leaves them to the OS
+	public volatile int socketBufferSize = Model.PROFILE_SOCKET_BUFFER_SIZE;
+	public volatile boolean tcpNoDelay = Model.PROFILE_TCP_NO_DELAY;
+	// MODE Z for file transfers when the server advertises it, with this deflate level (1-9)
+	public volatile boolean compression = Model.PROFILE_COMPRESSION;
+	public volatile int compressionLevel = Model.PROFILE_COMPRESSION_LEVEL;
+	// hash transfers while they stream and compare with the server's checksum
+	public volatile boolean verify = Model.PROFILE_VERIFY;
+	// server to server copies go straight from one server to the other (FXP) if both allow it
+	public volatile boolean fxp = Model.PROFILE_FXP;
+	// TLS on the control and data connections; the server certificate must match the pinned
+	// SHA-256 fingerprint if one is set, else be trusted by the JVM and name the host
+	public volatile Security security = Security.NONE;
+	public volatile String tlsFingerprint = "";
+	// NOOP on the control connection while a transfer runs longer than this, 0 disables it
+	public volatile long controlKeepAliveSeconds = Model.PROFILE_CONTROL_KEEP_ALIVE_SECONDS;
+	public volatile int controlKeepAliveReplyMillis = Model.PROFILE_CONTROL_KEEP_ALIVE_REPLY_MS;
+	// connect, reply and data timeout; a file transfer moving no byte for this long is cut. 0 waits forever
+	public volatile int timeoutSeconds = Model.PROFILE_TIMEOUT_SECONDS;
+	// NOOP on idle pooled sessions, 0 disables it
+	public volatile long idleKeepAliveSeconds = Model.POOL_KEEP_ALIVE_SECONDS;
+	// probe the buffer sizes at the first login to this server
+	public volatile boolean autoTune = Model.PROFILE_AUTO_TUNE;
+	// when the buffer sizes were last probed and the throughput they gave, 0 if never
+	public volatile long tunedAt;
+	public volatile long tunedBytesPerSecond;
+
+	public ConnectionProfile(String host) {
+		this.host = host;
+	}
+
+	public ConnectionProfile copy() {
+		ConnectionProfile p = new ConnectionProfile(host);
+		p.port = port;
+		p.passive = passive;
+		p.bufferSize = bufferSize;
+		p.socketBufferSize = socketBufferSize;
+		p.tcpNoDelay = tcpNoDelay;
+		p.compression = compression;
+		p.compressionLevel = compressionLevel;
+		p.verify = verify;
+		p.fxp = fxp;
+		p.security = security;
+		p.tlsFingerprint = tlsFingerprint;
+		p.controlKeepAliveSeconds = controlKeepAliveSeconds;
+		p.controlKeepAliveReplyMillis = controlKeepAliveReplyMillis;
+		p.timeoutSeconds = timeoutSeconds;
+		p.idleKeepAliveSeconds = idleKeepAliveSeconds;
+		p.autoTune = autoTune;
+		p.tunedAt = tunedAt;
+		p.tunedBytesPerSecond = tunedBytesPerSecond;
+		return p;
+	}
+
+	/*
+	 * @return int: the control port, the implicit FTPS one if TLS from the first byte
+	 * is asked for but the port was left at the FTP default
+	 */
+	public int controlPort() {
+		return security == Security.IMPLICIT && port == Model.FTP_CONTROL_PORT ? Model.FTPS_IMPLICIT_PORT : port;
+	}
+
+	/*
+	 * Settings taken before the control connection is opened
+	 */
+	void beforeConnect(FTPClient c) {
+		c.setDefaultPort(controlPort());
+		c.setBufferSize(bufferSize);
+		c.setControlKeepAliveTimeout(controlKeepAliveSeconds);
+		c.setControlKeepAliveReplyTimeout(controlKeepAliveReplyMillis);
+		int timeout = Math.max(0, timeoutSeconds) * 1000;
+		c.setConnectTimeout(timeout);
+		c.setDefaultTimeout(timeout);
+		c.setDataTimeout(timeout);
+	}
+
+	/*
+	 * Socket options of the open control connection. FTPClient resets the data
+	 * connection mode on every connect, so it is set here too.
+	 */
+	void afterConnect(FTPClient c) throws SocketException {
+		c.setTcpNoDelay(tcpNoDelay);
+		// lets NAT and firewalls see traffic on the control connection during long transfers
+		c.setKeepAlive(controlKeepAliveSeconds > 0);
+		beforeDataConnection(c);
+	}
+
+	/*
+	 * Settings read again before every data connection
+	 */
+	void beforeDataConnection(FTPClient c) {
+		if(passive && c.getDataConnectionMode() != FTPClient.PASSIVE_LOCAL_DATA_CONNECTION_MODE) c.enterLocalPassiveMode();
+		else if(!passive && c.getDataConnectionMode() != FTPClient.ACTIVE_LOCAL_DATA_CONNECTION_MODE) c.enterLocalActiveMode();
+		c.setSendDataSocketBufferSize(socketBufferSize);
+		c.setReceieveDataSocketBufferSize(socketBufferSize);
+		c.setBufferSize(bufferSize);
+	}
+
+	@Override
+	public String toString() {
+		return host + ":" + controlPort() + (security != Security.NONE ? " FTPS " + security.name().toLowerCase() : "") + (passive ? " bị động" : " chủ động") + ", bộ đệm " + TransferMetrics.formatBytes(bufferSize)
+				+ ", socket " + (socketBufferSize > 0 ? TransferMetrics.formatBytes(socketBufferSize) : "mặc định")
+				+ (compression ? ", nén mức " + compressionLevel : "") + (verify ? ", kiểm tra checksum" : "");
+	}
+}
@@ -0,0 +1,114 @@
+package services;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+/*
+ * Connection profiles of every server used so far, kept in one properties
+ * file as host.setting=value. A host that has no profile yet gets the
+ * defaults from Model.
+ */
+public class ConnectionProfiles {
+
+	private final Path file;
+	private final Map<String, ConnectionProfile> profiles = new TreeMap<>();
+
+	public ConnectionProfiles(Path file) {
+		this.file = file;
+		load();
+	}
+
+	/*
+	 * @return ConnectionProfile: the profile of host, shared by every caller so
+	 * changes reach the sessions using it; save() makes them permanent
+	 */
+	public synchronized ConnectionProfile get(String host) {
+		return profiles.computeIfAbsent(host, ConnectionProfile::new);
+	}
+
+	public synchronized void save() {
+		Properties props = new Properties();
+		for(ConnectionProfile p : profiles.values()) {
+			String k = p.host + ".";
+			props.setProperty(k + "port", Integer.toString(p.port));
+			props.setProperty(k + "passive", Boolean.toString(p.passive));
+			props.setProperty(k + "bufferSize", Integer.toString(p.bufferSize));
+			props.setProperty(k + "socketBufferSize", Integer.toString(p.socketBufferSize));
+			props.setProperty(k + "tcpNoDelay", Boolean.toString(p.tcpNoDelay));
+			props.setProperty(k + "compression", Boolean.toString(p.compression));
+			props.setProperty(k + "compressionLevel", Integer.toString(p.compressionLevel));
+			props.setProperty(k + "verify", Boolean.toString(p.verify));
+			props.setProperty(k + "fxp", Boolean.toString(p.fxp));
+			props.setProperty(k + "security", p.security.name());
+			props.setProperty(k + "tlsFingerprint", p.tlsFingerprint);
+			props.setProperty(k + "controlKeepAliveSeconds", Long.toString(p.controlKeepAliveSeconds));
+			props.setProperty(k + "controlKeepAliveReplyMillis", Integer.toString(p.controlKeepAliveReplyMillis));
+			props.setProperty(k + "timeoutSeconds", Integer.toString(p.timeoutSeconds));
+			props.setProperty(k + "idleKeepAliveSeconds", Long.toString(p.idleKeepAliveSeconds));
+			props.setProperty(k + "autoTune", Boolean.toString(p.autoTune));
+			props.setProperty(k + "tunedAt", Long.toString(p.tunedAt));
+			props.setProperty(k + "tunedBytesPerSecond", Long.toString(p.tunedBytesPerSecond));
+		}
+		try {
+			Files.createDirectories(file.getParent());
+			Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			try(Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				props.store(w, "FTP connection profiles");
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void load() {
+		if(!Files.exists(file)) return;
+		Properties props = new Properties();
+		try(Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			props.load(r);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		for(String key : props.stringPropertyNames()) {
+			// host names have dots, setting names do not
+			int dot = key.lastIndexOf('.');
+			if(dot <= 0) continue;
+			ConnectionProfile p = profiles.computeIfAbsent(key.substring(0, dot), ConnectionProfile::new);
+			String v = props.getProperty(key).trim();
+			try {
+				switch(key.substring(dot + 1)) {
+				case "port": p.port = Integer.parseInt(v); break;
+				case "passive": p.passive = Boolean.parseBoolean(v); break;
+				case "bufferSize": p.bufferSize = Integer.parseInt(v); break;
+				case "socketBufferSize": p.socketBufferSize = Integer.parseInt(v); break;
+				case "tcpNoDelay": p.tcpNoDelay = Boolean.parseBoolean(v); break;
+				case "compression": p.compression = Boolean.parseBoolean(v); break;
+				case "compressionLevel": p.compressionLevel = Integer.parseInt(v); break;
+				case "verify": p.verify = Boolean.parseBoolean(v); break;
+				case "fxp": p.fxp = Boolean.parseBoolean(v); break;
+				case "security": p.security = ConnectionProfile.Security.valueOf(v.toUpperCase()); break;
+				case "tlsFingerprint": p.tlsFingerprint = v; break;
+				case "controlKeepAliveSeconds": p.controlKeepAliveSeconds = Long.parseLong(v); break;
+				case "controlKeepAliveReplyMillis": p.controlKeepAliveReplyMillis = Integer.parseInt(v); break;
+				case "timeoutSeconds": p.timeoutSeconds = Integer.parseInt(v); break;
+				case "idleKeepAliveSeconds": p.idleKeepAliveSeconds = Long.parseLong(v); break;
+				case "autoTune": p.autoTune = Boolean.parseBoolean(v); break;
+				case "tunedAt": p.tunedAt = Long.parseLong(v); break;
+				case "tunedBytesPerSecond": p.tunedBytesPerSecond = Long.parseLong(v); break;
+				default: break;
+				}
+			} catch (IllegalArgumentException e) {
+				// a damaged value keeps its default
+			}
+		}
+	}
+}
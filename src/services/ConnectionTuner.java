@@ -0,0 +1,191 @@
+package services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+
+/*
+ * Finds the buffer sizes that move data fastest to and from one server.
+ * A probe file is uploaded and downloaded again on a pooled session with
+ * each candidate: first the copy buffer with the OS socket buffers, then
+ * socket buffer sizes with the best copy buffer, which is what matters on
+ * links with a large bandwidth-delay product. The probe file is removed
+ * from the server afterwards.
+ */
+public class ConnectionTuner {
+
+	private static final int KB = 1024;
+	private static final int[] BUFFER_SIZES = {64 * KB, 256 * KB, 1024 * KB, 4096 * KB};
+	private static final int[] SOCKET_BUFFER_SIZES = {0, 512 * KB, 2048 * KB, 8192 * KB};
+	// a candidate has to beat the smaller one by this much to be chosen
+	private static final double MIN_GAIN = 1.05;
+
+	public static class Sample {
+		public final int bufferSize;
+		public final int socketBufferSize;
+		public final long uploadBytesPerSecond;
+		public final long downloadBytesPerSecond;
+
+		Sample(int bufferSize, int socketBufferSize, long uploadBytesPerSecond, long downloadBytesPerSecond) {
+			this.bufferSize = bufferSize;
+			this.socketBufferSize = socketBufferSize;
+			this.uploadBytesPerSecond = uploadBytesPerSecond;
+			this.downloadBytesPerSecond = downloadBytesPerSecond;
+		}
+
+		/*
+		 * @return long: throughput of one upload plus one download
+		 */
+		public long getBytesPerSecond() {
+			if(uploadBytesPerSecond <= 0 || downloadBytesPerSecond <= 0) return 0;
+			return (long) (2.0 / (1.0 / uploadBytesPerSecond + 1.0 / downloadBytesPerSecond));
+		}
+
+		@Override
+		public String toString() {
+			return "bộ đệm " + TransferMetrics.formatBytes(bufferSize) + ", socket "
+					+ (socketBufferSize > 0 ? TransferMetrics.formatBytes(socketBufferSize) : "mặc định")
+					+ ": lên " + TransferMetrics.formatRate(uploadBytesPerSecond)
+					+ ", xuống " + TransferMetrics.formatRate(downloadBytesPerSecond);
+		}
+	}
+
+	public static class Result {
+		public final Sample best;
+		public final List<Sample> samples;
+
+		Result(Sample best, List<Sample> samples) {
+			this.best = best;
+			this.samples = samples;
+		}
+
+		@Override
+		public String toString() {
+			return best.toString();
+		}
+	}
+
+	private final ConnectionPool pool;
+	private final long probeBytes;
+	private final boolean directBuffers;
+
+	/*
+	 * @param probeBytes: size of the file sent and fetched for every candidate
+	 */
+	public ConnectionTuner(ConnectionPool pool, long probeBytes, boolean directBuffers) {
+		this.pool = pool;
+		this.probeBytes = probeBytes;
+		this.directBuffers = directBuffers;
+	}
+
+	/*
+	 * Probes the candidates in dir, which must be writable, and stores the best
+	 * sizes in the profile; the caller saves it
+	 */
+	public Result tune(ConnectionProfile profile, String dir) throws IOException {
+		Path local = Files.createTempFile("tfp-probe", ".bin");
+		String remote = ".tfp-probe-" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+		FTPClient session = pool.borrow(dir);
+		ChannelFTPClient c = (ChannelFTPClient) session;
+		ConnectionProfile original = c.getProfile();
+		List<Sample> samples = new ArrayList<>();
+		boolean clean = false;
+		try(FileChannel file = FileChannel.open(local, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			writeRandom(file, probeBytes);
+			session.setFileType(FTP.BINARY_FILE_TYPE);
+			// the first upload creates the probe file and warms up the path
+			ConnectionProfile plain = profile.copy();
+			plain.compression = false;
+			c.setProfile(plain);
+			if(!new TransferEngine(profile.bufferSize, directBuffers).upload(session, remote, file, 0, false, null)) {
+				throw new IOException("Cannot write the probe file in " + dir + ": " + session.getReplyString());
+			}
+			Sample best = null;
+			for(int size : BUFFER_SIZES) best = better(best, probe(c, file, remote, profile, size, 0), samples);
+			int bufferSize = best.bufferSize;
+			for(int socket : SOCKET_BUFFER_SIZES) {
+				if(socket == 0) continue;
+				best = better(best, probe(c, file, remote, profile, bufferSize, socket), samples);
+			}
+			session.deleteFile(remote);
+			clean = true;
+			profile.bufferSize = best.bufferSize;
+			profile.socketBufferSize = best.socketBufferSize;
+			profile.tunedAt = System.currentTimeMillis();
+			profile.tunedBytesPerSecond = best.getBytesPerSecond();
+			return new Result(best, samples);
+		} finally {
+			Files.deleteIfExists(local);
+			c.setProfile(original);
+			if(clean) {
+				pool.release(session);
+			}else {
+				// the session may be in the middle of a transfer; a fresh one removes the probe
+				pool.invalidate(session);
+				removeProbe(remote, dir);
+			}
+		}
+	}
+
+	private Sample probe(ChannelFTPClient session, FileChannel file, String remote, ConnectionProfile profile, int bufferSize,
+			int socketBufferSize) throws IOException {
+		ConnectionProfile candidate = profile.copy();
+		candidate.bufferSize = bufferSize;
+		candidate.socketBufferSize = socketBufferSize;
+		// the probe is random data, compressing it would only measure the CPU
+		candidate.compression = false;
+		session.setProfile(candidate);
+		TransferEngine engine = new TransferEngine(bufferSize, directBuffers);
+
+		long start = System.nanoTime();
+		if(!engine.upload(session, remote, file, 0, false, null)) throw new IOException("Probe upload failed: " + session.getReplyString());
+		long up = rate(probeBytes, System.nanoTime() - start);
+
+		start = System.nanoTime();
+		if(!engine.download(session, remote, 0, -1, file, null)) throw new IOException("Probe download failed: " + session.getReplyString());
+		long down = rate(probeBytes, System.nanoTime() - start);
+		return new Sample(bufferSize, socketBufferSize, up, down);
+	}
+
+	private static Sample better(Sample best, Sample candidate, List<Sample> samples) {
+		samples.add(candidate);
+		if(best == null || candidate.getBytesPerSecond() > best.getBytesPerSecond() * MIN_GAIN) return candidate;
+		return best;
+	}
+
+	private void removeProbe(String remote, String dir) {
+		FTPClient session = null;
+		try {
+			session = pool.borrow(dir);
+			session.deleteFile(remote);
+			pool.release(session);
+		} catch (IOException e) {
+			pool.invalidate(session);
+		}
+	}
+
+	private static long rate(long bytes, long nanos) {
+		return nanos <= 0 ? 0 : (long) (bytes * 1e9 / nanos);
+	}
+
+	private static void writeRandom(FileChannel file, long size) throws IOException {
+		ByteBuffer chunk = ByteBuffer.allocate(1024 * 1024);
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		long position = 0;
+		while(position < size) {
+			chunk.clear();
+			random.nextBytes(chunk.array());
+			chunk.limit((int) Math.min(chunk.capacity(), size - position));
+			while(chunk.hasRemaining()) position += file.write(chunk, position);
+		}
+	}
+}
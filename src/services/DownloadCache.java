@@ -0,0 +1,284 @@
+package services;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Local copies of downloaded files, so a file that did not change on the
+ * server is not fetched again. An entry is named by the hash of where the
+ * file came from and what the server said about it: origin, path, size and
+ * MDTM. A later download whose SIZE and MDTM still give the same name is
+ * served from the entry; any change on the server gives another name.
+ *
+ * Where the file system allows it, entries are hard links to the downloaded
+ * files and restored as hard links, so caching costs neither a copy nor
+ * disk space while the download is kept. Every entry carries the MDTM as
+ * its modification time: a file changed through one of its links gets
+ * another one and is dropped rather than served. Entries are evicted least
+ * recently used first once the cache outgrows its cap; their last access
+ * time keeps that order across runs.
+ */
+public class DownloadCache {
+
+	private static final DateTimeFormatter MDTM = DateTimeFormatter.ofPattern("yyyyMMddHHmmss");
+	private static final String TMP_SUFFIX = ".tmp";
+
+	private final Path dir;
+	private final long maxBytes;
+	private final boolean links;
+	// entry name -> size, least recently used first
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(16, 0.75f, true);
+	private long bytes;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong bytesSaved = new AtomicLong();
+
+	/*
+	 * @param maxBytes: size of all entries together, the least recently used go beyond it
+	 */
+	public DownloadCache(Path dir, long maxBytes) {
+		this.dir = dir;
+		this.maxBytes = maxBytes;
+		// without the link count a file written in place could not be told from its entry
+		links = FileSystems.getDefault().supportedFileAttributeViews().contains("unix");
+		load();
+	}
+
+	/*
+	 * Puts the cached copy of the remote file at local, replacing it
+	 * @param origin: the server and user the file came from
+	 * @param mdtm: MDTM timestamp as yyyyMMddHHmmss digits
+	 * @return boolean: false if there is no copy of this version of the file
+	 */
+	public boolean restore(String origin, String remotePath, long size, long mdtm, File local) throws IOException {
+		long modified = epochMillis(mdtm);
+		if(modified < 0 || size < 0) return false;
+		String name = name(origin, remotePath, size, mdtm);
+		synchronized(this) {
+			if(entries.get(name) == null) return false;
+		}
+		Path entry = dir.resolve(name);
+		BasicFileAttributes a;
+		try {
+			a = Files.readAttributes(entry, BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			drop(name);
+			return false;
+		}
+		if(a.size() != size || a.lastModifiedTime().toMillis() != modified) {
+			// written through a link since it was cached
+			drop(name);
+			return false;
+		}
+		Path target = local.toPath();
+		Files.deleteIfExists(target);
+		try {
+			if(!link(target, entry)) Files.copy(entry, target, StandardCopyOption.COPY_ATTRIBUTES);
+		} catch (NoSuchFileException e) {
+			// evicted meanwhile
+			drop(name);
+			return false;
+		}
+		touch(entry);
+		hits.incrementAndGet();
+		bytesSaved.addAndGet(size);
+		return true;
+	}
+
+	/*
+	 * Keeps the downloaded file local as the copy of that version of the remote
+	 * file. A file that cannot be cached is simply not; the download stands.
+	 */
+	public void store(String origin, String remotePath, long size, long mdtm, File local) {
+		long modified = epochMillis(mdtm);
+		if(modified < 0 || size < 0 || size > maxBytes) return;
+		String name = name(origin, remotePath, size, mdtm);
+		Path entry = dir.resolve(name);
+		Path tmp = dir.resolve(name + TMP_SUFFIX);
+		try {
+			Files.createDirectories(dir);
+			Files.deleteIfExists(tmp);
+			if(!link(tmp, local.toPath())) Files.copy(local.toPath(), tmp);
+			Files.setLastModifiedTime(tmp, FileTime.fromMillis(modified));
+			Files.move(tmp, entry, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			touch(entry);
+		} catch (IOException e) {
+			try {
+				Files.deleteIfExists(tmp);
+			} catch (IOException ignored) {
+				// left for the next start to clean up
+			}
+			return;
+		}
+		List<String> evicted = new ArrayList<>();
+		synchronized(this) {
+			Long old = entries.put(name, size);
+			bytes += size - (old == null ? 0 : old);
+			Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+			while(bytes > maxBytes && it.hasNext()) {
+				Map.Entry<String, Long> e = it.next();
+				if(e.getKey().equals(name)) continue;
+				bytes -= e.getValue();
+				evicted.add(e.getKey());
+				it.remove();
+			}
+		}
+		for(String e : evicted) delete(e);
+	}
+
+	/*
+	 * Unlinks local from the cache before a download writes into it in place,
+	 * which would change the cached copy too
+	 */
+	public void detach(File local) throws IOException {
+		if(!links) return;
+		Path p = local.toPath();
+		try {
+			if((Integer) Files.getAttribute(p, "unix:nlink") > 1) Files.delete(p);
+		} catch (NoSuchFileException e) {
+			// nothing to detach
+		}
+	}
+
+	/*
+	 * @return long: downloads served from the cache since it was opened
+	 */
+	public long getHits() {
+		return hits.get();
+	}
+
+	/*
+	 * @return long: bytes that were not downloaded thanks to the cache
+	 */
+	public long getBytesSaved() {
+		return bytesSaved.get();
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return entries.size() + " tệp, " + TransferMetrics.formatBytes(bytes) + " / " + TransferMetrics.formatBytes(maxBytes);
+	}
+
+	/*
+	 * Reads the entries left by earlier runs, in the order they were last used
+	 */
+	private void load() {
+		if(!Files.isDirectory(dir)) return;
+		List<Path> files = new ArrayList<>();
+		Map<Path, BasicFileAttributes> attributes = new LinkedHashMap<>();
+		try(DirectoryStream<Path> ds = Files.newDirectoryStream(dir)) {
+			for(Path p : ds) {
+				if(p.getFileName().toString().endsWith(TMP_SUFFIX)) {
+					// an interrupted store
+					Files.deleteIfExists(p);
+					continue;
+				}
+				BasicFileAttributes a = Files.readAttributes(p, BasicFileAttributes.class);
+				if(!a.isRegularFile()) continue;
+				files.add(p);
+				attributes.put(p, a);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		files.sort(Comparator.comparing(p -> attributes.get(p).lastAccessTime()));
+		synchronized(this) {
+			for(Path p : files) {
+				long size = attributes.get(p).size();
+				entries.put(p.getFileName().toString(), size);
+				bytes += size;
+			}
+		}
+	}
+
+	/*
+	 * @return boolean: true if link was made a hard link to existing, false if it must be copied
+	 */
+	private boolean link(Path link, Path existing) {
+		if(!links) return false;
+		try {
+			Files.createLink(link, existing);
+			return true;
+		} catch (IOException | UnsupportedOperationException e) {
+			// another file system, or one without hard links
+			return false;
+		}
+	}
+
+	/*
+	 * Marks the entry as just used; the access time is what orders entries after a restart
+	 */
+	private static void touch(Path entry) {
+		try {
+			Files.getFileAttributeView(entry, BasicFileAttributeView.class).setTimes(null, FileTime.fromMillis(System.currentTimeMillis()), null);
+		} catch (IOException e) {
+			// only the eviction order is at stake
+		}
+	}
+
+	private void drop(String name) {
+		synchronized(this) {
+			Long size = entries.remove(name);
+			if(size != null) bytes -= size;
+		}
+		delete(name);
+	}
+
+	private void delete(String name) {
+		try {
+			Files.deleteIfExists(dir.resolve(name));
+		} catch (IOException e) {
+			// counted out already, found again on the next start
+		}
+	}
+
+	private static String name(String origin, String remotePath, long size, long mdtm) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-256")
+					.digest((origin + "\n" + remotePath + "\n" + size + "\n" + mdtm).getBytes(StandardCharsets.UTF_8));
+			StringBuilder sb = new StringBuilder();
+			for(byte b : digest) sb.append(String.format("%02x", b));
+			return sb.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/*
+	 * @return long: the MDTM timestamp, which is in UTC, as epoch milliseconds; -1 if it is not one
+	 */
+	private static long epochMillis(long mdtm) {
+		if(mdtm < 0) return -1;
+		try {
+			return LocalDateTime.parse(Long.toString(mdtm), MDTM).toInstant(ZoneOffset.UTC).toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package services;
+
+import javax.swing.AbstractListModel;
+
+/*
+ * ListModel over a RemoteListing that is still being filled. Row 0 is the
+ * "/" entry used to go up; the other rows are built on demand as
+ * "(DIR) name" or "name". Only the first published entries are visible,
+ * and publish() fires one event per chunk instead of one per entry.
+ * Must be used on the EDT.
+ */
+public class FileListModel extends AbstractListModel<String> {
+
+	private static final long serialVersionUID = 1L;
+
+	private final String parentEntry;
+	private final RemoteListing listing;
+	private int published;
+
+	public FileListModel(String parentEntry, RemoteListing listing) {
+		this.parentEntry = parentEntry;
+		this.listing = listing;
+	}
+
+	public static FileListModel empty() {
+		return new FileListModel(null, new RemoteListing());
+	}
+
+	public RemoteListing getListing() {
+		return listing;
+	}
+
+	/*
+	 * Makes the entries appended to the listing so far visible
+	 */
+	public void publish() {
+		int n = listing.size();
+		if(n <= published) return;
+		int first = published;
+		published = n;
+		fireIntervalAdded(this, first + offset(), n - 1 + offset());
+	}
+
+	@Override
+	public int getSize() {
+		return published + offset();
+	}
+
+	@Override
+	public String getElementAt(int index) {
+		if(parentEntry != null && index == 0) return parentEntry;
+		int i = index - offset();
+		String name = listing.getName(i);
+		return listing.isDirectory(i) ? "(DIR) " + name : name;
+	}
+
+	private int offset() {
+		return parentEntry == null ? 0 : 1;
+	}
+}
@@ -0,0 +1,1006 @@
+package services;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPConnectionClosedException;
+
+import classes.Model;
+
+/*
+ * FTP client without any UI: one browsing session plus a pool of sessions
+ * for transfers, the listing cache, the persistent transfer queue and sync.
+ * Every operation runs in background and returns a CompletableFuture; what
+ * the user should see is reported to the FtpListener. Used by the Swing UI
+ * through MyClient and by the command line through cli.Main.
+ *
+ * Both kinds of sessions are watched by a SessionSupervisor: when the
+ * connection drops, the browsing session logs in again and goes back to
+ * its working directory, and a queued transfer waits for the pool to reach
+ * the server again and then continues from where the journal says it stopped.
+ */
+public class FtpEngine {
+
+	// Streamed listings are reported every LIST_CHUNK entries or LIST_PUBLISH_MS
+	private static final int LIST_CHUNK = 2000;
+	private static final long LIST_PUBLISH_MS = 100;
+
+	private final FtpListener listener;
+	private final int parallelism;
+
+	// Absolute working directory of the browsing session, replayed on pooled sessions
+	private volatile String workingDirectory = "/";
+	// set once a listing was shown, so transfers know to refresh it
+	private volatile boolean browsing;
+	// a refresh not started yet, shared by the calls that come meanwhile
+	private final AtomicReference<CompletableFuture<Void>> queuedRefresh = new AtomicReference<>();
+
+	private final ChannelFTPClient client;
+	private final TransferExecutor executor;
+	private final TransferExecutor transfers;
+
+	private volatile String server;
+	private volatile int port = FTP.DEFAULT_PORT;
+	// credentials of the running login, replayed on reconnect; null while logged out
+	private volatile String username;
+	private volatile String password;
+	private final SessionSupervisor browsingSupervisor;
+	private final SessionSupervisor poolSupervisor;
+	private volatile ConnectionPool pool;
+	private volatile SegmentedDownloader downloader;
+	private volatile TransferQueue queue;
+	private volatile ListingPrefetcher prefetcher;
+	private volatile BulkOperations bulk;
+	private volatile IndexCrawler indexer;
+	private volatile boolean indexing = Model.INDEX_ENABLED;
+	private final TransferJournal journal;
+	// null when disabled
+	private final DownloadCache cache;
+	private final TransferEngine engine;
+	private final ListingCache listingCache;
+	private final TransferMetrics metrics;
+	private final BandwidthLimiter limiter;
+	private final ConnectionProfiles profiles;
+	private volatile ConnectionProfile profile;
+	// the manager whose journal, cache, profiles, bandwidth and metrics this engine shares, null if it has its own
+	private final SessionManager manager;
+
+	/*
+	 * @param listener: receives messages and listings, may be null
+	 * @param parallelism: number of pooled sessions and of transfers running at once
+	 */
+	public FtpEngine(FtpListener listener, int parallelism) {
+		this(listener, parallelism, null);
+	}
+
+	/*
+	 * @param manager: shares its journal, download cache, profiles, bandwidth limits and metrics with this engine
+	 */
+	FtpEngine(FtpListener listener, int parallelism, SessionManager manager) {
+		this.listener = listener != null ? listener : new FtpListener() {};
+		this.parallelism = Math.max(1, parallelism);
+		this.manager = manager;
+		client = new ChannelFTPClient();
+		executor = new TransferExecutor("ftp-worker");
+		transfers = new TransferExecutor("ftp-transfer", this.parallelism);
+		listingCache = new ListingCache(Model.LISTING_CACHE_SIZE, Model.LISTING_CACHE_TTL_MS);
+		if(manager != null) {
+			engine = manager.engine;
+			journal = manager.journal;
+			cache = manager.cache;
+			profiles = manager.profiles;
+			limiter = manager.limiter;
+			metrics = manager.metrics;
+		}else {
+			engine = new TransferEngine(Model.TRANSFER_BUFFER_SIZE, Model.TRANSFER_DIRECT_BUFFERS);
+			journal = new TransferJournal(Paths.get(System.getProperty("user.home"), Model.APP_DIR, Model.JOURNAL_FILE));
+			cache = Model.CACHE_ENABLED ? new DownloadCache(Paths.get(System.getProperty("user.home"), Model.APP_DIR, Model.CACHE_DIR),
+					Model.CACHE_MAX_BYTES) : null;
+			profiles = new ConnectionProfiles(Paths.get(System.getProperty("user.home"), Model.APP_DIR, Model.PROFILES_FILE));
+			limiter = new BandwidthLimiter(Model.BANDWIDTH_GLOBAL_LIMIT, Model.BANDWIDTH_TRANSFER_LIMIT);
+			metrics = new TransferMetrics(engine, Model.METRICS_LOG_SECONDS);
+			metrics.register();
+		}
+		client.addProtocolCommandListener(metrics.commandListener());
+		browsingSupervisor = new SessionSupervisor(this::reconnectBrowsing, this.listener, Model.RECONNECT_MAX_ATTEMPTS,
+				Model.RECONNECT_BASE_DELAY_MS, Model.RECONNECT_MAX_DELAY_MS);
+		poolSupervisor = new SessionSupervisor(this::reconnectPool, this.listener, Model.RECONNECT_MAX_ATTEMPTS,
+				Model.RECONNECT_BASE_DELAY_MS, Model.RECONNECT_MAX_DELAY_MS);
+	}
+
+	public TransferMetrics getMetrics() {
+		return metrics;
+	}
+
+	/*
+	 * @return DownloadCache: copies of downloaded files, null when disabled
+	 */
+	public DownloadCache getDownloadCache() {
+		return cache;
+	}
+
+	/*
+	 * @return BandwidthLimiter: global and per-transfer limits, changes apply to running transfers
+	 */
+	public BandwidthLimiter getBandwidthLimiter() {
+		return limiter;
+	}
+
+	public String getWorkingDirectory() {
+		return workingDirectory;
+	}
+
+	/*
+	 * @return String: host of the last connect, null before
+	 */
+	public String getServer() {
+		return server;
+	}
+
+	/*
+	 * @return String: user of the running login, null while logged out
+	 */
+	public String getUsername() {
+		return username;
+	}
+
+	public boolean isConnected() {
+		return client.isConnected();
+	}
+
+	/*
+	 * @return ConnectionProfile: the settings used for host, with the defaults if it has none
+	 * yet; changes apply from the next transfer on and are kept by saveProfiles()
+	 */
+	public ConnectionProfile getProfile(String host) {
+		return profiles.get(host);
+	}
+
+	public void saveProfiles() {
+		profiles.save();
+	}
+
+	/*
+	 * Gets connection with ftp server on the port of its profile
+	 * @return CompletableFuture<Integer>: 0 if connection is ok and -1 if error occurs
+	 */
+	public CompletableFuture<Integer> connect(String server) {
+		return connect(server, profiles.get(server).controlPort());
+	}
+
+	/*
+	 * Gets connection with ftp server
+	 * @param port: overrides the port of the profile for this connection
+	 * @return CompletableFuture<Integer>: 0 if connection is ok and -1 if error occurs
+	 */
+	public CompletableFuture<Integer> connect(String server, int port) {
+		return executor.submit(() -> {
+			try {
+				ConnectionProfile p = profiles.get(server);
+				client.setProfile(p);
+				client.setDefaultPort(port);
+				client.connect(server);
+				this.server = server;
+				this.port = port;
+				profile = p;
+				return 0;
+			}catch(IOException e){
+				listener.error("Máy chủ không khả dụng, hãy kiểm tra kết nối"+ e);
+				return -1;
+			}
+		});
+	}
+
+	/*
+	 * Login of the user
+	 * @return CompletableFuture<Integer>: 1 if is logged, 0 if is not logged and -1 if error occurs
+	 */
+	public CompletableFuture<Integer> login(String username, String password) {
+		return executor.submit(() -> {
+			try {
+				boolean login = client.login(username, password);
+				if(login) {
+					this.username = username;
+					this.password = password;
+					workingDirectory = client.printWorkingDirectory();
+					listingCache.clear();
+					int p = port;
+					ConnectionProfile cfg = profile;
+					ConnectionPool cp = new ConnectionPool(server, username, password, parallelism, cfg.idleKeepAliveSeconds);
+					cp.setSessionInitializer(c -> {
+						((ChannelFTPClient) c).setProfile(cfg);
+						c.setDefaultPort(p);
+						c.addProtocolCommandListener(metrics.commandListener());
+					});
+					pool = cp;
+					downloader = new SegmentedDownloader(cp, engine, journal, metrics, limiter, Model.DOWNLOAD_SEGMENTS, Model.DOWNLOAD_MIN_SEGMENT_SIZE);
+					downloader.setCache(cache, username + "@" + server + ":" + p);
+					bulk = new BulkOperations(cp, parallelism, Model.BULK_PIPELINE_DEPTH);
+					if(Model.PREFETCH_ENABLED)
+						prefetcher = new ListingPrefetcher(cp, listingCache, Model.PREFETCH_DEPTH, Model.PREFETCH_MAX_DIRS, Model.PREFETCH_CONCURRENCY);
+					queue = new TransferQueue(Paths.get(System.getProperty("user.home"), Model.APP_DIR,
+							Model.QUEUE_FILE_PREFIX + (server + "_" + username).replaceAll("[^A-Za-z0-9._-]", "_") + ".properties"),
+							this::runJob, parallelism, Model.TRANSFER_MAX_ATTEMPTS, Model.TRANSFER_RETRY_DELAY_MS);
+					if(indexing) {
+						indexer = new IndexCrawler(cp, indexDir(server, username), workingDirectory, Model.INDEX_CONCURRENCY,
+								Model.INDEX_REFRESH_MINUTES, Model.INDEX_FULL_CRAWL_HOURS);
+						indexer.start(null);
+					}
+					if(cfg.compression && !client.isDeflateSupported()) listener.message("Máy chủ không hỗ trợ MODE Z, truyền không nén");
+					if(cfg.autoTune && cfg.tunedAt == 0) tune();
+				}
+				return login ? 1 : 0;
+			} catch (IOException e) {
+				listener.error("Lỗi khi cố gắng đăng nhập");
+				return -1;
+			}
+		});
+	}
+
+	/*
+	 * Probes buffer sizes against the server in the working directory, which
+	 * must be writable, and keeps the fastest in the server's profile
+	 * @return CompletableFuture<ConnectionTuner.Result>: every measured candidate and the one chosen
+	 */
+	public CompletableFuture<ConnectionTuner.Result> tune() {
+		return transfers.submit(() -> {
+			ConnectionProfile p = profile;
+			try {
+				listener.message("Đang tối ưu kết nối tới " + p.host + "...");
+				ConnectionTuner tuner = new ConnectionTuner(requirePool(), Model.TUNE_PROBE_BYTES, Model.TRANSFER_DIRECT_BUFFERS);
+				ConnectionTuner.Result result = tuner.tune(p, workingDirectory);
+				profiles.save();
+				listener.message("Đã tối ưu kết nối: " + result);
+				return result;
+			} catch (IOException e) {
+				listener.error("Không thể tối ưu kết nối: " + e.getMessage());
+				throw e;
+			}
+		});
+	}
+
+	/*
+	 * Searches the local index of the server, without any round trip
+	 * @param query: name, glob or criteria as read by RemoteIndex.Query.parse
+	 * @return List<RemoteIndex.Hit>: at most limit matches, empty while the first crawl runs
+	 */
+	public List<RemoteIndex.Hit> search(String query, int limit) {
+		IndexCrawler ic = indexer;
+		RemoteIndex idx = ic != null ? ic.getIndex() : null;
+		if(idx == null) return new ArrayList<>();
+		return idx.search(RemoteIndex.Query.parse(query), limit);
+	}
+
+	/*
+	 * @return RemoteIndex: the index searched by search(), null if there is none yet
+	 */
+	public RemoteIndex getIndex() {
+		IndexCrawler ic = indexer;
+		return ic != null ? ic.getIndex() : null;
+	}
+
+	/*
+	 * @return boolean: true if the index is missing or due for a refresh
+	 */
+	public boolean isIndexStale() {
+		IndexCrawler ic = indexer;
+		return ic == null || ic.isStale();
+	}
+
+	/*
+	 * Turns the background index of the servers logged in from now on on or off
+	 */
+	public void setIndexing(boolean indexing) {
+		this.indexing = indexing;
+	}
+
+	/*
+	 * Refreshes the index now instead of waiting for the next scheduled refresh
+	 * @param full: list every directory again, not only those whose MDTM changed
+	 * @return CompletableFuture<RemoteIndex>: the new index
+	 */
+	public CompletableFuture<RemoteIndex> reindex(boolean full) {
+		return transfers.submit(() -> {
+			IndexCrawler ic = indexer;
+			if(ic == null) throw new IOException("Not logged in");
+			try {
+				RemoteIndex idx = ic.crawl(full, (dirs, entries) -> listener.message("Đang lập chỉ mục: " + dirs + " thư mục, " + entries + " mục"));
+				listener.message("Đã lập chỉ mục " + idx);
+				return idx;
+			} catch (IOException e) {
+				listener.error("Không thể lập chỉ mục: " + e.getMessage());
+				throw e;
+			}
+		});
+	}
+
+	public CompletableFuture<Integer> logout() {
+		return executor.submit(() -> {
+			username = null;
+			closePool();
+			browsing = false;
+			if(client.isConnected()) {
+				return client.logout() ? 1 : 0;
+			}
+			return -1;
+		});
+	}
+
+	public CompletableFuture<Void> disconnect() {
+		return executor.submit(() -> {
+			username = null;
+			closePool();
+			if(client.isConnected()) client.disconnect();
+			return null;
+		});
+	}
+
+	/*
+	 * Enters dir, absolute or relative to the working directory, and shows its listing
+	 */
+	public CompletableFuture<Void> changeDirectory(String dir) {
+		return browse(() -> {
+			changeToDir(dir);
+			showListing();
+			return null;
+		});
+	}
+
+	public CompletableFuture<Void> changeToParentDirectory() {
+		return browse(() -> {
+			changeToParentDir();
+			showListing();
+			return null;
+		});
+	}
+
+	/*
+	 * Lists the working directory again. Calls made while a refresh waits for the
+	 * browsing session share it, so a burst of finished transfers costs one LIST.
+	 */
+	public CompletableFuture<Void> refresh() {
+		CompletableFuture<Void> queued = new CompletableFuture<>();
+		CompletableFuture<Void> waiting = queuedRefresh.compareAndExchange(null, queued);
+		if(waiting != null) return waiting;
+		browse(() -> {
+			// from here on a new change needs a new listing
+			queuedRefresh.compareAndSet(queued, null);
+			showListing();
+			return null;
+		}).whenComplete((v, ex) -> {
+			if(ex != null) queued.completeExceptionally(ex);
+			else queued.complete(null);
+		});
+		return queued;
+	}
+
+	/*
+	 * Lists a directory without showing it, from the cache when it is fresh
+	 * @return CompletableFuture<RemoteListing>: the entries, completed exceptionally if LIST failed
+	 */
+	public CompletableFuture<RemoteListing> list(String dir) {
+		return browse(() -> {
+			String path = absolute(dir);
+			RemoteListing cached = listingCache.get(path);
+			if(cached != null) return cached;
+			RemoteListing listing = new RemoteListing();
+			if(!client.streamList(path, listing::add)) throw new IOException("LIST " + path + ": " + client.getReplyString());
+			listingCache.put(path, listing);
+			return listing;
+		});
+	}
+
+	/*
+	 * Shows the working directory listing: straight from the cache when it is
+	 * fresh, else streamed from LIST and reported in chunks so the first
+	 * entries are visible while the rest is still arriving
+	 */
+	private void showListing() throws IOException {
+		if(!client.isConnected()) return;
+		browsing = true;
+		String dir = workingDirectory;
+		RemoteListing cached = listingCache.get(dir);
+		if(cached != null) {
+			listener.listingStarted(dir, cached);
+			listener.listingFinished(dir, cached, true);
+			prefetch(dir, cached);
+			return;
+		}
+		RemoteListing listing = new RemoteListing();
+		listener.listingStarted(dir, listing);
+		boolean complete = false;
+		try{
+			int[] pending = {0};
+			long[] last = {System.currentTimeMillis()};
+			complete = client.streamList(dir, f -> {
+				listing.add(f);
+				long now = System.currentTimeMillis();
+				if(++pending[0] >= LIST_CHUNK || now - last[0] >= LIST_PUBLISH_MS) {
+					pending[0] = 0;
+					last[0] = now;
+					listener.listingUpdated(dir, listing);
+				}
+			});
+			if(complete) {
+				listingCache.put(dir, listing);
+				prefetch(dir, listing);
+			}
+		}catch(IOException e){
+			if(SessionSupervisor.isConnectionLoss(e)) throw e;
+			listener.error("Lỗi khi thu thập danh sách tệp.");
+		}finally{
+			listener.listingFinished(dir, listing, complete);
+		}
+	}
+
+	/*
+	 * The parent path is derived from the known working directory. Commands of the
+	 * browsing session use absolute paths: the server is always sent to the
+	 * absolute directory, which costs no round trip when it is already there, and
+	 * only the LIST of a directory whose listing is cached is saved.
+	 */
+	private void changeToParentDir() throws IOException {
+		if(workingDirectory.equals("/")) return;
+		enter(parentOf(workingDirectory));
+	}
+
+	private void changeToDir(String dir) throws IOException {
+		enter(normalize(absolute(dir)));
+	}
+
+	private void enter(String target) throws IOException {
+		try{
+			if(client.changeWorkingDirectory(target)) workingDirectory = target;
+			else listener.error("Không thể vào thư mục " + target);
+		}catch(IOException e){
+			if(SessionSupervisor.isConnectionLoss(e)) throw e;
+			listener.error("Mất kết nối với máy chủ");
+		}
+	}
+
+	/*
+	 * Queues the given files, and every file below the given directories, for
+	 * upload into remoteDir. A shown listing is refreshed once when the whole
+	 * batch is done.
+	 * @return CompletableFuture<TransferQueue.Batch>: the finished batch with its failed jobs
+	 */
+	public CompletableFuture<TransferQueue.Batch> upload(File[] files, String remoteDir) {
+		String dir = absolute(remoteDir);
+		CompletableFuture<TransferQueue.Batch> done = transfers.submit(() -> requireQueue().submit(prepareUploads(files, dir)))
+				.thenCompose(TransferQueue.Batch::future);
+		done.whenComplete((batch, ex) -> {
+			if(ex != null) listener.error("Lỗi tải lên máy chủ." + ex.getCause());
+			else reportUploads(batch);
+			if(browsing) refresh();
+		});
+		return done;
+	}
+
+	/*
+	 * Creates the remote directory tree for the selected directories and builds one job per file
+	 */
+	private List<TransferQueue.Job> prepareUploads(File[] files, String dir) throws IOException {
+		TransferQueue q = requireQueue();
+		List<TransferQueue.Job> jobs = new ArrayList<>();
+		List<String> dirs = new ArrayList<>();
+		for(File f : files) {
+			if(f.isDirectory()) {
+				Path base = f.toPath().getParent();
+				try(Stream<Path> tree = Files.walk(f.toPath())) {
+					tree.forEach(p -> {
+						String remote = remotePath(dir, base.relativize(p).toString().replace(File.separatorChar, '/'));
+						if(Files.isDirectory(p)) dirs.add(remote);
+						else jobs.add(q.upload(p.toString(), remote, TransferQueue.Priority.NORMAL));
+					});
+				}
+			}else {
+				jobs.add(q.upload(f.getAbsolutePath(), remotePath(dir, f.getName()), TransferQueue.Priority.NORMAL));
+			}
+		}
+		if(!dirs.isEmpty()) {
+			requireBulk().makeDirectories(dirs, null);
+			for(String d : dirs) listingCache.invalidate(parentOf(d));
+		}
+		return jobs;
+	}
+
+	private void reportUploads(TransferQueue.Batch batch) {
+		List<TransferQueue.Job> failed = batch.getFailed();
+		if(failed.isEmpty()) {
+			listener.message("Đã tải lên " + batch.getSize() + " tệp");
+		}else {
+			StringBuilder names = new StringBuilder();
+			for(TransferQueue.Job j : failed) names.append(' ').append(new File(j.localPath).getName());
+			listener.error("Lỗi tải" + names + " lên máy chủ.");
+		}
+	}
+
+	/*
+	 * Downloads remote files into localDir; large files are fetched in parallel
+	 * ranges by the SegmentedDownloader
+	 * @return CompletableFuture<TransferQueue.Batch>: the finished batch with its failed jobs
+	 */
+	public CompletableFuture<TransferQueue.Batch> download(List<String> remotePaths, File localDir, TransferQueue.Priority priority) {
+		TransferQueue q;
+		try {
+			q = requireQueue();
+		} catch (IOException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		List<TransferQueue.Job> jobs = new ArrayList<>();
+		for(String r : remotePaths) {
+			String path = absolute(r);
+			jobs.add(q.download(path, new File(localDir, path.substring(path.lastIndexOf('/') + 1)).getAbsolutePath(), priority));
+		}
+		return q.submit(jobs).future().whenComplete((batch, ex) -> {
+			if(ex == null && batch.getFailed().isEmpty()) {
+				listener.message(jobs.size() == 1 ? "Tải xuống thành công" + jobs.get(0).localPath : "Đã tải xuống " + jobs.size() + " tệp");
+			}else {
+				listener.error("Tải xuống không hoàn thành");
+			}
+		});
+	}
+
+	/*
+	 * Opens a remote file for reading while it downloads, without landing it on disk.
+	 * It takes one pooled session until it ends or is closed; a dropped connection is
+	 * resumed from the last byte received.
+	 * @param offset: first byte wanted, 0 for the whole file
+	 * @return RemoteStream: errors of the download are thrown by its reads
+	 */
+	public RemoteStream openStream(String remotePath, long offset) throws IOException {
+		SegmentedDownloader d = downloader;
+		if(d == null) throw new IOException("Not logged in");
+		String path = absolute(remotePath);
+		RemoteStream stream = new RemoteStream(path, Model.STREAM_READ_AHEAD);
+		stream.start(transfers, sink -> poolSupervisor.call(
+				() -> d.stream(path, offset + stream.getReceived(), sink, Model.BANDWIDTH_WEIGHT_NORMAL)));
+		return stream;
+	}
+
+	/*
+	 * Mirrors localDir and remoteDir in the given direction
+	 * @param planned: receives every planned transfer, on a worker thread
+	 */
+	public CompletableFuture<SyncEngine.Report> sync(File localDir, String remoteDir, SyncEngine.Mode mode, boolean dryRun,
+			Consumer<SyncEngine.Action> planned) {
+		String dir = absolute(remoteDir);
+		return transfers.submit(() -> {
+			SyncEngine sync = new SyncEngine(requirePool(), requireQueue(), Model.SYNC_USE_CHECKSUMS);
+			SyncEngine.Report report = sync.sync(localDir.toPath(), dir, mode, dryRun, planned);
+			if(report.failed == 0) listener.message((dryRun ? "Chạy thử: " : "Đã đồng bộ: ") + report);
+			else listener.error("Đồng bộ chưa hoàn thành: " + report);
+			if(!dryRun) {
+				listingCache.invalidateTree(dir);
+				if(browsing) refresh();
+			}
+			return report;
+		});
+	}
+
+	public CompletableFuture<Void> createDir(String dirName) {
+		return browse(() -> {
+			doCreateDir(dirName);
+			return null;
+		});
+	}
+
+	private void doCreateDir(String dirName) throws IOException {
+		try{
+			boolean dirCreated = client.makeDirectory(remotePath(workingDirectory, dirName));
+			listingCache.invalidate(workingDirectory);
+			if(dirCreated) listener.message("Thư mục được tạo");
+			else listener.error("Tạo thư mục thất bại");
+			showListing();
+		}catch(IOException e){
+			if(SessionSupervisor.isConnectionLoss(e)) throw e;
+			listener.error("Mất kết nối máy chủ.");
+		}
+	}
+
+	/*
+	 * Removes the working directory with everything in it and shows its parent
+	 */
+	public CompletableFuture<BulkOperations.Report> deleteDir() {
+		return delete(List.of(), List.of(workingDirectory));
+	}
+
+	/*
+	 * Removes files, and directories with everything below them, over the pooled
+	 * sessions. The listing is refreshed once at the end.
+	 * @param files: paths of plain files, absolute or relative to the working directory
+	 * @param dirs: paths of directories
+	 */
+	public CompletableFuture<BulkOperations.Report> delete(List<String> files, List<String> dirs) {
+		List<String> f = absolute(files);
+		List<String> d = absolute(dirs);
+		// the browsing session leaves a directory about to disappear first
+		return executor.submit(() -> {
+			for(String dir : d) {
+				String wd = workingDirectory;
+				if(wd.equals(dir) || wd.startsWith(dir.endsWith("/") ? dir : dir + "/")) {
+					workingDirectory = parentOf(dir);
+					client.changeWorkingDirectory(workingDirectory);
+				}
+			}
+			return null;
+		}).thenCompose(v -> transfers.submit(() -> {
+			try {
+				BulkOperations.Report report = requireBulk().delete(f, d, (done, total) -> listener.progress("Đang xóa", done, total));
+				if(report.failed == 0) listener.message("Đã xóa: " + report);
+				else listener.error("Xóa chưa hoàn thành: " + report);
+				return report;
+			} finally {
+				for(String p : f) listingCache.invalidate(parentOf(p));
+				for(String p : d) {
+					listingCache.invalidateTree(p);
+					listingCache.invalidate(parentOf(p));
+				}
+				if(browsing) refresh();
+			}
+		}));
+	}
+
+	/*
+	 * Creates the directories and their missing parents over the pooled sessions
+	 * @param dirs: paths, absolute or relative to the working directory
+	 */
+	public CompletableFuture<BulkOperations.Report> createDirs(List<String> dirs) {
+		List<String> d = absolute(dirs);
+		return transfers.submit(() -> {
+			try {
+				BulkOperations.Report report = requireBulk().makeDirectories(d, (done, total) -> listener.progress("Đang tạo thư mục", done, total));
+				if(report.failed == 0) listener.message("Thư mục được tạo");
+				else listener.error("Tạo thư mục thất bại: " + report);
+				return report;
+			} finally {
+				for(String p : d) {
+					for(String q = p; !q.equals("/"); q = parentOf(q)) listingCache.invalidate(parentOf(q));
+				}
+				if(browsing) refresh();
+			}
+		});
+	}
+
+	public CompletableFuture<Void> deleteFile(String fileName) {
+		return browse(() -> {
+			doDeleteFile(fileName);
+			return null;
+		});
+	}
+
+	private void doDeleteFile(String fileName) throws IOException {
+		try{
+			boolean fileDeleted = client.deleteFile(remotePath(workingDirectory, fileName));
+			listingCache.invalidate(workingDirectory);
+			if(fileDeleted) listener.message("Đã xóa tệp");
+			else listener.error("Tệp không thể xóa");
+			showListing();
+		}catch(IOException e){
+			if(SessionSupervisor.isConnectionLoss(e)) throw e;
+			listener.error("Mất kết nối với máy chủ.");
+		}
+	}
+
+	public void shutdown() {
+		browsingSupervisor.close();
+		poolSupervisor.close();
+		closePool();
+		if(manager == null) metrics.shutdown();
+		transfers.shutdown();
+		executor.shutdown();
+	}
+
+	/*
+	 * Called by the queue workers. A job cut by a dropped connection waits for the
+	 * pool to reconnect and runs again, resuming from the journal, without using
+	 * up one of its attempts.
+	 */
+	private boolean runJob(TransferQueue.Job job) throws IOException {
+		return poolSupervisor.call(() -> runJobOnce(job));
+	}
+
+	private boolean runJobOnce(TransferQueue.Job job) throws IOException {
+		if(job.attempts > 0) metrics.retry();
+		if(job.direction == TransferJournal.Direction.UPLOAD) {
+			String dir = parentOf(job.remotePath);
+			try {
+				return uploadOne(new File(job.localPath), dir, weight(job.priority));
+			} finally {
+				listingCache.invalidate(dir);
+				IndexCrawler ic = indexer;
+				if(ic != null) ic.changed(dir);
+			}
+		}
+		SegmentedDownloader d = downloader;
+		if(d == null) throw new IOException("Not logged in");
+		return d.download(job.remotePath, new File(job.localPath), weight(job.priority));
+	}
+
+	/*
+	 * @return int: bandwidth share of a job, so interactive transfers are not starved by bulk ones
+	 */
+	private static int weight(TransferQueue.Priority priority) {
+		switch(priority) {
+		case HIGH: return Model.BANDWIDTH_WEIGHT_HIGH;
+		case LOW: return Model.BANDWIDTH_WEIGHT_LOW;
+		default: return Model.BANDWIDTH_WEIGHT_NORMAL;
+		}
+	}
+
+	/*
+	 * Uploads on a pooled session so browsing is not blocked.
+	 * If the journal shows an interrupted upload of the same unchanged local file,
+	 * the bytes already on the server are skipped and the rest is sent with APPE.
+	 * With verify in the profile the file is hashed while it is sent and checked
+	 * against the server's checksum, or its SIZE if it has none; a mismatch
+	 * forgets the resume point and fails, so the queue sends the file again
+	 * @param weight: bandwidth share against the other transfers
+	 * @return boolean: true if the server stored the file
+	 */
+	private boolean uploadOne(File file, String dir, int weight) throws IOException {
+		FTPClient session = borrowSession(dir);
+		TransferMetrics.Transfer transfer = null;
+		boolean stored = false;
+		try(FileInputStream fis = new FileInputStream(file); BandwidthLimiter.Flow flow = limiter.open(remotePath(dir, file.getName()), weight)){
+			session.setFileType(FTP.BINARY_FILE_TYPE);
+			String filePath = file.getAbsolutePath();
+			String name = file.getName();
+			String remotePath = remotePath(dir, name);
+			long offset = 0;
+			// a small file is just sent again, sparing two journal writes and a SIZE per file
+			boolean journaled = file.length() > Model.SMALL_FILE_SIZE;
+			TransferJournal.Entry entry = journaled ? journal.find(TransferJournal.Direction.UPLOAD, server, remotePath, filePath) : null;
+			if(entry != null && entry.matches(file.length(), file.lastModified())) {
+				long remoteSize = SegmentedDownloader.remoteSize(session, name);
+				if(remoteSize > 0 && remoteSize <= file.length()) offset = remoteSize;
+			}
+			if(offset == 0 && journaled) {
+				entry = journal.begin(TransferJournal.Direction.UPLOAD, server, remotePath, filePath, file.length(), file.lastModified(), 1);
+			}
+			TransferJournal.Entry e = entry;
+			boolean verify = profile.verify;
+			RemoteChecksum.Method method = verify ? RemoteChecksum.select(session, Model.VERIFY_ALGORITHMS, false) : null;
+			RemoteChecksum.Hasher hasher = method == null ? null : RemoteChecksum.hasher(method.algorithm);
+			// the part sent by an earlier run is hashed from the disk
+			if(hasher != null && offset > 0) RemoteChecksum.hashRange(file.toPath(), 0, offset, hasher);
+			transfer = metrics.begin(remotePath, TransferJournal.Direction.UPLOAD, file.length() - offset);
+			TransferMetrics.Transfer t = transfer;
+			stored = engine.upload(session, name, fis.getChannel(), offset, offset > 0, flow, hasher, n -> {
+				if(e != null) journal.commit(e, 0, n);
+				t.accept(n);
+			});
+			String mismatch = stored && verify ? checkStored(session, name, file.length(), method, hasher) : null;
+			releaseSession(session);
+			session = null;
+			if(stored && entry != null) journal.complete(entry);
+			if(mismatch != null) {
+				stored = false;
+				throw new IOException("Upload of " + remotePath + " is corrupt: " + mismatch);
+			}
+			return stored;
+		}finally{
+			metrics.finish(transfer, stored);
+			invalidateSession(session);
+		}
+	}
+
+	/*
+	 * @return String: what differs between the local file and the one stored, null if they match
+	 */
+	private static String checkStored(FTPClient session, String name, long length, RemoteChecksum.Method method,
+			RemoteChecksum.Hasher hasher) throws IOException {
+		RemoteChecksum sum = method == null ? null : RemoteChecksum.fetch(session, method, name);
+		if(sum != null) {
+			String hex = hasher.hex();
+			return sum.matches(hex) ? null : method + " " + hex + " != " + sum.value;
+		}
+		long size = SegmentedDownloader.remoteSize(session, name);
+		return size < 0 || size == length ? null : "size " + length + " != " + size;
+	}
+
+	private void prefetch(String dir, RemoteListing listing) {
+		ListingPrefetcher pf = prefetcher;
+		if(pf != null) pf.prefetch(dir, listing);
+	}
+
+	/*
+	 * @return String: dir itself if absolute, else resolved against the working directory
+	 */
+	String absolute(String dir) {
+		if(dir == null || dir.isEmpty() || dir.equals(".")) return workingDirectory;
+		return dir.startsWith("/") ? dir : remotePath(workingDirectory, dir);
+	}
+
+	private List<String> absolute(List<String> paths) {
+		List<String> l = new ArrayList<>(paths.size());
+		for(String p : paths) l.add(absolute(p));
+		return l;
+	}
+
+	/*
+	 * Copies a file of this server to another session of the same SessionManager,
+	 * straight from server to server; see ServerCopy
+	 * @param srcPath: absolute or relative to the working directory of this session
+	 * @param dstPath: absolute or relative to the working directory of the target
+	 * @return CompletableFuture<ServerCopy.Result>: how the file was copied and how fast
+	 */
+	public CompletableFuture<ServerCopy.Result> copyTo(String srcPath, FtpEngine target, String dstPath) {
+		String src = absolute(srcPath);
+		String dst = target.absolute(dstPath);
+		return transfers.submit(() -> {
+			if(manager == null || target.manager != manager) throw new IOException("Sessions of different managers");
+			ConnectionPool from = requirePool();
+			ConnectionPool to = target.requirePool();
+			// both ends borrow a session, a pool of one would wait for itself forever
+			if(from == to && from.getSize() < 2) throw new IOException("Copy within one session needs a pool of two sessions");
+			try {
+				ServerCopy.Result result = manager.copier.copy(from, src, to, dst, Model.BANDWIDTH_WEIGHT_NORMAL);
+				listener.message("Đã sao chép " + src + " sang " + target.getServer() + ": " + result);
+				return result;
+			} catch (IOException e) {
+				listener.error("Không thể sao chép " + src + ": " + e.getMessage());
+				throw e;
+			} finally {
+				target.listingCache.invalidate(parentOf(dst));
+				IndexCrawler ic = target.indexer;
+				if(ic != null) ic.changed(parentOf(dst));
+				if(target.browsing) target.refresh();
+			}
+		});
+	}
+
+	/*
+	 * @return Path: where the index files of this account on server are kept
+	 */
+	private static Path indexDir(String server, String username) {
+		return Paths.get(System.getProperty("user.home"), Model.APP_DIR, Model.INDEX_DIR,
+				(server + "_" + username).replaceAll("[^A-Za-z0-9._-]", "_"));
+	}
+
+	static String remotePath(String dir, String name) {
+		return dir.endsWith("/") ? dir + name : dir + "/" + name;
+	}
+
+	/*
+	 * Resolves the "." and ".." segments of an absolute path, which the server would
+	 * otherwise resolve against its own working directory
+	 */
+	static String normalize(String remotePath) {
+		Deque<String> parts = new ArrayDeque<>();
+		for(String p : remotePath.split("/")) {
+			if(p.isEmpty() || p.equals(".")) continue;
+			if(p.equals("..")) parts.pollLast();
+			else parts.addLast(p);
+		}
+		return parts.isEmpty() ? "/" : "/" + String.join("/", parts);
+	}
+
+	static String parentOf(String remotePath) {
+		int i = remotePath.lastIndexOf('/');
+		return i <= 0 ? "/" : remotePath.substring(0, i);
+	}
+
+	ConnectionPool requirePool() throws IOException {
+		ConnectionPool p = pool;
+		if(p == null) throw new IOException("Not logged in");
+		return p;
+	}
+
+	private BulkOperations requireBulk() throws IOException {
+		BulkOperations b = bulk;
+		if(b == null) throw new IOException("Not logged in");
+		return b;
+	}
+
+	private TransferQueue requireQueue() throws IOException {
+		TransferQueue q = queue;
+		if(q == null) throw new IOException("Not logged in");
+		return q;
+	}
+
+	/*
+	 * Runs a task of the browsing session on its worker; if the connection drops,
+	 * the session logs in again and the task runs once more
+	 */
+	private <T> CompletableFuture<T> browse(SessionSupervisor.Operation<T> task) {
+		return executor.submit(() -> browsingSupervisor.call(() -> {
+			// the drop may have been noticed by an earlier command that has already failed
+			if(username != null && !client.isConnected()) throw new FTPConnectionClosedException("Browsing session is closed");
+			return task.run();
+		}));
+	}
+
+	/*
+	 * Opens the browsing session again, logs in and returns to the working directory
+	 */
+	private void reconnectBrowsing() throws IOException {
+		String user = username;
+		if(user == null) throw new IOException("Not logged in");
+		try {
+			if(client.isConnected()) client.disconnect();
+		} catch (IOException e) {
+			// already gone
+		}
+		client.connect(server);
+		if(!client.login(user, password)) throw new IOException("Login refused: " + client.getReplyString());
+		String wd = workingDirectory;
+		if(!client.changeWorkingDirectory(wd)) {
+			// the directory went away meanwhile
+			workingDirectory = client.printWorkingDirectory();
+			listingCache.invalidate(wd);
+		}
+	}
+
+	/*
+	 * Drops the idle pooled sessions, which died with the connection, and opens a
+	 * fresh one to see the server is back
+	 */
+	private void reconnectPool() throws IOException {
+		ConnectionPool p = requirePool();
+		p.clearIdle();
+		FTPClient c = p.tryBorrow(null);
+		// null: every slot is taken by sessions that work
+		p.release(c);
+	}
+
+	private FTPClient borrowSession(String dir) throws IOException {
+		return requirePool().borrow(dir);
+	}
+
+	private void releaseSession(FTPClient session) {
+		ConnectionPool p = pool;
+		if(p != null) {
+			p.release(session);
+		}else {
+			try {
+				session.disconnect();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/*
+	 * Discards a session that was not released because its transfer failed
+	 */
+	private void invalidateSession(FTPClient session) {
+		ConnectionPool p = pool;
+		if(session != null && p != null) p.invalidate(session);
+	}
+
+	private void closePool() {
+		ConnectionPool p = pool;
+		SegmentedDownloader d = downloader;
+		TransferQueue q = queue;
+		ListingPrefetcher pf = prefetcher;
+		BulkOperations b = bulk;
+		IndexCrawler ic = indexer;
+		pool = null;
+		bulk = null;
+		indexer = null;
+		downloader = null;
+		queue = null;
+		prefetcher = null;
+		if(pf != null) pf.shutdown();
+		if(ic != null) ic.shutdown();
+		if(b != null) b.shutdown();
+		if(q != null) q.shutdown();
+		if(d != null) d.shutdown();
+		if(p != null) p.close();
+	}
+}
@@ -0,0 +1,44 @@
+package services;
+
+/*
+ * Events of an FtpEngine. They are fired on the engine worker threads, so a
+ * UI has to hand them over to its own thread.
+ */
+public interface FtpListener {
+
+	/*
+	 * An operation completed, text for the user
+	 */
+	default void message(String text) {
+	}
+
+	/*
+	 * An operation failed, text for the user
+	 */
+	default void error(String text) {
+	}
+
+	/*
+	 * A long operation has handled done of total items
+	 */
+	default void progress(String operation, int done, int total) {
+	}
+
+	/*
+	 * A new listing of dir is being shown; entries are still being appended to it
+	 */
+	default void listingStarted(String dir, RemoteListing listing) {
+	}
+
+	/*
+	 * More entries were appended, fired at most once per chunk or interval
+	 */
+	default void listingUpdated(String dir, RemoteListing listing) {
+	}
+
+	/*
+	 * @param complete: false if the listing was cut short by an error
+	 */
+	default void listingFinished(String dir, RemoteListing listing, boolean complete) {
+	}
+}
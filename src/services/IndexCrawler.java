@@ -0,0 +1,338 @@
+package services;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+/*
+ * Builds the RemoteIndex of one server in background and keeps it fresh.
+ * The tree is walked one level at a time on pooled sessions that nobody else
+ * is using, so transfers keep priority. On a refresh the MDTM of a chunk of
+ * directories is pipelined first, and a directory whose stamp has not
+ * changed since the last index keeps its old entries without a LIST. A file
+ * overwritten in place leaves the stamp of its directory as it was, so its
+ * size and date only show after the directory is listed again: uploads made
+ * through this client mark their directory with changed(), anything else
+ * waits for the next full crawl. Every FULL_CRAWL interval all directories
+ * are listed again, also for servers whose directory stamps are missing or
+ * coarse.
+ */
+public class IndexCrawler {
+
+	// Directories a worker takes from the level at a time, their MDTMs pipelined together
+	private static final int CHUNK = 64;
+	private static final int PIPELINE_DEPTH = 16;
+	// wait before asking again when every pooled session is busy
+	private static final long BUSY_BACKOFF_MS = 200;
+	private static final long PROGRESS_EVERY_MS = 500;
+	private static final String SUFFIX = ".idx";
+
+	/*
+	 * Receives the number of directories and entries crawled so far
+	 */
+	public interface Progress {
+		void update(int dirs, int entries);
+	}
+
+	private final ConnectionPool pool;
+	private final Path dir;
+	private final String root;
+	private final int concurrency;
+	private final long refreshMillis;
+	private final long fullCrawlMillis;
+	private final TransferExecutor workers;
+	private final ScheduledExecutorService scheduler;
+	// the crawl in progress, joined by anyone asking for another one meanwhile
+	private CompletableFuture<RemoteIndex> running;
+	private volatile RemoteIndex index;
+	// directories listed again at the next crawl whatever their stamp
+	private final Set<String> changed = ConcurrentHashMap.newKeySet();
+	private volatile boolean closed;
+
+	/*
+	 * @param dir: directory holding the index files of this server
+	 * @param root: top of the indexed tree
+	 * @param concurrency: sessions crawling at the same time
+	 */
+	public IndexCrawler(ConnectionPool pool, Path dir, String root, int concurrency, long refreshMinutes, long fullCrawlHours) {
+		this.pool = pool;
+		this.dir = dir;
+		this.root = root;
+		this.concurrency = Math.max(1, concurrency);
+		this.refreshMillis = TimeUnit.MINUTES.toMillis(refreshMinutes);
+		this.fullCrawlMillis = TimeUnit.HOURS.toMillis(fullCrawlHours);
+		workers = new TransferExecutor("ftp-index", this.concurrency);
+		scheduler = Executors.newSingleThreadScheduledExecutor(TransferExecutor.daemonThreads("ftp-index-refresh"));
+		index = openNewest();
+	}
+
+	/*
+	 * Makes the next crawl list dir again, for changes that leave its stamp alone
+	 */
+	public void changed(String dir) {
+		changed.add(dir);
+	}
+
+	/*
+	 * @return RemoteIndex: the last index built, null before the first crawl ends
+	 */
+	public RemoteIndex getIndex() {
+		return index;
+	}
+
+	/*
+	 * Schedules the refreshes, the first one right away if the index is missing or stale
+	 */
+	public void start(Progress progress) {
+		RemoteIndex idx = index;
+		long delay = idx == null ? 0 : Math.max(0, idx.getBuiltAt() + refreshMillis - System.currentTimeMillis());
+		scheduler.scheduleWithFixedDelay(() -> {
+			try {
+				crawl(false, progress);
+			} catch (IOException e) {
+				// tried again at the next refresh
+			}
+		}, delay, refreshMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/*
+	 * Crawls the tree and swaps the new index in. If a crawl is already running,
+	 * waits for it and returns its index instead of starting another one.
+	 * @param full: list every directory even if its stamp did not change
+	 * @return RemoteIndex: the new index
+	 */
+	public RemoteIndex crawl(boolean full, Progress progress) throws IOException {
+		CompletableFuture<RemoteIndex> mine = new CompletableFuture<>();
+		CompletableFuture<RemoteIndex> other;
+		synchronized(this) {
+			other = running;
+			if(other == null) running = mine;
+		}
+		if(other != null) {
+			try {
+				return other.join();
+			} catch (CompletionException e) {
+				if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				throw new IOException("Index crawl failed", e.getCause());
+			}
+		}
+		try {
+			RemoteIndex built = walk(full, progress);
+			mine.complete(built);
+			return built;
+		} catch (IOException | RuntimeException e) {
+			mine.completeExceptionally(e);
+			throw e;
+		} finally {
+			synchronized(this) {
+				running = null;
+			}
+		}
+	}
+
+	private RemoteIndex walk(boolean full, Progress progress) throws IOException {
+		RemoteIndex old = index;
+		long now = System.currentTimeMillis();
+		if(old == null || now - old.getFullCrawlAt() >= fullCrawlMillis) full = true;
+		// marks coming in during the walk are kept for the next one
+		List<String> relisted = new ArrayList<>(changed);
+		RemoteIndex.Builder builder = new RemoteIndex.Builder();
+		AtomicInteger entries = new AtomicInteger();
+		long lastReport = 0;
+		List<String> level = Collections.singletonList(root);
+		while(!level.isEmpty() && !closed) {
+			level = crawlLevel(level, full ? null : old, builder, entries);
+			if(progress != null && System.currentTimeMillis() - lastReport >= PROGRESS_EVERY_MS) {
+				lastReport = System.currentTimeMillis();
+				progress.update(builder.getDirectoryCount(), entries.get());
+			}
+		}
+		if(closed) throw new IOException("Index crawler closed");
+		RemoteIndex built = builder.write(dir.resolve(now + SUFFIX), full ? now : old.getFullCrawlAt());
+		index = built;
+		changed.removeAll(relisted);
+		deleteOlder(built.getFile());
+		if(progress != null) progress.update(built.getDirectoryCount(), built.getEntryCount());
+		return built;
+	}
+
+	/*
+	 * @return boolean: true if there is no index or it is older than the refresh interval
+	 */
+	public boolean isStale() {
+		RemoteIndex idx = index;
+		return idx == null || System.currentTimeMillis() - idx.getBuiltAt() >= refreshMillis;
+	}
+
+	public void shutdown() {
+		closed = true;
+		scheduler.shutdownNow();
+		workers.shutdown();
+	}
+
+	/*
+	 * Lists every directory of one level, spread over the pooled sessions
+	 * @param old: index whose unchanged directories are reused, null to list all
+	 * @return List<String>: the directories of the next level
+	 */
+	private List<String> crawlLevel(List<String> level, RemoteIndex old, RemoteIndex.Builder builder, AtomicInteger entries)
+			throws IOException {
+		List<String> next = Collections.synchronizedList(new ArrayList<>());
+		AtomicInteger cursor = new AtomicInteger();
+		List<CompletableFuture<Void>> parts = new ArrayList<>();
+		int workersNeeded = Math.min(concurrency, (level.size() + CHUNK - 1) / CHUNK);
+		for(int w = 0; w < workersNeeded; w++) {
+			parts.add(workers.submit(() -> {
+				int start;
+				while((start = cursor.getAndAdd(CHUNK)) < level.size() && !closed) {
+					List<String> chunk = level.subList(start, Math.min(level.size(), start + CHUNK));
+					FTPClient session = borrow();
+					if(session == null) return null;
+					try {
+						crawlChunk((ChannelFTPClient) session, chunk, old, builder, entries, next);
+						pool.release(session);
+						session = null;
+					} finally {
+						if(session != null) pool.invalidate(session);
+					}
+				}
+				return null;
+			}));
+		}
+		try {
+			CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).join();
+		} catch (CompletionException e) {
+			if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException("Index crawl failed", e.getCause());
+		}
+		Collections.sort(next);
+		return next;
+	}
+
+	private void crawlChunk(ChannelFTPClient session, List<String> chunk, RemoteIndex old, RemoteIndex.Builder builder,
+			AtomicInteger entries, List<String> next) throws IOException {
+		long[] stamps = new long[chunk.size()];
+		Arrays.fill(stamps, -1);
+		// stamps are taken on full crawls too, so the next refresh can compare them
+		session.pipeline("MDTM", chunk, PIPELINE_DEPTH, (i, code, text) -> {
+			if(code == FTPReply.FILE_STATUS) stamps[i] = parseStamp(text);
+		});
+		for(int i = 0; i < chunk.size(); i++) {
+			String path = chunk.get(i);
+			RemoteListing listing = null;
+			int d = old == null ? -1 : old.findDirectory(path);
+			if(d >= 0 && stamps[i] > 0 && stamps[i] == old.getStamp(d) && !changed.contains(path)) {
+				listing = old.getListing(d);
+			}else {
+				RemoteListing fresh = new RemoteListing();
+				// a directory that cannot be listed is indexed empty
+				if(session.streamList(path, fresh::add)) listing = fresh;
+				else listing = new RemoteListing();
+			}
+			builder.add(path, stamps[i], listing);
+			entries.addAndGet(listing.size());
+			for(int k = 0; k < listing.size(); k++) {
+				if(listing.isDirectory(k)) next.add(SyncEngine.join(path, listing.getName(k)));
+			}
+		}
+	}
+
+	/*
+	 * @return FTPClient: an idle pooled session, null once the crawler is closed
+	 */
+	private FTPClient borrow() throws IOException {
+		while(!closed) {
+			FTPClient session = pool.tryBorrow(null);
+			if(session != null) return session;
+			try {
+				Thread.sleep(BUSY_BACKOFF_MS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * @return long: the yyyyMMddHHmmss digits of an MDTM reply, -1 if there are none
+	 */
+	static long parseStamp(String reply) {
+		String text = reply.trim();
+		if(text.length() < 4) return -1;
+		String digits = text.substring(4).replaceAll("[^0-9]", "");
+		if(digits.isEmpty()) return -1;
+		try {
+			return Long.parseLong(digits.length() > 14 ? digits.substring(0, 14) : digits);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private RemoteIndex openNewest() {
+		List<Path> files = indexFiles();
+		for(int i = files.size() - 1; i >= 0; i--) {
+			try {
+				return RemoteIndex.open(files.get(i));
+			} catch (IOException e) {
+				// damaged or half written, try an older one
+			}
+		}
+		return null;
+	}
+
+	/*
+	 * Removes the files of older indexes. A file still mapped by a running search
+	 * cannot be deleted on every platform; it goes at a later refresh.
+	 */
+	private void deleteOlder(Path current) {
+		for(Path p : indexFiles()) {
+			if(p.equals(current)) continue;
+			try {
+				Files.deleteIfExists(p);
+			} catch (IOException e) {
+				// still in use
+			}
+		}
+	}
+
+	/*
+	 * @return List<Path>: the index files of this server, oldest first
+	 */
+	private List<Path> indexFiles() {
+		List<Path> files = new ArrayList<>();
+		if(!Files.isDirectory(dir)) return files;
+		try(DirectoryStream<Path> s = Files.newDirectoryStream(dir, "*" + SUFFIX)) {
+			for(Path p : s) files.add(p);
+		} catch (IOException e) {
+			return files;
+		}
+		files.sort((a, b) -> Long.compare(builtAt(a), builtAt(b)));
+		return files;
+	}
+
+	private static long builtAt(Path file) {
+		String name = file.getFileName().toString();
+		try {
+			return Long.parseLong(name.substring(0, name.length() - SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package services;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+/*
+ * Hashes the bytes of a transfer while they stream, on another thread. The
+ * transfer fills one of a few rotating buffers, hands it over with submit()
+ * and goes on writing it to the socket or the file while the hasher reads
+ * the same bytes; a buffer is only filled again once its hash is done. The
+ * updates of one transfer run in order, on any thread of the shared executor.
+ */
+class InlineDigest {
+
+	private static final int BUFFERS = 3;
+
+	private final RemoteChecksum.Hasher hasher;
+	private final Executor executor;
+	private final ByteBuffer[] buffers;
+	private final CompletableFuture<?>[] hashed;
+	private CompletableFuture<Void> tail = CompletableFuture.completedFuture(null);
+	private int next;
+
+	InlineDigest(RemoteChecksum.Hasher hasher, Executor executor, int bufferSize, boolean direct) {
+		this.hasher = hasher;
+		this.executor = executor;
+		buffers = new ByteBuffer[BUFFERS];
+		hashed = new CompletableFuture<?>[BUFFERS];
+		for(int i = 0; i < BUFFERS; i++) {
+			buffers[i] = direct ? ByteBuffer.allocateDirect(bufferSize) : ByteBuffer.allocate(bufferSize);
+			hashed[i] = tail;
+		}
+	}
+
+	/*
+	 * @return ByteBuffer: the next buffer to fill, cleared, once the hasher is done with it
+	 */
+	ByteBuffer buffer() throws IOException {
+		await(hashed[next]);
+		ByteBuffer b = buffers[next];
+		b.clear();
+		return b;
+	}
+
+	/*
+	 * Hashes the remaining bytes of the buffer just filled; the caller may go on
+	 * reading it, its position is not touched
+	 */
+	void submit(ByteBuffer filled) {
+		ByteBuffer view = filled.duplicate();
+		tail = tail.thenRunAsync(() -> hasher.update(view), executor);
+		hashed[next] = tail;
+		next = (next + 1) % BUFFERS;
+	}
+
+	/*
+	 * Waits until everything submitted is in the hasher
+	 */
+	void finish() throws IOException {
+		await(tail);
+	}
+
+	private static void await(CompletableFuture<?> f) throws IOException {
+		try {
+			f.join();
+		} catch (CompletionException e) {
+			throw new IOException("Checksum failed", e.getCause());
+		}
+	}
+}
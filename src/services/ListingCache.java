@@ -0,0 +1,107 @@
+package services;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Per-session cache of directory listings keyed by absolute remote path.
+ * Least recently used listings are evicted past maxEntries and every listing
+ * expires after ttlMs. Mutations must invalidate the directories they touch.
+ */
+public class ListingCache {
+
+	private static class Listing {
+		final RemoteListing listing;
+		final long loadedAt;
+
+		Listing(RemoteListing listing, long loadedAt) {
+			this.listing = listing;
+			this.loadedAt = loadedAt;
+		}
+	}
+
+	private final int maxEntries;
+	private final long ttlMs;
+	private final LinkedHashMap<String, Listing> entries;
+
+	private long hits;
+	private long misses;
+
+	public ListingCache(int maxEntries, long ttlMs) {
+		this.maxEntries = maxEntries;
+		this.ttlMs = ttlMs;
+		entries = new LinkedHashMap<String, Listing>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+				return size() > ListingCache.this.maxEntries;
+			}
+		};
+	}
+
+	/*
+	 * @return RemoteListing: the cached listing of the directory, or null if missing or expired
+	 */
+	public synchronized RemoteListing get(String dir) {
+		String key = normalize(dir);
+		Listing l = entries.get(key);
+		if(l != null && System.currentTimeMillis() - l.loadedAt > ttlMs) {
+			entries.remove(key);
+			l = null;
+		}
+		if(l == null) {
+			misses++;
+			return null;
+		}
+		hits++;
+		return l.listing;
+	}
+
+	public synchronized boolean contains(String dir) {
+		Listing l = entries.get(normalize(dir));
+		return l != null && System.currentTimeMillis() - l.loadedAt <= ttlMs;
+	}
+
+	public synchronized void put(String dir, RemoteListing listing) {
+		if(listing != null) entries.put(normalize(dir), new Listing(listing, System.currentTimeMillis()));
+	}
+
+	/*
+	 * Drops the listing of one directory, after a file in it was added or removed
+	 */
+	public synchronized void invalidate(String dir) {
+		entries.remove(normalize(dir));
+	}
+
+	/*
+	 * Drops the listing of a directory and of everything below it
+	 */
+	public synchronized void invalidateTree(String dir) {
+		String root = normalize(dir);
+		String prefix = root.endsWith("/") ? root : root + "/";
+		Iterator<String> it = entries.keySet().iterator();
+		while(it.hasNext()) {
+			String key = it.next();
+			if(key.equals(root) || key.startsWith(prefix)) it.remove();
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	private static String normalize(String dir) {
+		if(dir.length() > 1 && dir.endsWith("/")) return dir.substring(0, dir.length() - 1);
+		return dir;
+	}
+}
@@ -0,0 +1,102 @@
+package services;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+
+/*
+ * Lists the subdirectories of the directory being browsed in background, on
+ * low priority threads and only on pooled sessions nobody else is using, so
+ * opening one of them is served from the ListingCache.
+ */
+public class ListingPrefetcher {
+
+	// Directories waiting to be prefetched; older requests are dropped past this
+	private static final int MAX_QUEUED = 256;
+
+	private final ConnectionPool pool;
+	private final ListingCache cache;
+	private final int maxDepth;
+	private final int maxDirs;
+	private final ThreadPoolExecutor executor;
+	// bumped on every navigation so prefetches for a directory we left are skipped
+	private final AtomicInteger generation = new AtomicInteger();
+
+	/*
+	 * @param maxDepth: levels below the browsed directory to prefetch
+	 * @param maxDirs: subdirectories prefetched per listing
+	 * @param concurrency: listings fetched at the same time
+	 */
+	public ListingPrefetcher(ConnectionPool pool, ListingCache cache, int maxDepth, int maxDirs, int concurrency) {
+		this.pool = pool;
+		this.cache = cache;
+		this.maxDepth = maxDepth;
+		this.maxDirs = maxDirs;
+		ThreadFactory daemons = TransferExecutor.daemonThreads("ftp-prefetch");
+		executor = new ThreadPoolExecutor(concurrency, concurrency, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(MAX_QUEUED), r -> {
+					Thread t = daemons.newThread(r);
+					t.setPriority(Thread.MIN_PRIORITY);
+					return t;
+				}, new ThreadPoolExecutor.DiscardOldestPolicy());
+	}
+
+	/*
+	 * Schedules the subdirectories of a listing just shown, cancelling older prefetches
+	 */
+	public void prefetch(String dir, RemoteListing listing) {
+		int gen = generation.incrementAndGet();
+		schedule(dir, listing, 1, gen);
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	private void schedule(String dir, RemoteListing listing, int depth, int gen) {
+		if(depth > maxDepth) return;
+		int scheduled = 0;
+		for(int i = 0; i < listing.size() && scheduled < maxDirs; i++) {
+			if(!listing.isDirectory(i)) continue;
+			String path = SyncEngine.join(dir, listing.getName(i));
+			if(cache.contains(path)) continue;
+			scheduled++;
+			executor.execute(() -> fetch(path, depth, gen));
+		}
+	}
+
+	private void fetch(String path, int depth, int gen) {
+		if(gen != generation.get() || cache.contains(path)) return;
+		FTPClient session = null;
+		try {
+			session = pool.tryBorrow(null);
+			// every session busy: transfers have priority over prefetching
+			if(session == null) return;
+			RemoteListing listing = new RemoteListing();
+			boolean complete;
+			if(session instanceof ChannelFTPClient) {
+				complete = ((ChannelFTPClient) session).streamList(path, listing::add);
+			}else {
+				FTPFile[] files = session.listFiles(path);
+				for(FTPFile f : files) listing.add(f);
+				complete = true;
+			}
+			pool.release(session);
+			session = null;
+			if(complete) {
+				cache.put(path, listing);
+				if(gen == generation.get()) schedule(path, listing, depth + 1, gen);
+			}
+		} catch (IOException e) {
+			// prefetching is best effort
+		} finally {
+			if(session != null) pool.invalidate(session);
+		}
+	}
+}
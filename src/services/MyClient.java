@@ -1,254 +1,344 @@
 package services;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
-import javax.swing.DefaultListModel;
 import javax.swing.JLabel;
 import javax.swing.JList;
 import javax.swing.JPasswordField;
 import javax.swing.JTextField;
+import javax.swing.SwingUtilities;
 
-import org.apache.commons.net.ftp.FTP;
-import org.apache.commons.net.ftp.FTPClient;
-import org.apache.commons.net.ftp.FTPFile;
+import classes.Model;
+
+/*
+ * Swing adapter over the FtpEngine: reads the login fields, shows listings
+ * in the JList and messages in the labels, always on the EDT. With several
+ * sessions open in one window only the active one fills the list; the
+ * others keep their listing for when they are shown again.
+ */
+public class MyClient implements FtpListener {
+
+	/*
+	 * Runs a task on the Swing event dispatch thread, directly if we are already on it
+	 */
+	public static final Executor EDT = MyClient::onEdt;
 
-public class MyClient {
-	
 	private final String initialDirectory = "/";
-	
-	private String selectedDirectory;
-	
+
+	// Max number of planned transfers handed back for a sync report
+	private static final int SYNC_REPORT_LIMIT = 1000;
+
+	private volatile String selectedDirectory;
+
 	private JTextField usernameTxt;
 	private JPasswordField passwordTxt;
 	private JTextField serverTxt;
-	
+
 	private JList<String> list;
-	private DefaultListModel<String> model;
-	
-	private FTPClient client;
-	
+	private FileListModel model;
+
 	private JLabel msgLbl, errLbl;
-	
+
+	private final FtpEngine engine;
+	private final String name;
+	// shown in the window; messages of the other sessions are tagged with their name
+	private volatile boolean active = true;
+
 	public MyClient(JTextField usernameTxt, JPasswordField passwordTxt, JTextField serverTxt, JList<String> list, JLabel msgLbl, JLabel errLbl) {
+		this(null, null, usernameTxt, passwordTxt, serverTxt, list, msgLbl, errLbl);
+	}
+
+	/*
+	 * @param sessions: opens the engine as one of its sessions, null for a standalone engine
+	 * @param name: name of the session in sessions
+	 */
+	public MyClient(SessionManager sessions, String name, JTextField usernameTxt, JPasswordField passwordTxt, JTextField serverTxt,
+			JList<String> list, JLabel msgLbl, JLabel errLbl) {
 		this.usernameTxt = usernameTxt;
 		this.passwordTxt = passwordTxt;
 		this.serverTxt = serverTxt;
-		client = new FTPClient();
 		this.list = list;
-		model = new DefaultListModel<>();
+		model = FileListModel.empty();
 		selectedDirectory = initialDirectory;
 		this.msgLbl = msgLbl;
 		this.errLbl = errLbl;
+		this.name = name;
+		engine = sessions == null ? new FtpEngine(this, Model.POOL_SIZE) : sessions.open(name, this);
+	}
+
+	public String getName(){
+		return name;
 	}
-	
+
 	/*
-	 * Gets connection with ftp server
-	 * @return int: 0 if connection is ok and -1 if error occurs
+	 * Shows this session in the window, or hides it behind another one
 	 */
-	public int getConnection() {
-		try {
-			client.connect(serverTxt.getText());
-			return 0;
-		}catch(IOException e){
-			errLbl.setText("Máy chủ không khả dụng, hãy kiểm tra kết nối"+ e);
-			return -1;
-		}
+	public void setActive(boolean active){
+		this.active = active;
+		if(active) onEdt(() -> list.setModel(model));
+	}
+
+	public boolean isActive(){
+		return active;
 	}
-	
+
+	public boolean isLoggedIn(){
+		return engine.getUsername() != null;
+	}
+
 	/*
-	 * Login of the user
-	 * @return int: 1 if is logged, 0 if is not logged and -1 if error occurs
-	 */
-	public int logUser(){
-		try {
-			boolean login = client.login(usernameTxt.getText(), new String(passwordTxt.getPassword()));
-			return login ? 1 : 0;
-		} catch (IOException e) {
-			printToErrLblAndClearMsgLbl("Lỗi khi cố gắng đăng nhập");
-			return -1;
-		}
+	 * @return String: server of the last connect, null before
+	 */
+	public String getServer(){
+		return engine.getServer();
+	}
+
+	public String getUsername(){
+		return engine.getUsername();
 	}
-	
+
+	public String getWorkingDirectory(){
+		return engine.getWorkingDirectory();
+	}
+
 	/*
-	 * Get files list of the working directory
-	 * @return FTPFile[]: if client is connected returns files list, else returns null
+	 * Byte counts, throughput and command latencies of this client, for progress display
 	 */
-	public FTPFile[] getFilesList() throws IOException{
-		try{
-			if(client.isConnected()) return client.listFiles();
-			else return null;
-		}catch(IOException e){
-			printToErrLblAndClearMsgLbl("Lỗi khi thu thập danh sách tệp.");
-			return null;
-		}
+	public TransferMetrics getMetrics(){
+		return engine.getMetrics();
 	}
-	
-	public int logoutClient() throws IOException {
-		if(client.isConnected()) {
-			return client.logout() ? 1 : 0;
-		}
-		return -1;
+
+	/*
+	 * Global and per-transfer bandwidth limits, changed while transfers run
+	 */
+	public BandwidthLimiter getBandwidthLimiter(){
+		return engine.getBandwidthLimiter();
 	}
-	
-	public void disconnectClient() throws IOException {
-		if(client.isConnected()) client.disconnect();
+
+	/*
+	 * Gets connection with ftp server, on the port of its profile
+	 * @return CompletableFuture<Integer>: 0 if connection is ok and -1 if error occurs
+	 */
+	public CompletableFuture<Integer> getConnection() {
+		return engine.connect(serverTxt.getText());
+	}
+
+	/*
+	 * Connection settings of the server in the server field
+	 */
+	public ConnectionProfile getProfile(){
+		return engine.getProfile(serverTxt.getText());
+	}
+
+	public void saveProfile(){
+		engine.saveProfiles();
+	}
+
+	/*
+	 * Probes buffer sizes against the server and keeps the fastest in its profile
+	 */
+	public CompletableFuture<Void> tuneConnection(){
+		return engine.tune().handle((result, ex) -> null);
 	}
-	
-	
-	
+
+	/*
+	 * Login of the user
+	 * @return CompletableFuture<Integer>: 1 if is logged, 0 if is not logged and -1 if error occurs
+	 */
+	public CompletableFuture<Integer> logUser(){
+		return engine.login(usernameTxt.getText(), new String(passwordTxt.getPassword()));
+	}
+
+	public CompletableFuture<Integer> logoutClient() {
+		return engine.logout();
+	}
+
+	public CompletableFuture<Void> disconnectClient() {
+		return engine.disconnect();
+	}
+
 	public void setSelectedDirectory(String dir){
 		selectedDirectory = dir;
 	}
-	
+
 	public void clearList(){
-		model.removeAllElements();
-	}
-	
-	private void getClearAndInflateList() throws Exception{
-		FTPFile[] files = getFilesList();
-		clearList();
-		inflateList(files);
-	}
-	
-	private void inflateList(FTPFile[] ficheros){
-		
-		model.addElement(initialDirectory);
-		for(int i = 0; i < ficheros.length; i++){
-			
-			if(!(ficheros[i].getName()).equals(".") && !(ficheros[i].getName()).equals("..")){
-				String f = ficheros[i].getName();
-				if(ficheros[i].isDirectory()) f = "(DIR) " + f;
-				model.addElement(f);
-			}
-		}
-		
-		list.setModel(model);
-	}
-	
-	private void changeToParentDir(){
-		try{
-			if(client.printWorkingDirectory().equals("/")) return;
-			
-			client.changeToParentDirectory();
-			selectedDirectory = client.printWorkingDirectory();
-			client.changeWorkingDirectory(selectedDirectory);
-		}catch(IOException e){
-			printToErrLblAndClearMsgLbl("Mất kết nối với máy chủ");
-		}
-		
-	}
-	
-	private void changeToSelectedDir(){
-		try{
-			client.changeWorkingDirectory(selectedDirectory);
-		}catch(IOException e){
-			printToErrLblAndClearMsgLbl("Mất kết nối với máy chủ");
-		}
+		onEdt(() -> {
+			model = FileListModel.empty();
+			list.setModel(model);
+		});
 	}
-	
-	public void changeDirAndInflateList() throws Exception{
-		changeToSelectedDir();
-		getClearAndInflateList();
-	}
-	
-	public void changeToParentDirAndInflateList() throws Exception{
-		changeToParentDir();
-		getClearAndInflateList();
-	}
-	
-	public void uploadFile(File file){
-		FileInputStream fis = null;
-		try{
-			client.setFileType(FTP.BINARY_FILE_TYPE);
-			String filePath = file.getAbsolutePath();
-			String name = file.getName();
-			fis = new FileInputStream(filePath);
-			client.storeFile(name, fis);
-			getClearAndInflateList();
-		}catch(Exception e){
-			printToErrLblAndClearMsgLbl("Lỗi tải " + file.getName() + " lên máy chủ." + e);
-		}finally{
-			if(fis != null)
-				try {
-					fis.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-		}
+
+	public CompletableFuture<Void> changeDirAndInflateList() {
+		return engine.changeDirectory(selectedDirectory);
 	}
-	
-	public void downloadFile(String fileName){
-		BufferedOutputStream out = null;
-		try {
-			String path = client.printWorkingDirectory() + File.separator + fileName;
-			String filePath = System.getProperty("user.dir") + File.separator + fileName;
-			client.setFileType(FTP.BINARY_FILE_TYPE);
-			out = new BufferedOutputStream(new FileOutputStream(filePath));
-			boolean success = client.retrieveFile(path, out);
-			if(success){
-				printToMsgLblAndClearErrLbl("Tải xuống thành công" + filePath);
-			}else{
-				printToErrLblAndClearMsgLbl("Tải xuống không hoàn thành");
-			}
-		} catch (IOException e) {
-			printToErrLblAndClearMsgLbl("Mất kết nối với máy chủ.");
-		}finally{
-			if(out != null){
-				try {
-					out.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
-		}
+
+	public CompletableFuture<Void> changeToParentDirAndInflateList() {
+		return engine.changeToParentDirectory();
 	}
-	
-	public void createDir(String dirName){
-		try{
-			boolean dirCreated = client.makeDirectory(dirName);
-			if(dirCreated) printToMsgLblAndClearErrLbl("Thư mục được tạo");
-			else printToErrLblAndClearMsgLbl("Tạo thư mục thất bại");
-			getClearAndInflateList();
-		}catch(Exception e){
-			printToErrLblAndClearMsgLbl("Mất kết nối máy chủ.");
-		}
+
+	public CompletableFuture<Void> uploadFile(File file){
+		return uploadFiles(new File[]{file});
 	}
-	
-	public void deleteDir(){
-		try{
-			String dirToDelete = client.printWorkingDirectory();
-			changeToParentDir();
-			boolean dirDeleted = client.removeDirectory(dirToDelete);
-			if(dirDeleted) printToMsgLblAndClearErrLbl("Đã xóa thư mục");
-			else printToErrLblAndClearMsgLbl("Xóa thư mục thất bại");
-			getClearAndInflateList();
-		}catch(Exception e){
-			printToErrLblAndClearMsgLbl("Mất kết nối máy chủ.");
-		}
+
+	/*
+	 * Queues the selected files, and every file below the selected directories,
+	 * for upload into the working directory
+	 */
+	public CompletableFuture<Void> uploadFiles(File[] files){
+		return engine.upload(files, engine.getWorkingDirectory()).handle((batch, ex) -> null);
+	}
+
+	public CompletableFuture<Void> downloadFile(String fileName){
+		return engine.download(List.of(fileName), new File(System.getProperty("user.dir")), TransferQueue.Priority.HIGH)
+				.handle((batch, ex) -> null);
+	}
+
+	/*
+	 * Mirrors the local directory and the working directory in the given direction
+	 * @return CompletableFuture<List<SyncEngine.Action>>: the first planned transfers, for the dry-run report
+	 */
+	public CompletableFuture<List<SyncEngine.Action>> sync(File localDir, SyncEngine.Mode mode, boolean dryRun){
+		List<SyncEngine.Action> planned = new ArrayList<>();
+		return engine.sync(localDir, engine.getWorkingDirectory(), mode, dryRun, action -> {
+			if(planned.size() < SYNC_REPORT_LIMIT) planned.add(action);
+		}).thenApply(report -> planned);
+	}
+
+	/*
+	 * Searches the local index of the server, see RemoteIndex.Query for the syntax
+	 * @return List<RemoteIndex.Hit>: the first matches, empty while no index is built yet
+	 */
+	public List<RemoteIndex.Hit> search(String query){
+		return engine.search(query, Model.INDEX_SEARCH_LIMIT);
+	}
+
+	public boolean hasIndex(){
+		return engine.getIndex() != null;
+	}
+
+	/*
+	 * Crawls the whole server again for the search index
+	 */
+	public CompletableFuture<Void> reindex(){
+		return engine.reindex(true).handle((index, ex) -> null);
+	}
+
+	public CompletableFuture<Void> createDir(String dirName){
+		return engine.createDir(dirName);
+	}
+
+	/*
+	 * Creates several directories at once
+	 * @param names: comma separated names, nested paths like a/b/c create their parents
+	 */
+	public CompletableFuture<Void> createDirs(String names){
+		List<String> dirs = new ArrayList<>();
+		for(String n : names.split(",")) if(!n.isBlank()) dirs.add(n.trim());
+		return engine.createDirs(dirs).handle((report, ex) -> null);
+	}
+
+	/*
+	 * Removes the working directory with everything in it
+	 */
+	public CompletableFuture<Void> deleteDir(){
+		return engine.deleteDir().handle((report, ex) -> null);
 	}
-	
-	public void deleteFile(String fileName){
-		try{
-			boolean fileDeleted = client.deleteFile(fileName);
-			if(fileDeleted) printToMsgLblAndClearErrLbl("Đã xóa tệp");
-			else printToErrLblAndClearMsgLbl("Tệp không thể xóa");
-			getClearAndInflateList();
-		}catch(Exception e){
-			printToErrLblAndClearMsgLbl("Mất kết nối với máy chủ.");
+
+	/*
+	 * Removes the selected list entries, directories with everything in them
+	 */
+	public CompletableFuture<Void> deleteEntries(List<String> items){
+		List<String> files = new ArrayList<>();
+		List<String> dirs = new ArrayList<>();
+		for(String item : items) {
+			if(item.startsWith("(DIR) ")) dirs.add(item.substring(6));
+			else files.add(item);
 		}
+		return engine.delete(files, dirs).handle((report, ex) -> null);
 	}
-	
-	private void printToMsgLblAndClearErrLbl(String msg){
-		errLbl.setText("");
-		msgLbl.setText(msg);
+
+	/*
+	 * Copies a file of the working directory into a directory of another session,
+	 * from server to server without the local disk
+	 */
+	public CompletableFuture<Void> copyTo(MyClient target, String fileName, String remoteDir){
+		return engine.copyTo(fileName, target.engine, FtpEngine.remotePath(remoteDir, fileName)).handle((result, ex) -> null);
+	}
+
+	public CompletableFuture<Void> deleteFile(String fileName){
+		return engine.deleteFile(fileName);
 	}
-	
-	private void printToErrLblAndClearMsgLbl(String msg){
-		msgLbl.setText("");
-		errLbl.setText(msg);
+
+	public void shutdown(){
+		engine.shutdown();
+	}
+
+	/*
+	 * Binds a new list model over the listing being streamed
+	 */
+	@Override
+	public void listingStarted(String dir, RemoteListing listing){
+		selectedDirectory = dir;
+		FileListModel m = new FileListModel(initialDirectory, listing);
+		onEdt(() -> {
+			model = m;
+			if(active) list.setModel(m);
+		});
+	}
+
+	@Override
+	public void listingUpdated(String dir, RemoteListing listing){
+		publish(listing);
+	}
+
+	@Override
+	public void listingFinished(String dir, RemoteListing listing, boolean complete){
+		publish(listing);
+	}
+
+	private void publish(RemoteListing listing){
+		onEdt(() -> {
+			// a newer listing may already be bound
+			if(model.getListing() == listing) model.publish();
+		});
+	}
+
+	/*
+	 * Label updates come from the engine threads, so they are always marshalled to the EDT
+	 */
+	@Override
+	public void message(String msg){
+		String text = tag(msg);
+		onEdt(() -> {
+			errLbl.setText("");
+			msgLbl.setText(text);
+		});
+	}
+
+	@Override
+	public void progress(String operation, int done, int total){
+		message(operation + ": " + done + "/" + total);
+	}
+
+	@Override
+	public void error(String msg){
+		String text = tag(msg);
+		onEdt(() -> {
+			msgLbl.setText("");
+			errLbl.setText(text);
+		});
+	}
+
+	private String tag(String msg){
+		return active || name == null ? msg : "[" + name + "] " + msg;
+	}
+
+	public static void onEdt(Runnable r) {
+		if(SwingUtilities.isEventDispatchThread()) r.run();
+		else SwingUtilities.invokeLater(r);
 	}
 }
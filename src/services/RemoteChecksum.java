@@ -0,0 +1,310 @@
+package services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.CRC32C;
+import java.util.zip.Checksum;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPReply;
+
+import classes.Model;
+
+/*
+ * Server side checksums: HASH (draft-bryan-ftpext-hash), XMD5, MD5
+ * (draft-twine-ftpmd5) and XCRC, in that order of preference, plus the
+ * matching local computation.
+ */
+public class RemoteChecksum {
+
+	public final String algorithm;
+	public final String value;
+
+	private RemoteChecksum(String algorithm, String value) {
+		this.algorithm = algorithm;
+		this.value = value.toLowerCase(Locale.ROOT);
+	}
+
+	/*
+	 * @return String: the checksum command the server advertises in FEAT, or null if none
+	 */
+	public static String detect(FTPClient session) throws IOException {
+		if(session.hasFeature("HASH")) return "HASH";
+		if(session.hasFeature("XMD5")) return "XMD5";
+		if(session.hasFeature("MD5")) return "MD5";
+		if(session.hasFeature("XCRC")) return "XCRC";
+		return null;
+	}
+
+	/*
+	 * A checksum command with the algorithm it answers in
+	 */
+	public static class Method {
+		public final String command;
+		public final String algorithm;
+
+		Method(String command, String algorithm) {
+			this.command = command;
+			this.algorithm = algorithm;
+		}
+
+		/*
+		 * @return boolean: true if checksums of consecutive ranges can be joined, so a
+		 * file fetched in parallel ranges can still be hashed while it streams
+		 */
+		public boolean isCombinable() {
+			return isCrc(algorithm);
+		}
+
+		@Override
+		public String toString() {
+			return command.equals("HASH") ? algorithm : command;
+		}
+	}
+
+	/*
+	 * Picks the first algorithm of the preference the server can compute
+	 * @param preference: algorithm names, e.g. CRC32C, CRC32, MD5, SHA-256
+	 * @param combinableOnly: only CRC algorithms, whose range checksums can be joined
+	 * @return Method: or null if the server offers none of them
+	 */
+	public static Method select(FTPClient session, String[] preference, boolean combinableOnly) throws IOException {
+		String[] hash = session.hasFeature("HASH") ? session.featureValues("HASH") : null;
+		for(String algorithm : preference) {
+			if(combinableOnly && !isCrc(algorithm)) continue;
+			if(hash != null) {
+				// FEAT lists them like "SHA-1*;SHA-256;MD5", the star marks the current one
+				for(String v : hash) {
+					for(String offered : v.split(";")) {
+						if(normalize(offered.replace("*", "").trim()).equals(algorithm)) return new Method("HASH", algorithm);
+					}
+				}
+			}
+			if(algorithm.equals("MD5") && session.hasFeature("XMD5")) return new Method("XMD5", "MD5");
+			if(algorithm.equals("MD5") && session.hasFeature("MD5")) return new Method("MD5", "MD5");
+			if(algorithm.equals("CRC32") && session.hasFeature("XCRC")) return new Method("XCRC", "CRC32");
+		}
+		return null;
+	}
+
+	/*
+	 * Like fetch(session, command, path), switching HASH to the method's algorithm first
+	 */
+	public static RemoteChecksum fetch(FTPClient session, Method method, String remotePath) throws IOException {
+		if(method.command.equals("HASH")) {
+			if(session instanceof ChannelFTPClient) {
+				if(!((ChannelFTPClient) session).selectHashAlgorithm(method.algorithm)) return null;
+			}else if(!FTPReply.isPositiveCompletion(session.sendCommand("OPTS", "HASH " + method.algorithm))) {
+				return null;
+			}
+		}
+		RemoteChecksum sum = fetch(session, method.command, remotePath);
+		return sum != null && sum.algorithm.equals(method.algorithm) ? sum : null;
+	}
+
+	/*
+	 * Asks the server for the checksum of a file
+	 * @return RemoteChecksum: or null if the command failed
+	 */
+	public static RemoteChecksum fetch(FTPClient session, String command, String remotePath) throws IOException {
+		if(command == null) return null;
+		// a timeout would be taken for a lost connection, and the same slow command replayed after reconnecting
+		int timeout = session.getSoTimeout();
+		boolean raise = timeout > 0 && timeout < Model.CHECKSUM_REPLY_TIMEOUT_SECONDS * 1000;
+		if(raise) session.setSoTimeout(Model.CHECKSUM_REPLY_TIMEOUT_SECONDS * 1000);
+		int code;
+		try {
+			code = session.sendCommand(command, remotePath);
+		} finally {
+			if(raise && session.isConnected()) session.setSoTimeout(timeout);
+		}
+		if(!FTPReply.isPositiveCompletion(code)) return null;
+		String[] words = session.getReplyString().trim().split("\\s+");
+		if(words.length < 2) return null;
+		switch(command) {
+		case "HASH":
+			// 213 <algorithm> <range> <hash> <file>
+			if(words.length < 4) return null;
+			return new RemoteChecksum(normalize(words[1]), words[3]);
+		case "XMD5":
+		case "MD5":
+			// 251 <file> <hash>, or just the hash
+			return new RemoteChecksum("MD5", words[words.length - 1]);
+		case "XCRC":
+			return new RemoteChecksum("CRC32", words[words.length - 1]);
+		default:
+			return null;
+		}
+	}
+
+	/*
+	 * Computes the same kind of checksum over a local file
+	 */
+	public static String local(Path file, String algorithm) throws IOException {
+		Hasher h = hasher(algorithm);
+		byte[] buffer = new byte[64 * 1024];
+		try(InputStream in = Files.newInputStream(file)) {
+			int n;
+			while((n = in.read(buffer)) > 0) h.update(buffer, 0, n);
+		}
+		return h.hex();
+	}
+
+	/*
+	 * Feeds length bytes of a local file from start into the hasher, for the part
+	 * of a resumed transfer that was moved in an earlier run
+	 */
+	public static void hashRange(Path file, long start, long length, Hasher h) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+		try(FileChannel ch = FileChannel.open(file)) {
+			long position = start;
+			long end = start + length;
+			while(position < end) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), end - position));
+				int n = ch.read(buffer, position);
+				if(n < 0) throw new IOException("Unexpected end of " + file + " at " + position);
+				buffer.flip();
+				h.update(buffer);
+				position += n;
+			}
+		}
+	}
+
+	/*
+	 * Joins the CRCs of two consecutive ranges, as zlib's crc32_combine does
+	 * @param lengthB: bytes in the second range
+	 * @return String: the CRC of both ranges together, in hex
+	 */
+	public static String combine(String algorithm, String crcA, String crcB, long lengthB) {
+		long poly = algorithm.equals("CRC32C") ? 0x82F63B78L : 0xEDB88320L;
+		long a = Long.parseLong(crcA, 16);
+		long b = Long.parseLong(crcB, 16);
+		if(lengthB <= 0) return Long.toHexString(a);
+		// operator for one zero bit, then squared to two and four
+		long[] odd = new long[32];
+		long[] even = new long[32];
+		odd[0] = poly;
+		long row = 1;
+		for(int n = 1; n < 32; n++) {
+			odd[n] = row;
+			row <<= 1;
+		}
+		square(even, odd);
+		square(odd, even);
+		// apply lengthB zero bytes to crcA, one bit of the length at a time
+		long len = lengthB;
+		do {
+			square(even, odd);
+			if((len & 1) != 0) a = times(even, a);
+			len >>= 1;
+			if(len == 0) break;
+			square(odd, even);
+			if((len & 1) != 0) a = times(odd, a);
+			len >>= 1;
+		} while(len != 0);
+		return Long.toHexString((a ^ b) & 0xFFFFFFFFL);
+	}
+
+	private static long times(long[] matrix, long vector) {
+		long sum = 0;
+		for(int i = 0; vector != 0; i++, vector >>>= 1) if((vector & 1) != 0) sum ^= matrix[i];
+		return sum;
+	}
+
+	private static void square(long[] square, long[] matrix) {
+		for(int n = 0; n < 32; n++) square[n] = times(matrix, matrix[n]);
+	}
+
+	private static boolean isCrc(String algorithm) {
+		return "CRC32".equals(algorithm) || "CRC32C".equals(algorithm);
+	}
+
+	public boolean matches(String hex) {
+		return hex != null && stripZeros(value).equals(stripZeros(hex.toLowerCase(Locale.ROOT)));
+	}
+
+	/*
+	 * Incremental digest over the bytes of a transfer
+	 */
+	public interface Hasher {
+		void update(byte[] b, int off, int len);
+		// consumes the remaining bytes, direct buffers included
+		void update(ByteBuffer b);
+		String hex();
+	}
+
+	public static Hasher hasher(String algorithm) throws IOException {
+		if(isCrc(algorithm)) {
+			Checksum crc = "CRC32C".equals(algorithm) ? new CRC32C() : new CRC32();
+			return new Hasher() {
+				@Override
+				public void update(byte[] b, int off, int len) {
+					crc.update(b, off, len);
+				}
+
+				@Override
+				public void update(ByteBuffer b) {
+					crc.update(b);
+				}
+
+				@Override
+				public String hex() {
+					return Long.toHexString(crc.getValue());
+				}
+			};
+		}
+		MessageDigest md;
+		try {
+			md = MessageDigest.getInstance(algorithm);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("Unsupported checksum " + algorithm, e);
+		}
+		return new Hasher() {
+			@Override
+			public void update(byte[] b, int off, int len) {
+				md.update(b, off, len);
+			}
+
+			@Override
+			public void update(ByteBuffer b) {
+				md.update(b);
+			}
+
+			@Override
+			public String hex() {
+				StringBuilder sb = new StringBuilder();
+				for(byte x : md.digest()) sb.append(String.format("%02x", x));
+				return sb.toString();
+			}
+		};
+	}
+
+	private static String normalize(String algorithm) {
+		String a = algorithm.toUpperCase(Locale.ROOT);
+		switch(a) {
+		case "SHA1": return "SHA-1";
+		case "SHA256": return "SHA-256";
+		case "SHA512": return "SHA-512";
+		case "CRC": return "CRC32";
+		case "CRC-32": return "CRC32";
+		case "CRC32-C": return "CRC32C";
+		default: return a;
+		}
+	}
+
+	// CRC replies are not always zero padded
+	private static String stripZeros(String hex) {
+		int i = 0;
+		while(i < hex.length() - 1 && hex.charAt(i) == '0') i++;
+		return hex.substring(i);
+	}
+}
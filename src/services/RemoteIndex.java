@@ -0,0 +1,539 @@
+package services;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.text.SimpleDateFormat;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/*
+ * Read-only, memory-mapped index of a remote tree: every directory with the
+ * path, size, time and type of its entries. The file is written once by the
+ * IndexCrawler and opened without parsing, so searches over millions of
+ * entries read the mapped pages directly.
+ *
+ * Layout, all numbers big-endian:
+ *   header   magic, version, counts, build times and section offsets
+ *   records  RECORD_SIZE bytes per entry, grouped by directory, by name inside one
+ *   dirs     DIR_SIZE bytes per directory, sorted by path, with its MDTM stamp
+ *   byName   record numbers sorted by case-insensitive name, for prefix lookups
+ *   strings  UTF-8 of every name and directory path
+ */
+public class RemoteIndex {
+
+	private static final long MAGIC = 0x5446504944583031L; // "TFPIDX01"
+	private static final int VERSION = 1;
+	private static final int HEADER_SIZE = 72;
+	private static final int RECORD_SIZE = 32;
+	private static final int DIR_SIZE = 24;
+
+	// record: dir, name offset, name length, flags, size, time
+	private static final int R_DIR = 0, R_NAME = 4, R_NAME_LEN = 8, R_FLAGS = 12, R_SIZE = 16, R_TIME = 24;
+	// dir: path offset, path length, first record, record count, stamp
+	private static final int D_PATH = 0, D_PATH_LEN = 4, D_FIRST = 8, D_COUNT = 12, D_STAMP = 16;
+	private static final int FLAG_DIR = 1;
+
+	/*
+	 * One entry found by a search
+	 */
+	public static class Hit {
+		public final String dir;
+		public final String name;
+		public final long size;
+		public final long time;
+		public final boolean directory;
+
+		Hit(String dir, String name, long size, long time, boolean directory) {
+			this.dir = dir;
+			this.name = name;
+			this.size = size;
+			this.time = time;
+			this.directory = directory;
+		}
+
+		public String getPath() {
+			return SyncEngine.join(dir, name);
+		}
+
+		@Override
+		public String toString() {
+			if(directory) return "(DIR) " + getPath();
+			String date = time < 0 ? "" : "  " + new SimpleDateFormat("yyyy-MM-dd HH:mm").format(new Date(time));
+			return getPath() + "  " + TransferMetrics.formatBytes(size) + date;
+		}
+	}
+
+	/*
+	 * Search criteria. Parsed from text like "*.csv >10M after:2024-01-01 type:f in:/logs":
+	 * a name with * or ? is a glob, any other name matches as a substring, both
+	 * ignoring ASCII case; >n and <n bound the size (K, M, G suffixes), after:
+	 * and before: the modification date, type: f or d, in: the directory tree
+	 */
+	public static class Query {
+		public String name = "";
+		public long minSize = -1;
+		public long maxSize = -1;
+		public long after = -1;
+		public long before = -1;
+		// null for both files and directories
+		public Boolean directories;
+		public String under;
+
+		public static Query parse(String text) {
+			Query q = new Query();
+			StringBuilder name = new StringBuilder();
+			for(String t : text.trim().split("\\s+")) {
+				if(t.isEmpty()) continue;
+				if(t.length() > 1 && (t.charAt(0) == '>' || t.charAt(0) == '<') && Character.isDigit(t.charAt(1))) {
+					long n = parseSize(t.substring(1));
+					if(t.charAt(0) == '>') q.minSize = n;
+					else q.maxSize = n;
+				}else if(t.startsWith("after:")) {
+					q.after = parseDate(t.substring(6));
+				}else if(t.startsWith("before:")) {
+					q.before = parseDate(t.substring(7));
+				}else if(t.equals("type:f") || t.equals("type:d")) {
+					q.directories = t.equals("type:d");
+				}else if(t.startsWith("in:") && t.length() > 3) {
+					q.under = t.substring(3);
+				}else {
+					if(name.length() > 0) name.append(' ');
+					name.append(t);
+				}
+			}
+			q.name = name.toString();
+			return q;
+		}
+
+		private static long parseSize(String s) {
+			long unit = 1;
+			char last = Character.toUpperCase(s.charAt(s.length() - 1));
+			if(last == 'K') unit = 1024;
+			else if(last == 'M') unit = 1024L * 1024;
+			else if(last == 'G') unit = 1024L * 1024 * 1024;
+			if(unit > 1) s = s.substring(0, s.length() - 1);
+			try {
+				return (long) (Double.parseDouble(s) * unit);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Kích thước không hợp lệ: " + s);
+			}
+		}
+
+		private static long parseDate(String s) {
+			try {
+				return LocalDate.parse(s).atStartOfDay(ZoneId.systemDefault()).toInstant().toEpochMilli();
+			} catch (DateTimeParseException e) {
+				throw new IllegalArgumentException("Ngày không hợp lệ (yyyy-MM-dd): " + s);
+			}
+		}
+	}
+
+	private final Path file;
+	private final MappedByteBuffer buf;
+	private final int recordCount;
+	private final int dirCount;
+	private final long builtAt;
+	private final long fullCrawlAt;
+	private final int records;
+	private final int dirs;
+	private final int byName;
+	private final int strings;
+
+	private RemoteIndex(Path file, MappedByteBuffer buf) throws IOException {
+		this.file = file;
+		this.buf = buf;
+		if(buf.capacity() < HEADER_SIZE || buf.getLong(0) != MAGIC || buf.getInt(8) != VERSION) {
+			throw new IOException("Not a remote index: " + file);
+		}
+		recordCount = buf.getInt(12);
+		dirCount = buf.getInt(16);
+		builtAt = buf.getLong(24);
+		fullCrawlAt = buf.getLong(32);
+		records = (int) buf.getLong(40);
+		dirs = (int) buf.getLong(48);
+		byName = (int) buf.getLong(56);
+		strings = (int) buf.getLong(64);
+	}
+
+	/*
+	 * Maps an index file; nothing is read until it is searched
+	 */
+	public static RemoteIndex open(Path file) throws IOException {
+		try(FileChannel ch = FileChannel.open(file)) {
+			if(ch.size() > Integer.MAX_VALUE) throw new IOException("Remote index too large: " + file);
+			return new RemoteIndex(file, ch.map(FileChannel.MapMode.READ_ONLY, 0, ch.size()));
+		}
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	public int getEntryCount() {
+		return recordCount;
+	}
+
+	public int getDirectoryCount() {
+		return dirCount;
+	}
+
+	public long getBuiltAt() {
+		return builtAt;
+	}
+
+	/*
+	 * @return long: when the last crawl that listed every directory ended
+	 */
+	public long getFullCrawlAt() {
+		return fullCrawlAt;
+	}
+
+	/*
+	 * @return List<Hit>: up to limit entries matching the query, ordered by name
+	 */
+	public List<Hit> search(Query q, int limit) {
+		List<Hit> hits = new ArrayList<>();
+		boolean[] inTree = null;
+		if(q.under != null) {
+			String root = q.under.endsWith("/") && q.under.length() > 1 ? q.under.substring(0, q.under.length() - 1) : q.under;
+			inTree = new boolean[dirCount];
+			for(int d = 0; d < dirCount; d++) {
+				String p = dirPath(d);
+				inTree[d] = root.equals("/") || p.equals(root) || p.startsWith(root + "/");
+			}
+		}
+		byte[] pattern = lower(q.name.getBytes(StandardCharsets.UTF_8));
+		boolean glob = q.name.indexOf('*') >= 0 || q.name.indexOf('?') >= 0;
+		int from = 0;
+		int to = recordCount;
+		// a literal prefix followed by a single trailing * is a range of the name order
+		byte[] prefix = null;
+		if(glob && pattern.length > 1 && pattern[pattern.length - 1] == '*' && q.name.indexOf('*') == q.name.length() - 1
+				&& q.name.indexOf('?') < 0) {
+			prefix = Arrays.copyOf(pattern, pattern.length - 1);
+			from = lowerBound(prefix);
+		}
+		byte[] scratch = new byte[256];
+		for(int i = from; i < to && hits.size() < limit; i++) {
+			int r = records + buf.getInt(byName + 4 * i) * RECORD_SIZE;
+			int nameOff = strings + buf.getInt(r + R_NAME);
+			int nameLen = buf.getInt(r + R_NAME_LEN);
+			if(prefix != null && !startsWith(nameOff, nameLen, prefix)) break;
+			boolean directory = (buf.getInt(r + R_FLAGS) & FLAG_DIR) != 0;
+			if(q.directories != null && q.directories != directory) continue;
+			long size = buf.getLong(r + R_SIZE);
+			if(q.minSize >= 0 && (directory || size < q.minSize)) continue;
+			if(q.maxSize >= 0 && (directory || size > q.maxSize)) continue;
+			long time = buf.getLong(r + R_TIME);
+			if(q.after >= 0 && time < q.after) continue;
+			if(q.before >= 0 && (time < 0 || time >= q.before)) continue;
+			int dir = buf.getInt(r + R_DIR);
+			if(inTree != null && !inTree[dir]) continue;
+			if(prefix == null && pattern.length > 0) {
+				if(scratch.length < nameLen) scratch = new byte[nameLen * 2];
+				for(int k = 0; k < nameLen; k++) scratch[k] = lower(buf.get(nameOff + k));
+				if(glob ? !globMatch(pattern, scratch, nameLen) : indexOf(scratch, nameLen, pattern) < 0) continue;
+			}
+			hits.add(new Hit(dirPath(dir), string(nameOff, nameLen), size, time, directory));
+		}
+		return hits;
+	}
+
+	/*
+	 * @return int: number of the directory with this path, -1 if it is not indexed
+	 */
+	public int findDirectory(String path) {
+		byte[] key = path.getBytes(StandardCharsets.UTF_8);
+		int lo = 0;
+		int hi = dirCount - 1;
+		while(lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int d = dirs + mid * DIR_SIZE;
+			int c = compare(strings + buf.getInt(d + D_PATH), buf.getInt(d + D_PATH_LEN), key, false);
+			if(c < 0) lo = mid + 1;
+			else if(c > 0) hi = mid - 1;
+			else return mid;
+		}
+		return -1;
+	}
+
+	/*
+	 * @return long: MDTM of the directory when it was listed, -1 if the server gave none
+	 */
+	public long getStamp(int dir) {
+		return buf.getLong(dirs + dir * DIR_SIZE + D_STAMP);
+	}
+
+	/*
+	 * @return RemoteListing: the entries of the directory as they were indexed
+	 */
+	public RemoteListing getListing(int dir) {
+		int d = dirs + dir * DIR_SIZE;
+		int first = buf.getInt(d + D_FIRST);
+		int count = buf.getInt(d + D_COUNT);
+		RemoteListing l = new RemoteListing();
+		for(int i = first; i < first + count; i++) {
+			int r = records + i * RECORD_SIZE;
+			l.add(string(strings + buf.getInt(r + R_NAME), buf.getInt(r + R_NAME_LEN)), buf.getLong(r + R_SIZE),
+					buf.getLong(r + R_TIME), (buf.getInt(r + R_FLAGS) & FLAG_DIR) != 0);
+		}
+		return l;
+	}
+
+	private String dirPath(int dir) {
+		int d = dirs + dir * DIR_SIZE;
+		return string(strings + buf.getInt(d + D_PATH), buf.getInt(d + D_PATH_LEN));
+	}
+
+	private String string(int offset, int length) {
+		byte[] b = new byte[length];
+		for(int i = 0; i < length; i++) b[i] = buf.get(offset + i);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/*
+	 * @return int: first position in the name order whose name is not below prefix
+	 */
+	private int lowerBound(byte[] prefix) {
+		int lo = 0;
+		int hi = recordCount;
+		while(lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			int r = records + buf.getInt(byName + 4 * mid) * RECORD_SIZE;
+			if(compare(strings + buf.getInt(r + R_NAME), buf.getInt(r + R_NAME_LEN), prefix, true) < 0) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	private boolean startsWith(int offset, int length, byte[] prefix) {
+		if(length < prefix.length) return false;
+		for(int i = 0; i < prefix.length; i++) if(lower(buf.get(offset + i)) != prefix[i]) return false;
+		return true;
+	}
+
+	private int compare(int offset, int length, byte[] key, boolean ignoreCase) {
+		int n = Math.min(length, key.length);
+		for(int i = 0; i < n; i++) {
+			byte b = buf.get(offset + i);
+			int c = Integer.compare((ignoreCase ? lower(b) : b) & 0xff, key[i] & 0xff);
+			if(c != 0) return c;
+		}
+		return Integer.compare(length, key.length);
+	}
+
+	static byte lower(byte b) {
+		return b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+	}
+
+	static byte[] lower(byte[] b) {
+		byte[] l = new byte[b.length];
+		for(int i = 0; i < b.length; i++) l[i] = lower(b[i]);
+		return l;
+	}
+
+	static int compareIgnoreCase(byte[] a, byte[] b) {
+		int n = Math.min(a.length, b.length);
+		for(int i = 0; i < n; i++) {
+			int c = Integer.compare(lower(a[i]) & 0xff, lower(b[i]) & 0xff);
+			if(c != 0) return c;
+		}
+		return Integer.compare(a.length, b.length);
+	}
+
+	private static int indexOf(byte[] text, int length, byte[] pattern) {
+		outer:
+		for(int i = 0; i + pattern.length <= length; i++) {
+			for(int k = 0; k < pattern.length; k++) if(text[i + k] != pattern[k]) continue outer;
+			return i;
+		}
+		return -1;
+	}
+
+	/*
+	 * Glob over UTF-8 bytes: * any run, ? exactly one character
+	 */
+	private static boolean globMatch(byte[] p, byte[] s, int length) {
+		int pi = 0;
+		int si = 0;
+		int star = -1;
+		int mark = 0;
+		while(si < length) {
+			if(pi < p.length && p[pi] == '?') {
+				pi++;
+				si = nextChar(s, si, length);
+			}else if(pi < p.length && p[pi] == '*') {
+				star = pi++;
+				mark = si;
+			}else if(pi < p.length && p[pi] == s[si]) {
+				pi++;
+				si++;
+			}else if(star >= 0) {
+				pi = star + 1;
+				mark = nextChar(s, mark, length);
+				si = mark;
+			}else {
+				return false;
+			}
+		}
+		while(pi < p.length && p[pi] == '*') pi++;
+		return pi == p.length;
+	}
+
+	private static int nextChar(byte[] s, int i, int length) {
+		i++;
+		while(i < length && (s[i] & 0xC0) == 0x80) i++;
+		return i;
+	}
+
+	/*
+	 * Collects directory listings and writes them as an index file
+	 */
+	public static class Builder {
+
+		private static class Dir {
+			final String path;
+			final byte[] pathBytes;
+			final long stamp;
+			final RemoteListing listing;
+
+			Dir(String path, long stamp, RemoteListing listing) {
+				this.path = path;
+				this.pathBytes = path.getBytes(StandardCharsets.UTF_8);
+				this.stamp = stamp;
+				this.listing = listing;
+			}
+		}
+
+		private final List<Dir> dirs = new ArrayList<>();
+
+		/*
+		 * @param stamp: MDTM of the directory taken before it was listed, -1 if unknown
+		 */
+		public synchronized void add(String path, long stamp, RemoteListing listing) {
+			dirs.add(new Dir(path, stamp, listing));
+		}
+
+		public synchronized int getDirectoryCount() {
+			return dirs.size();
+		}
+
+		/*
+		 * Writes the index next to file and moves it into place
+		 * @param fullCrawlAt: time of the last crawl that listed every directory
+		 */
+		public synchronized RemoteIndex write(Path file, long fullCrawlAt) throws IOException {
+			dirs.sort((a, b) -> compareBytes(a.pathBytes, b.pathBytes));
+			int total = 0;
+			for(Dir d : dirs) total += d.listing.size();
+			byte[][] names = new byte[total][];
+			int[] recordDir = new int[total];
+			long[] sizes = new long[total];
+			long[] times = new long[total];
+			boolean[] isDir = new boolean[total];
+			int[] first = new int[dirs.size()];
+			long stringsSize = 0;
+			int r = 0;
+			for(int d = 0; d < dirs.size(); d++) {
+				Dir dir = dirs.get(d);
+				stringsSize += dir.pathBytes.length;
+				first[d] = r;
+				RemoteListing l = dir.listing;
+				int n = l.size();
+				byte[][] own = new byte[n][];
+				Integer[] order = new Integer[n];
+				for(int i = 0; i < n; i++) {
+					own[i] = l.getName(i).getBytes(StandardCharsets.UTF_8);
+					order[i] = i;
+				}
+				Arrays.sort(order, (a, b) -> compareIgnoreCase(own[a], own[b]));
+				for(int i : order) {
+					names[r] = own[i];
+					recordDir[r] = d;
+					sizes[r] = l.getSize(i);
+					times[r] = l.getTime(i);
+					isDir[r] = l.isDirectory(i);
+					stringsSize += own[i].length;
+					r++;
+				}
+			}
+			Integer[] nameOrder = new Integer[total];
+			for(int i = 0; i < total; i++) nameOrder[i] = i;
+			Arrays.sort(nameOrder, (a, b) -> {
+				int c = compareIgnoreCase(names[a], names[b]);
+				return c != 0 ? c : Integer.compare(a, b);
+			});
+
+			long recordsOff = HEADER_SIZE;
+			long dirsOff = recordsOff + (long) total * RECORD_SIZE;
+			long byNameOff = dirsOff + (long) dirs.size() * DIR_SIZE;
+			long stringsOff = byNameOff + 4L * total;
+			if(stringsOff + stringsSize > Integer.MAX_VALUE) throw new IOException("Remote index too large: " + total + " entries");
+
+			Files.createDirectories(file.getParent());
+			Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+				out.writeLong(MAGIC);
+				out.writeInt(VERSION);
+				out.writeInt(total);
+				out.writeInt(dirs.size());
+				out.writeInt(0);
+				out.writeLong(System.currentTimeMillis());
+				out.writeLong(fullCrawlAt);
+				out.writeLong(recordsOff);
+				out.writeLong(dirsOff);
+				out.writeLong(byNameOff);
+				out.writeLong(stringsOff);
+				// the names follow the directory paths in the string pool
+				int nameOffset = 0;
+				for(Dir d : dirs) nameOffset += d.pathBytes.length;
+				for(int i = 0; i < total; i++) {
+					out.writeInt(recordDir[i]);
+					out.writeInt(nameOffset);
+					out.writeInt(names[i].length);
+					out.writeInt(isDir[i] ? FLAG_DIR : 0);
+					out.writeLong(sizes[i]);
+					out.writeLong(times[i]);
+					nameOffset += names[i].length;
+				}
+				int pathOffset = 0;
+				for(int d = 0; d < dirs.size(); d++) {
+					Dir dir = dirs.get(d);
+					out.writeInt(pathOffset);
+					out.writeInt(dir.pathBytes.length);
+					out.writeInt(first[d]);
+					out.writeInt(dir.listing.size());
+					out.writeLong(dir.stamp);
+					pathOffset += dir.pathBytes.length;
+				}
+				for(int i = 0; i < total; i++) out.writeInt(nameOrder[i]);
+				for(Dir d : dirs) out.write(d.pathBytes);
+				for(int i = 0; i < total; i++) out.write(names[i]);
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return open(file);
+		}
+
+		private static int compareBytes(byte[] a, byte[] b) {
+			return Arrays.compareUnsigned(a, b);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format(Locale.ROOT, "%d mục trong %d thư mục", recordCount, dirCount);
+	}
+}
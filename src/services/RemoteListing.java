@@ -0,0 +1,83 @@
+package services;
+
+import java.util.Arrays;
+import java.util.Calendar;
+
+import org.apache.commons.net.ftp.FTPFile;
+
+/*
+ * Compact, append-only directory listing: names, sizes, times and types are
+ * kept in parallel arrays instead of one FTPFile object per entry.
+ * Entries are appended by the listing thread while the UI reads the ones
+ * already published, so every access is synchronized.
+ */
+public class RemoteListing {
+
+	private static final int INITIAL_CAPACITY = 256;
+
+	private String[] names = new String[INITIAL_CAPACITY];
+	private long[] sizes = new long[INITIAL_CAPACITY];
+	private long[] times = new long[INITIAL_CAPACITY];
+	private boolean[] dirs = new boolean[INITIAL_CAPACITY];
+	private int count;
+
+	public static RemoteListing of(FTPFile[] files) {
+		RemoteListing l = new RemoteListing();
+		if(files != null) for(FTPFile f : files) l.add(f);
+		return l;
+	}
+
+	/*
+	 * Appends an entry, skipping "." and ".."
+	 */
+	public synchronized void add(FTPFile f) {
+		if(f == null) return;
+		String name = f.getName();
+		if(name == null || name.equals(".") || name.equals("..")) return;
+		Calendar ts = f.getTimestamp();
+		add(name, f.getSize(), ts == null ? -1 : ts.getTimeInMillis(), f.isDirectory());
+	}
+
+	/*
+	 * Appends an entry already parsed, e.g. read back from the RemoteIndex
+	 */
+	public synchronized void add(String name, long size, long time, boolean directory) {
+		if(count == names.length) grow();
+		names[count] = name;
+		sizes[count] = size;
+		times[count] = time;
+		dirs[count] = directory;
+		count++;
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+	public synchronized String getName(int i) {
+		return names[i];
+	}
+
+	public synchronized long getSize(int i) {
+		return sizes[i];
+	}
+
+	/*
+	 * @return long: modification time in millis, -1 if the listing had none
+	 */
+	public synchronized long getTime(int i) {
+		return times[i];
+	}
+
+	public synchronized boolean isDirectory(int i) {
+		return dirs[i];
+	}
+
+	private void grow() {
+		int n = names.length * 2;
+		names = Arrays.copyOf(names, n);
+		sizes = Arrays.copyOf(sizes, n);
+		times = Arrays.copyOf(times, n);
+		dirs = Arrays.copyOf(dirs, n);
+	}
+}
@@ -0,0 +1,158 @@
+package services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+/*
+ * A remote file read while it downloads, as an InputStream or a
+ * ReadableByteChannel. A pooled session retrieves the file into a
+ * BoundedPipe and the reader takes the bytes out of it, so no more than the
+ * read-ahead is ever held in memory: when the reader is slower than the
+ * network the download simply waits. The end of the stream is only reported
+ * once the transfer has completed, so a failed RETR or a wrong checksum is
+ * thrown by the last read rather than passing unnoticed. Closing the stream
+ * before the end aborts the download.
+ */
+public class RemoteStream extends InputStream implements ReadableByteChannel {
+
+	/*
+	 * Downloads the file into sink, returns the bytes written
+	 */
+	interface Producer {
+		long run(WritableByteChannel sink) throws IOException;
+	}
+
+	private final String remotePath;
+	private final BoundedPipe pipe;
+	// bytes handed to the pipe so far, so a producer that resumes knows where to restart
+	private volatile long received;
+	private CompletableFuture<Long> producer;
+	private volatile boolean open = true;
+
+	/*
+	 * @param readAhead: bytes buffered ahead of the reader at most
+	 */
+	RemoteStream(String remotePath, int readAhead) {
+		this.remotePath = remotePath;
+		pipe = new BoundedPipe(readAhead, false);
+	}
+
+	/*
+	 * Runs the producer on the executor; the stream ends once it returns
+	 */
+	void start(TransferExecutor executor, Producer task) {
+		WritableByteChannel sink = pipe.sink();
+		WritableByteChannel counting = new WritableByteChannel() {
+			@Override
+			public int write(ByteBuffer src) throws IOException {
+				int n = sink.write(src);
+				received += n;
+				return n;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return sink.isOpen();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+		producer = executor.submit(() -> {
+			try {
+				long n = task.run(counting);
+				pipe.closeSink();
+				return n;
+			} catch (IOException e) {
+				pipe.fail(e);
+				throw e;
+			} catch (RuntimeException e) {
+				pipe.fail(new IOException(e));
+				throw e;
+			}
+		});
+	}
+
+	public String getRemotePath() {
+		return remotePath;
+	}
+
+	/*
+	 * @return long: bytes downloaded so far, read or still buffered
+	 */
+	public long getReceived() {
+		return received;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if(!open) throw new ClosedChannelException();
+		int n;
+		try {
+			n = pipe.read(dst);
+		} catch (IOException e) {
+			// the error of the download itself says more than the pipe's
+			awaitProducer();
+			throw e;
+		}
+		// the last byte came, the transfer may still fail on its reply or its checksum
+		if(n < 0) awaitProducer();
+		return n;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		Objects.checkFromIndexSize(off, len, b.length);
+		if(len == 0) return 0;
+		return read(ByteBuffer.wrap(b, off, len));
+	}
+
+	@Override
+	public int read() throws IOException {
+		byte[] one = new byte[1];
+		return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+	}
+
+	/*
+	 * @return int: bytes that can be read without waiting for the network
+	 */
+	@Override
+	public int available() throws IOException {
+		if(!open) throw new ClosedChannelException();
+		return pipe.available();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return open;
+	}
+
+	/*
+	 * Stops reading; a download still running fails on its next write and drops its session
+	 */
+	@Override
+	public void close() {
+		if(!open) return;
+		open = false;
+		pipe.closeSource();
+	}
+
+	private void awaitProducer() throws IOException {
+		try {
+			producer.join();
+		} catch (CompletionException | CancellationException e) {
+			Throwable cause = e.getCause() != null ? e.getCause() : e;
+			if(cause instanceof IOException) throw (IOException) cause;
+			throw new IOException("Download of " + remotePath + " failed", cause);
+		}
+	}
+}
@@ -0,0 +1,322 @@
+package services;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+
+import classes.Model;
+
+/*
+ * Downloads a large remote file over several pooled sessions at once. Each
+ * session fetches one byte range (REST + RETR) and writes it at its offset
+ * in a preallocated local file. Progress of every range is kept in the
+ * TransferJournal so interrupted downloads can be resumed.
+ *
+ * When the profile asks to verify, every range is hashed while it streams
+ * and the range CRCs are joined into the checksum of the file, which is
+ * compared with the server's. Hashes that cannot be joined, like MD5, make
+ * the file come in one range. A file that does not match is thrown away.
+ *
+ * With a DownloadCache, a large file whose SIZE and MDTM match a copy kept
+ * from an earlier download is taken from there instead of the server.
+ */
+public class SegmentedDownloader {
+
+	private final ConnectionPool pool;
+	private final TransferEngine engine;
+	private final TransferJournal journal;
+	private final TransferMetrics metrics;
+	private final BandwidthLimiter limiter;
+	private final int segments;
+	private final long minSegmentSize;
+	private final TransferExecutor workers;
+	private volatile DownloadCache cache;
+	private volatile String origin;
+
+	/*
+	 * @param metrics: receives the progress of every download, may be null
+	 * @param limiter: paces the downloads, may be null
+	 * @param segments: max number of ranges fetched in parallel, 1 disables segmentation
+	 * @param minSegmentSize: files are never split in ranges smaller than this
+	 */
+	public SegmentedDownloader(ConnectionPool pool, TransferEngine engine, TransferJournal journal, TransferMetrics metrics,
+			BandwidthLimiter limiter, int segments, long minSegmentSize) {
+		this.pool = pool;
+		this.engine = engine;
+		this.journal = journal;
+		this.metrics = metrics;
+		this.limiter = limiter;
+		this.segments = Math.max(1, segments);
+		this.minSegmentSize = Math.max(1, minSegmentSize);
+		// every running download queues its segments here, as many as the transfer queue runs at once
+		workers = new TransferExecutor("ftp-segment", this.segments, Integer.MAX_VALUE);
+	}
+
+	/*
+	 * Serves unchanged files from the cache and keeps the ones downloaded
+	 * @param origin: the server and user of the pool, part of every cache key
+	 */
+	public void setCache(DownloadCache cache, String origin) {
+		this.origin = origin;
+		this.cache = cache;
+	}
+
+	/*
+	 * Downloads remotePath into local, splitting it when it is big enough. If the
+	 * journal holds an interrupted download of the same unchanged remote file,
+	 * only the missing bytes of each range are fetched.
+	 * @return boolean: true if the whole file was written
+	 */
+	public boolean download(String remotePath, File local) throws IOException {
+		return download(remotePath, local, 1);
+	}
+
+	/*
+	 * @param weight: bandwidth share against the other transfers, all ranges together
+	 */
+	public boolean download(String remotePath, File local, int weight) throws IOException {
+		TransferMetrics.Transfer transfer = metrics == null ? null : metrics.begin(remotePath, TransferJournal.Direction.DOWNLOAD, -1);
+		BandwidthLimiter.Flow flow = limiter == null ? null : limiter.open(remotePath, weight);
+		boolean success = false;
+		try {
+			success = download(remotePath, local, transfer, flow);
+			return success;
+		} finally {
+			if(flow != null) flow.close();
+			if(metrics != null) metrics.finish(transfer, success);
+		}
+	}
+
+	private boolean download(String remotePath, File local, TransferMetrics.Transfer transfer, BandwidthLimiter.Flow flow)
+			throws IOException {
+		long size;
+		long mtime;
+		RemoteChecksum.Method method = null;
+		DownloadCache c = cache;
+		// a file linked to the cache would be written in place, cached copy included
+		if(c != null) c.detach(local);
+		FTPClient session = pool.borrow(null);
+		try {
+			session.setFileType(FTP.BINARY_FILE_TYPE);
+			size = remoteSize(session, remotePath);
+			ConnectionProfile cfg = ((ChannelFTPClient) session).getProfile();
+			if(cfg != null && cfg.verify) {
+				method = RemoteChecksum.select(session, Model.VERIFY_ALGORITHMS, true);
+				if(method == null) method = RemoteChecksum.select(session, Model.VERIFY_ALGORITHMS, false);
+			}
+			if(size < 0 || size <= Model.SMALL_FILE_SIZE) {
+				// without SIZE the download can be neither split nor resumed; a small file is
+				// fetched right away on this session, without MDTM, journal or a second borrow
+				if(transfer != null && size >= 0) transfer.setExpected(size);
+				boolean success;
+				RemoteChecksum.Hasher hasher = method == null ? null : RemoteChecksum.hasher(method.algorithm);
+				try(FileChannel out = FileChannel.open(local.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+					success = engine.download(session, remotePath, 0, -1, out, flow, hasher, transfer);
+				}
+				if(success && hasher != null) check(session, method, remotePath, hasher.hex(), null);
+				if(success) pool.release(session);
+				else pool.invalidate(session);
+				session = null;
+				return success;
+			}
+			mtime = remoteModificationTime(session, remotePath);
+			pool.release(session);
+			session = null;
+		} finally {
+			if(session != null) pool.invalidate(session);
+		}
+
+		String localPath = local.getAbsolutePath();
+		TransferJournal.Entry entry = journal.find(TransferJournal.Direction.DOWNLOAD, pool.getServer(), remotePath, localPath);
+		if(c != null && c.restore(origin, remotePath, size, mtime, local)) {
+			// what an interrupted download left is replaced by the whole file
+			if(entry != null) journal.complete(entry);
+			return true;
+		}
+		// a hash that cannot be joined needs the bytes in order, so in one range
+		int count = method == null || method.isCombinable() ? segmentCount(size) : 1;
+		if(entry == null || !entry.matches(size, mtime) || !local.isFile() || entry.getSegments() > count) {
+			entry = journal.begin(TransferJournal.Direction.DOWNLOAD, pool.getServer(), remotePath, localPath, size, mtime, count);
+		}
+		if(transfer != null) transfer.setExpected(size - entry.getCommitted());
+		String hex = downloadSegments(remotePath, local, entry, transfer, flow, method);
+		if(hex != null) {
+			session = pool.borrow(null);
+			try {
+				check(session, method, remotePath, hex, entry);
+				pool.release(session);
+				session = null;
+			} finally {
+				if(session != null) pool.invalidate(session);
+			}
+		}
+		journal.complete(entry);
+		if(c != null) c.store(origin, remotePath, size, mtime, local);
+		return true;
+	}
+
+	/*
+	 * Retrieves remotePath in one piece and in order into target, for a reader that
+	 * consumes the bytes while they arrive. Nothing is journaled; a verified profile
+	 * checks the checksum after the last byte when the whole file was read.
+	 * @param offset: first byte wanted
+	 * @param target: a write that fails, because the reader went away, aborts the transfer
+	 * @return long: bytes written to target
+	 */
+	public long stream(String remotePath, long offset, WritableByteChannel target, int weight) throws IOException {
+		TransferMetrics.Transfer transfer = metrics == null ? null : metrics.begin(remotePath, TransferJournal.Direction.DOWNLOAD, -1);
+		long[] written = {0};
+		boolean success = false;
+		FTPClient session = null;
+		try(BandwidthLimiter.Flow flow = limiter == null ? null : limiter.open(remotePath, weight)) {
+			session = pool.borrow(null);
+			session.setFileType(FTP.BINARY_FILE_TYPE);
+			long size = remoteSize(session, remotePath);
+			if(transfer != null && size >= 0) transfer.setExpected(Math.max(0, size - offset));
+			RemoteChecksum.Method method = null;
+			ConnectionProfile cfg = ((ChannelFTPClient) session).getProfile();
+			if(offset == 0 && cfg != null && cfg.verify) method = RemoteChecksum.select(session, Model.VERIFY_ALGORITHMS, false);
+			RemoteChecksum.Hasher hasher = method == null ? null : RemoteChecksum.hasher(method.algorithm);
+			boolean reusable = engine.download(session, remotePath, offset, -1, target, flow, hasher, n -> {
+				written[0] += n;
+				if(transfer != null) transfer.accept(n);
+			});
+			if(!reusable) throw new IOException("RETR of " + remotePath + " failed: " + session.getReplyString());
+			if(hasher != null) check(session, method, remotePath, hasher.hex(), null);
+			pool.release(session);
+			session = null;
+			success = true;
+			return written[0];
+		} finally {
+			if(session != null) pool.invalidate(session);
+			if(metrics != null) metrics.finish(transfer, success);
+		}
+	}
+
+	/*
+	 * Compares a local hash with the server's checksum of the file
+	 * @param entry: dropped on a mismatch, so the retry starts over; may be null
+	 */
+	private void check(FTPClient session, RemoteChecksum.Method method, String remotePath, String hex,
+			TransferJournal.Entry entry) throws IOException {
+		RemoteChecksum sum = RemoteChecksum.fetch(session, method, remotePath);
+		// a server that advertised the command but failed it leaves the file unverified
+		if(sum == null || sum.matches(hex)) return;
+		if(entry != null) journal.complete(entry);
+		throw new IOException("Checksum mismatch on " + remotePath + ": " + method + " " + hex + " != " + sum.value);
+	}
+
+	public void shutdown() {
+		workers.shutdown();
+	}
+
+	private int segmentCount(long size) {
+		if(size <= 0) return 1;
+		long bySize = size / minSegmentSize;
+		return (int) Math.max(1, Math.min(segments, bySize));
+	}
+
+	/*
+	 * @param method: hashes every range when set
+	 * @return String: checksum of the whole file in method's algorithm, null without a method
+	 */
+	private String downloadSegments(String remotePath, File local, TransferJournal.Entry entry,
+			TransferMetrics.Transfer transfer, BandwidthLimiter.Flow flow, RemoteChecksum.Method method) throws IOException {
+		// setLength keeps what was already written, opening with a FileOutputStream would truncate it
+		try(RandomAccessFile raf = new RandomAccessFile(local, "rw")) {
+			raf.setLength(entry.size);
+			FileChannel channel = raf.getChannel();
+			int count = entry.getSegments();
+			long segmentSize = entry.size / count;
+			List<CompletableFuture<Void>> parts = new ArrayList<>(count);
+			RemoteChecksum.Hasher[] hashers = new RemoteChecksum.Hasher[count];
+			for(int i = 0; i < count; i++) {
+				int segment = i;
+				long done = entry.getCommitted(segment);
+				long first = segment * segmentSize;
+				long start = first + done;
+				long length = (segment == count - 1 ? entry.size - first : segmentSize) - done;
+				if(method != null) hashers[segment] = RemoteChecksum.hasher(method.algorithm);
+				RemoteChecksum.Hasher hasher = hashers[segment];
+				if(length <= 0 && hasher == null) continue;
+				parts.add(workers.submit(() -> {
+					// what an earlier run wrote is hashed from the disk
+					if(hasher != null && done > 0) RemoteChecksum.hashRange(local.toPath(), first, done, hasher);
+					if(length > 0) fetchSegment(remotePath, channel, start, length, entry, segment, transfer, flow, hasher);
+					return null;
+				}));
+			}
+			try {
+				CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0])).join();
+			} catch (CompletionException e) {
+				if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+				throw new IOException("Segmented download of " + remotePath + " failed", e.getCause());
+			}
+			if(method == null) return null;
+			String hex = hashers[0].hex();
+			for(int i = 1; i < count; i++) {
+				long length = i == count - 1 ? entry.size - i * segmentSize : segmentSize;
+				hex = RemoteChecksum.combine(method.algorithm, hex, hashers[i].hex(), length);
+			}
+			return hex;
+		}
+	}
+
+	private void fetchSegment(String remotePath, FileChannel channel, long start, long length,
+			TransferJournal.Entry entry, int segment, TransferMetrics.Transfer transfer, BandwidthLimiter.Flow flow,
+			RemoteChecksum.Hasher hasher) throws IOException {
+		FTPClient session = pool.borrow(null);
+		boolean reusable = false;
+		try {
+			session.setFileType(FTP.BINARY_FILE_TYPE);
+			// only a range that reached the end of the file finishes the RETR cleanly
+			reusable = engine.download(session, remotePath, start, length, channel, flow, hasher, n -> {
+				journal.commit(entry, segment, n);
+				if(transfer != null) transfer.accept(n);
+			});
+		} finally {
+			// an interrupted RETR leaves server specific replies pending, so that session is dropped
+			if(reusable) pool.release(session);
+			else pool.invalidate(session);
+		}
+	}
+
+	/*
+	 * @return long: size reported by SIZE, or -1 if the server does not support it
+	 */
+	static long remoteSize(FTPClient session, String remotePath) throws IOException {
+		String reply = session.getSize(remotePath);
+		if(reply == null) return -1;
+		try {
+			return Long.parseLong(reply.trim());
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/*
+	 * @return long: MDTM timestamp as yyyyMMddHHmmss digits, or -1 if not available
+	 */
+	static long remoteModificationTime(FTPClient session, String remotePath) throws IOException {
+		String reply = session.getModificationTime(remotePath);
+		if(reply == null) return -1;
+		String digits = reply.trim().replaceAll("[^0-9]", "");
+		if(digits.isEmpty()) return -1;
+		try {
+			return Long.parseLong(digits.length() > 14 ? digits.substring(0, 14) : digits);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
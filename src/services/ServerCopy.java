@@ -0,0 +1,302 @@
+package services;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.LongConsumer;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.net.ftp.FTP;
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPCmd;
+import org.apache.commons.net.ftp.FTPReply;
+
+/*
+ * Copies a file from one server to another without touching the local disk.
+ * If the profiles of both servers allow it, the copy is done with FXP: the
+ * target is put in passive mode and the source told to send the file there
+ * with PORT, so the bytes never pass through this machine. Servers refuse
+ * that more often than not, and then the file is streamed instead: RETR on
+ * a session of the source fills a BoundedPipe which a session of the target
+ * drains into STOR, so memory use is bounded by the pipe whatever the size
+ * of the file or the speed of either server.
+ */
+public class ServerCopy {
+
+	public enum Method { FXP, PIPE }
+
+	// h1,h2,h3,h4,p1,p2 in a PASV reply
+	private static final Pattern HOST_PORT = Pattern.compile("\\d{1,3}(,\\d{1,3}){5}");
+	// wait before trying again when the target pool has no free session
+	private static final long BUSY_BACKOFF_MS = 20;
+	private static final long BUSY_BACKOFF_MAX_MS = 500;
+
+	public static class Result {
+		public final Method method;
+		public final long bytes;
+		public final long nanos;
+
+		Result(Method method, long bytes, long nanos) {
+			this.method = method;
+			this.bytes = bytes;
+			this.nanos = nanos;
+		}
+
+		@Override
+		public String toString() {
+			double seconds = nanos / 1e9;
+			return (method == Method.FXP ? "FXP " : "") + TransferMetrics.formatBytes(bytes) + String.format(" trong %.1f giây", seconds)
+					+ (seconds > 0 ? ", " + TransferMetrics.formatRate(bytes / seconds) : "");
+		}
+	}
+
+	private final TransferMetrics metrics;
+	private final BandwidthLimiter limiter;
+	private final TransferExecutor readers;
+	private final int pipeSize;
+	private final int chunk;
+	private final boolean directBuffers;
+
+	/*
+	 * @param metrics: receives the progress of every copy, may be null
+	 * @param limiter: paces the streamed copies, may be null
+	 * @param concurrency: copies streamed at the same time
+	 * @param pipeSize: bytes held between the two sessions of a streamed copy
+	 */
+	public ServerCopy(TransferMetrics metrics, BandwidthLimiter limiter, int concurrency, int pipeSize, int chunk, boolean directBuffers) {
+		this.metrics = metrics;
+		this.limiter = limiter;
+		this.pipeSize = pipeSize;
+		this.chunk = chunk;
+		this.directBuffers = directBuffers;
+		readers = new TransferExecutor("ftp-copy-read", Math.max(1, concurrency));
+	}
+
+	/*
+	 * Copies srcPath of the source server to dstPath of the target, replacing it
+	 * @param weight: bandwidth share against the other transfers
+	 */
+	public Result copy(ConnectionPool from, String srcPath, ConnectionPool to, String dstPath, int weight) throws IOException {
+		long start = System.nanoTime();
+		TransferMetrics.Transfer transfer = metrics == null ? null : metrics.begin(dstPath, TransferJournal.Direction.UPLOAD, -1);
+		boolean success = false;
+		try {
+			FTPClient[] pair = borrowBoth(from, to);
+			FTPClient source = pair[0];
+			FTPClient target = pair[1];
+			try {
+				source.setFileType(FTP.BINARY_FILE_TYPE);
+				target.setFileType(FTP.BINARY_FILE_TYPE);
+				long size = SegmentedDownloader.remoteSize(source, srcPath);
+				if(transfer != null) transfer.setExpected(size);
+				if(allowsFxp(source) && allowsFxp(target)) {
+					boolean done = false;
+					try {
+						done = fxp((ChannelFTPClient) source, srcPath, (ChannelFTPClient) target, dstPath);
+					} finally {
+						// after a refused FXP either session may still wait for a connection
+						if(!done) {
+							from.invalidate(source);
+							to.invalidate(target);
+							source = null;
+							target = null;
+						}
+					}
+					if(done) {
+						if(transfer != null && size > 0) transfer.accept(size);
+						release(from, source, to, target);
+						source = null;
+						target = null;
+						success = true;
+						return new Result(Method.FXP, Math.max(0, size), System.nanoTime() - start);
+					}
+					pair = borrowBoth(from, to);
+					source = pair[0];
+					target = pair[1];
+					source.setFileType(FTP.BINARY_FILE_TYPE);
+					target.setFileType(FTP.BINARY_FILE_TYPE);
+				}
+				long sent;
+				try(BandwidthLimiter.Flow flow = limiter == null ? null : limiter.open(dstPath, weight)) {
+					sent = stream((ChannelFTPClient) source, srcPath, (ChannelFTPClient) target, dstPath, flow, transfer);
+				}
+				release(from, source, to, target);
+				source = null;
+				target = null;
+				success = true;
+				return new Result(Method.PIPE, sent, System.nanoTime() - start);
+			} finally {
+				if(source != null) from.invalidate(source);
+				if(target != null) to.invalidate(target);
+			}
+		} finally {
+			if(metrics != null) metrics.finish(transfer, success);
+		}
+	}
+
+	public void shutdown() {
+		readers.shutdown();
+	}
+
+	/*
+	 * Borrows a session of each pool without holding one while waiting for the
+	 * other: copies running the other way, or several copies within one pool,
+	 * would otherwise each hold the session the other waits for
+	 * @return FTPClient[]: the source and the target session
+	 */
+	private static FTPClient[] borrowBoth(ConnectionPool from, ConnectionPool to) throws IOException {
+		for(int attempt = 0; ; attempt++) {
+			FTPClient source = from.borrow(null);
+			FTPClient target;
+			try {
+				target = to.tryBorrow(null);
+			} catch (IOException | RuntimeException e) {
+				from.release(source);
+				throw e;
+			}
+			if(target != null) return new FTPClient[]{source, target};
+			from.release(source);
+			long delay = Math.min(BUSY_BACKOFF_MAX_MS, BUSY_BACKOFF_MS << Math.min(attempt, 10));
+			try {
+				// jittered, so two copies waiting on each other do not retry in step
+				Thread.sleep(delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a session of " + to.getServer());
+			}
+		}
+	}
+
+	/*
+	 * @return boolean: true if the file was copied, false if the servers would not do FXP
+	 */
+	private boolean fxp(ChannelFTPClient source, String srcPath, ChannelFTPClient target, String dstPath) throws IOException {
+		if(target.pasv() != FTPReply.ENTERING_PASSIVE_MODE) return false;
+		Matcher m = HOST_PORT.matcher(target.getReplyString());
+		if(!m.find()) return false;
+		// many servers only accept a PORT to the address of the client itself
+		if(!FTPReply.isPositiveCompletion(source.sendCommand("PORT", m.group()))) return false;
+		target.sendWithoutReply("STOR", dstPath);
+		if(!FTPReply.isPositivePreliminary(source.sendCommand("RETR", srcPath))) return false;
+		if(!FTPReply.isPositivePreliminary(target.getReply())) {
+			throw new IOException("STOR refused for " + dstPath + ": " + target.getReplyString());
+		}
+		// the replies only come when the whole file has moved, however long that takes
+		int sourceTimeout = source.getSoTimeout();
+		int targetTimeout = target.getSoTimeout();
+		source.setSoTimeout(0);
+		target.setSoTimeout(0);
+		boolean sent = source.completePendingCommand();
+		boolean stored = target.completePendingCommand();
+		source.setSoTimeout(sourceTimeout);
+		target.setSoTimeout(targetTimeout);
+		if(!stored) throw new IOException("FXP copy to " + dstPath + " failed: " + target.getReplyString());
+		if(!sent) throw new IOException("FXP copy from " + srcPath + " failed: " + source.getReplyString());
+		return true;
+	}
+
+	/*
+	 * Streams the file through a BoundedPipe: a reader thread fills it from the
+	 * source while this thread drains it into the target
+	 * @return long: bytes copied
+	 */
+	private long stream(ChannelFTPClient source, String srcPath, ChannelFTPClient target, String dstPath,
+			BandwidthLimiter.Flow flow, LongConsumer progress) throws IOException {
+		Socket in = source.openDataConnection(FTPCmd.RETR, srcPath);
+		if(in == null) throw new IOException("RETR refused for " + srcPath + ": " + source.getReplyString());
+		Socket out;
+		try {
+			out = target.openDataConnection(FTPCmd.STOR, dstPath);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		if(out == null) {
+			in.close();
+			throw new IOException("STOR refused for " + dstPath + ": " + target.getReplyString());
+		}
+		BoundedPipe pipe = new BoundedPipe(pipeSize, directBuffers);
+		CompletableFuture<Void> reading = readers.submit(() -> {
+			fill(in, source, pipe);
+			return null;
+		});
+		long sent = 0;
+		try {
+			WritableByteChannel sink = out.getChannel() != null ? out.getChannel() : Channels.newChannel(out.getOutputStream());
+			ByteBuffer buffer = directBuffers ? ByteBuffer.allocateDirect(chunk) : ByteBuffer.allocate(chunk);
+			while(true) {
+				buffer.clear();
+				if(flow != null) buffer.limit(flow.quantum(chunk));
+				int n = pipe.read(buffer);
+				if(n < 0) break;
+				buffer.flip();
+				while(buffer.hasRemaining()) sink.write(buffer);
+				sent += n;
+				if(progress != null) progress.accept(n);
+				target.keepAlive();
+				if(flow != null) flow.consume(n);
+			}
+		} catch (IOException e) {
+			pipe.fail(e);
+			throw e;
+		} finally {
+			pipe.closeSource();
+			out.close();
+		}
+		try {
+			reading.join();
+		} catch (CompletionException e) {
+			if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException("Copy of " + srcPath + " failed", e.getCause());
+		}
+		boolean sentAll = source.completePendingCommand();
+		boolean stored = target.completePendingCommand();
+		if(!sentAll) throw new IOException("RETR of " + srcPath + " failed: " + source.getReplyString());
+		if(!stored) throw new IOException("STOR of " + dstPath + " failed: " + target.getReplyString());
+		return sent;
+	}
+
+	/*
+	 * Reads the source data connection into the pipe until the server closes it
+	 */
+	private void fill(Socket in, ChannelFTPClient source, BoundedPipe pipe) throws IOException {
+		// the stream, unlike the channel, honours the data timeout of the profile
+		try(ReadableByteChannel channel = Channels.newChannel(in.getInputStream())) {
+			ByteBuffer buffer = ByteBuffer.allocate(chunk);
+			while(channel.read(buffer) >= 0) {
+				buffer.flip();
+				while(buffer.hasRemaining()) pipe.write(buffer);
+				buffer.clear();
+				source.keepAlive();
+			}
+			pipe.closeSink();
+		} catch (IOException e) {
+			pipe.fail(e);
+			throw e;
+		} finally {
+			in.close();
+		}
+	}
+
+	/*
+	 * Never over TLS: the data connection between the two servers would need
+	 * one of them to act as the TLS client (SSCN), which few support
+	 */
+	private static boolean allowsFxp(FTPClient session) {
+		ConnectionProfile p = ((ChannelFTPClient) session).getProfile();
+		return p == null || p.fxp && p.security == ConnectionProfile.Security.NONE;
+	}
+
+	private static void release(ConnectionPool from, FTPClient source, ConnectionPool to, FTPClient target) {
+		from.release(source);
+		to.release(target);
+	}
+}
@@ -0,0 +1,132 @@
+package services;
+
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+import classes.Model;
+
+/*
+ * Several server sessions open at once, each one an FtpEngine with its own
+ * browsing session, connection pool, listing cache, queue and index. What
+ * is not tied to one server is shared: the transfer journal, the download
+ * cache and the connection profiles, whose entries are keyed by server
+ * anyway, the bandwidth limits, which are those of the local link, and the
+ * metrics.
+ * Files are copied between two sessions with copy(), see ServerCopy.
+ */
+public class SessionManager {
+
+	final TransferEngine engine;
+	final TransferJournal journal;
+	final DownloadCache cache;
+	final ConnectionProfiles profiles;
+	final BandwidthLimiter limiter;
+	final TransferMetrics metrics;
+	final ServerCopy copier;
+	private final int parallelism;
+	// by name, in the order they were opened
+	private final Map<String, FtpEngine> sessions = new LinkedHashMap<>();
+
+	/*
+	 * @param parallelism: pooled sessions and transfers running at once, per server
+	 */
+	public SessionManager(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+		engine = new TransferEngine(Model.TRANSFER_BUFFER_SIZE, Model.TRANSFER_DIRECT_BUFFERS);
+		journal = new TransferJournal(Paths.get(System.getProperty("user.home"), Model.APP_DIR, Model.JOURNAL_FILE));
+		cache = Model.CACHE_ENABLED ? new DownloadCache(Paths.get(System.getProperty("user.home"), Model.APP_DIR, Model.CACHE_DIR),
+				Model.CACHE_MAX_BYTES) : null;
+		profiles = new ConnectionProfiles(Paths.get(System.getProperty("user.home"), Model.APP_DIR, Model.PROFILES_FILE));
+		limiter = new BandwidthLimiter(Model.BANDWIDTH_GLOBAL_LIMIT, Model.BANDWIDTH_TRANSFER_LIMIT);
+		metrics = new TransferMetrics(engine, Model.METRICS_LOG_SECONDS);
+		metrics.register();
+		copier = new ServerCopy(metrics, limiter, this.parallelism, Model.COPY_PIPE_SIZE, Model.TRANSFER_BUFFER_SIZE,
+				Model.TRANSFER_DIRECT_BUFFERS);
+	}
+
+	/*
+	 * Opens a new session, not connected yet
+	 * @param name: unique among the open sessions, e.g. user@server
+	 * @param listener: receives the events of this session only, may be null
+	 */
+	public synchronized FtpEngine open(String name, FtpListener listener) {
+		if(sessions.containsKey(name)) throw new IllegalArgumentException("Phiên đã mở: " + name);
+		FtpEngine session = new FtpEngine(listener, parallelism, this);
+		sessions.put(name, session);
+		return session;
+	}
+
+	/*
+	 * @return FtpEngine: the session of that name, null if there is none
+	 */
+	public synchronized FtpEngine get(String name) {
+		return sessions.get(name);
+	}
+
+	public synchronized List<String> getNames() {
+		return new ArrayList<>(sessions.keySet());
+	}
+
+	/*
+	 * Logs the session out and drops it
+	 * @return CompletableFuture<Void>: done once the session is closed
+	 */
+	public CompletableFuture<Void> close(String name) {
+		FtpEngine session;
+		synchronized(this) {
+			session = sessions.remove(name);
+		}
+		if(session == null) return CompletableFuture.completedFuture(null);
+		CompletableFuture<Integer> out = session.isConnected() ? session.logout() : CompletableFuture.completedFuture(-1);
+		return out.handle((r, ex) -> {
+			session.shutdown();
+			return null;
+		});
+	}
+
+	/*
+	 * Copies a file from one open session to another without going through the local disk
+	 * @param srcPath: absolute, or relative to the working directory of from
+	 * @param dstPath: absolute, or relative to the working directory of to
+	 */
+	public CompletableFuture<ServerCopy.Result> copy(String from, String srcPath, String to, String dstPath) {
+		FtpEngine source = get(from);
+		FtpEngine target = get(to);
+		if(source == null || target == null) {
+			return CompletableFuture.failedFuture(new IllegalArgumentException("Không có phiên " + (source == null ? from : to)));
+		}
+		return source.copyTo(srcPath, target, dstPath);
+	}
+
+	public BandwidthLimiter getBandwidthLimiter() {
+		return limiter;
+	}
+
+	/*
+	 * @return TransferMetrics: the transfers of every session together
+	 */
+	public TransferMetrics getMetrics() {
+		return metrics;
+	}
+
+	public ConnectionProfile getProfile(String host) {
+		return profiles.get(host);
+	}
+
+	public void saveProfiles() {
+		profiles.save();
+	}
+
+	/*
+	 * Closes every session
+	 */
+	public void shutdown() {
+		for(String name : getNames()) close(name).join();
+		copier.shutdown();
+		metrics.shutdown();
+	}
+}
@@ -0,0 +1,145 @@
+package services;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.apache.commons.net.ftp.FTPConnectionClosedException;
+
+/*
+ * Brings a dropped connection back. An operation run through call() that
+ * fails because the control or data connection went away (closed by the
+ * server, reset, timed out) waits while the supervisor reconnects, with a
+ * growing delay and some jitter between attempts, and is then run again.
+ * Many threads hitting the same outage share one reconnect: the first one
+ * reconnects, the others wait for it and go on with the new connection.
+ */
+public class SessionSupervisor {
+
+	/*
+	 * Opens the connection again, logs in and puts it back in the state it was in
+	 */
+	public interface Reconnect {
+		void reconnect() throws IOException;
+	}
+
+	/*
+	 * Work done on the supervised connection
+	 */
+	public interface Operation<T> {
+		T run() throws IOException;
+	}
+
+	// runs of one operation after a reconnect, before its failure is given to the caller
+	private static final int MAX_REPLAYS = 3;
+
+	private final Reconnect action;
+	private final FtpListener listener;
+	private final int maxAttempts;
+	private final long baseDelayMs;
+	private final long maxDelayMs;
+	// bumped by every successful reconnect, tells a waiting thread someone else already reconnected
+	private long generation;
+	private volatile boolean closed;
+
+	/*
+	 * @param listener: told about every attempt, may be null
+	 * @param maxAttempts: reconnects tried for one outage before giving up
+	 * @param baseDelayMs: delay before the first attempt, doubled on every further one
+	 * @param maxDelayMs: the delay never grows beyond this
+	 */
+	public SessionSupervisor(Reconnect action, FtpListener listener, int maxAttempts, long baseDelayMs, long maxDelayMs) {
+		this.action = action;
+		this.listener = listener != null ? listener : new FtpListener() {};
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.baseDelayMs = Math.max(1, baseDelayMs);
+		this.maxDelayMs = Math.max(this.baseDelayMs, maxDelayMs);
+	}
+
+	/*
+	 * Runs the operation, reconnecting and running it again when the connection drops
+	 * @return T: what the operation returned
+	 */
+	public <T> T call(Operation<T> operation) throws IOException {
+		for(int replay = 0;; replay++) {
+			long seen = generation();
+			try {
+				return operation.run();
+			} catch (IOException e) {
+				if(closed || replay >= MAX_REPLAYS || !isConnectionLoss(e)) throw e;
+				recover(seen, e);
+			}
+		}
+	}
+
+	/*
+	 * Stops reconnecting, a waiting operation fails with its own error
+	 */
+	public void close() {
+		closed = true;
+	}
+
+	private synchronized long generation() {
+		return generation;
+	}
+
+	/*
+	 * @param seen: generation the failed operation ran in; if it moved on, another thread has reconnected
+	 */
+	private synchronized void recover(long seen, IOException cause) throws IOException {
+		if(generation != seen) return;
+		for(int attempt = 0; attempt < maxAttempts; attempt++) {
+			long delay = delay(attempt);
+			listener.message(String.format("Mất kết nối với máy chủ, kết nối lại sau %.1f giây (lần %d/%d)",
+					delay / 1000.0, attempt + 1, maxAttempts));
+			try {
+				Thread.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw cause;
+			}
+			if(closed) throw cause;
+			try {
+				action.reconnect();
+				generation++;
+				listener.message("Đã kết nối lại với máy chủ");
+				return;
+			} catch (IOException e) {
+				// a refused login will not get better by waiting
+				if(!isConnectionLoss(e)) {
+					listener.error("Không thể kết nối lại với máy chủ: " + e.getMessage());
+					throw e;
+				}
+				cause = e;
+			}
+		}
+		listener.error("Không thể kết nối lại với máy chủ sau " + maxAttempts + " lần thử");
+		throw cause;
+	}
+
+	/*
+	 * Exponential backoff with equal jitter: half of the delay is fixed, the other
+	 * half random, so clients dropped together do not all come back at once
+	 */
+	long delay(int attempt) {
+		long d = Math.min(maxDelayMs, baseDelayMs << Math.min(attempt, 20));
+		return d / 2 + ThreadLocalRandom.current().nextLong(d / 2 + 1);
+	}
+
+	/*
+	 * @return boolean: true if the error, or one of its causes, means the connection is gone
+	 * rather than that the server refused the command
+	 */
+	public static boolean isConnectionLoss(Throwable e) {
+		for(Throwable t = e; t != null; t = t.getCause()) {
+			if(t instanceof FTPConnectionClosedException || t instanceof SocketException || t instanceof SocketTimeoutException
+					|| t instanceof EOFException || t instanceof ClosedChannelException)
+				return true;
+			if(t.getCause() == t) break;
+		}
+		return false;
+	}
+}
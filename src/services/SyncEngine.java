@@ -0,0 +1,237 @@
+package services;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.Consumer;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPFile;
+
+/*
+ * Mirrors a local tree to the server (PUSH) or the server tree to disk (PULL),
+ * transferring only files that are new or changed. Both trees are walked one
+ * directory at a time, so only the directory being compared is held in memory.
+ * Transfers run in parallel through the TransferQueue.
+ */
+public class SyncEngine {
+
+	public enum Mode { PUSH, PULL }
+
+	// Jobs are handed to the queue in groups of this size while the walk goes on
+	private static final int JOBS_PER_BATCH = 256;
+	// MLSD times are exact, LIST times usually only have minutes
+	private static final long MLSD_TOLERANCE_MS = 2000;
+	private static final long LIST_TOLERANCE_MS = 60000;
+
+	public static class Action {
+		public final String localPath;
+		public final String remotePath;
+		public final long size;
+		public final String reason;
+
+		Action(String localPath, String remotePath, long size, String reason) {
+			this.localPath = localPath;
+			this.remotePath = remotePath;
+			this.size = size;
+			this.reason = reason;
+		}
+
+		@Override
+		public String toString() {
+			return reason + " " + localPath + " <-> " + remotePath + " (" + size + " B)";
+		}
+	}
+
+	public static class Report {
+		public int directories;
+		public int unchanged;
+		public int transferred;
+		public int failed;
+		public long bytes;
+
+		@Override
+		public String toString() {
+			return directories + " thư mục, " + transferred + " tệp cần chuyển (" + bytes + " B), "
+					+ unchanged + " không đổi, " + failed + " lỗi";
+		}
+	}
+
+	private final ConnectionPool pool;
+	private final TransferQueue queue;
+	private final boolean useChecksums;
+
+	public SyncEngine(ConnectionPool pool, TransferQueue queue, boolean useChecksums) {
+		this.pool = pool;
+		this.queue = queue;
+		this.useChecksums = useChecksums;
+	}
+
+	/*
+	 * @param dryRun: only report what would be transferred
+	 * @param listener: receives every planned transfer, may be null
+	 */
+	public Report sync(Path localRoot, String remoteRoot, Mode mode, boolean dryRun, Consumer<Action> listener) throws IOException {
+		Report report = new Report();
+		List<TransferQueue.Job> jobs = new ArrayList<>();
+		List<CompletableFuture<TransferQueue.Batch>> batches = new ArrayList<>();
+		FTPClient session = pool.borrow(null);
+		try {
+			boolean mlsd = session.hasFeature("MLST");
+			String checksum = useChecksums ? RemoteChecksum.detect(session) : null;
+			Deque<String[]> pending = new ArrayDeque<>();
+			pending.push(new String[]{localRoot.toString(), remoteRoot});
+			while(!pending.isEmpty()) {
+				String[] pair = pending.pop();
+				Path localDir = Path.of(pair[0]);
+				String remoteDir = pair[1];
+				report.directories++;
+
+				Map<String, FTPFile> remote = listRemote(session, remoteDir, mlsd);
+				if(remote == null) {
+					if(mode == Mode.PULL) continue;
+					if(!dryRun) session.makeDirectory(remoteDir);
+					remote = new HashMap<>();
+				}
+				Map<String, Path> local = listLocal(localDir);
+				if(local == null) {
+					if(mode == Mode.PUSH) continue;
+					if(!dryRun) Files.createDirectories(localDir);
+					local = new HashMap<>();
+				}
+
+				if(mode == Mode.PUSH) {
+					for(Map.Entry<String, Path> e : local.entrySet()) {
+						String remotePath = join(remoteDir, e.getKey());
+						if(Files.isDirectory(e.getValue())) {
+							pending.push(new String[]{e.getValue().toString(), remotePath});
+							continue;
+						}
+						FTPFile r = remote.get(e.getKey());
+						String reason = compare(session, e.getValue(), r, remotePath, mode, mlsd, checksum);
+						if(reason == null) {
+							report.unchanged++;
+							continue;
+						}
+						long size = Files.size(e.getValue());
+						plan(new Action(e.getValue().toString(), remotePath, size, reason), report, listener);
+						if(!dryRun) jobs.add(queue.upload(e.getValue().toString(), remotePath, TransferQueue.Priority.LOW));
+					}
+				}else {
+					for(Map.Entry<String, FTPFile> e : remote.entrySet()) {
+						Path localPath = localDir.resolve(e.getKey());
+						String remotePath = join(remoteDir, e.getKey());
+						if(e.getValue().isDirectory()) {
+							pending.push(new String[]{localPath.toString(), remotePath});
+							continue;
+						}
+						String reason = compare(session, local.get(e.getKey()), e.getValue(), remotePath, mode, mlsd, checksum);
+						if(reason == null) {
+							report.unchanged++;
+							continue;
+						}
+						plan(new Action(localPath.toString(), remotePath, e.getValue().getSize(), reason), report, listener);
+						if(!dryRun) jobs.add(queue.download(remotePath, localPath.toString(), TransferQueue.Priority.LOW));
+					}
+				}
+				if(jobs.size() >= JOBS_PER_BATCH) {
+					batches.add(queue.submit(new ArrayList<>(jobs)).future());
+					jobs.clear();
+				}
+			}
+			pool.release(session);
+			session = null;
+		} finally {
+			if(session != null) pool.invalidate(session);
+		}
+		if(!jobs.isEmpty()) batches.add(queue.submit(jobs).future());
+		for(CompletableFuture<TransferQueue.Batch> b : batches) {
+			report.failed += b.join().getFailed().size();
+		}
+		return report;
+	}
+
+	private void plan(Action action, Report report, Consumer<Action> listener) {
+		report.transferred++;
+		report.bytes += Math.max(0, action.size);
+		if(listener != null) listener.accept(action);
+	}
+
+	/*
+	 * @return String: why the file has to be transferred, or null if both sides match
+	 */
+	private String compare(FTPClient session, Path local, FTPFile remote, String remotePath, Mode mode,
+			boolean mlsd, String checksum) throws IOException {
+		if(mode == Mode.PUSH && remote == null) return "NEW";
+		if(mode == Mode.PULL && local == null) return "NEW";
+		long localSize = Files.size(local);
+		if(remote.getSize() >= 0 && remote.getSize() != localSize) return "SIZE";
+
+		if(checksum != null) {
+			RemoteChecksum sum = RemoteChecksum.fetch(session, checksum, remotePath);
+			if(sum != null) return sum.matches(RemoteChecksum.local(local, sum.algorithm)) ? null : "CHECKSUM";
+		}
+
+		Calendar ts = remote.getTimestamp();
+		if(ts == null) return null;
+		long tolerance = mlsd ? MLSD_TOLERANCE_MS : LIST_TOLERANCE_MS;
+		long localTime = Files.getLastModifiedTime(local).toMillis();
+		long remoteTime = ts.getTimeInMillis();
+		if(mode == Mode.PUSH && localTime > remoteTime + tolerance) return "NEWER";
+		if(mode == Mode.PULL && remoteTime > localTime + tolerance) return "NEWER";
+		return null;
+	}
+
+	/*
+	 * @return Map: entries of the remote directory by name, or null if it does not exist
+	 */
+	private Map<String, FTPFile> listRemote(FTPClient session, String dir, boolean mlsd) throws IOException {
+		if(!session.changeWorkingDirectory(dir)) return null;
+		FTPFile[] files;
+		if(mlsd) {
+			files = session.mlistDir();
+		}else {
+			// LIST -a, a dotfile missing here would be planned again on every run
+			session.setListHiddenFiles(true);
+			try {
+				files = session.listFiles();
+			} finally {
+				session.setListHiddenFiles(false);
+			}
+		}
+		Map<String, FTPFile> map = new HashMap<>();
+		if(files == null) return map;
+		for(FTPFile f : files) {
+			if(f == null) continue;
+			String name = f.getName();
+			if(name.equals(".") || name.equals("..") || f.isSymbolicLink()) continue;
+			map.put(name, f);
+		}
+		return map;
+	}
+
+	private Map<String, Path> listLocal(Path dir) throws IOException {
+		if(!Files.isDirectory(dir)) return null;
+		Map<String, Path> map = new HashMap<>();
+		try(DirectoryStream<Path> entries = Files.newDirectoryStream(dir)) {
+			for(Path p : entries) {
+				if(Files.isSymbolicLink(p)) continue;
+				map.put(p.getFileName().toString(), p);
+			}
+		}
+		return map;
+	}
+
+	static String join(String dir, String name) {
+		return dir.endsWith("/") ? dir + name : dir + "/" + name;
+	}
+}
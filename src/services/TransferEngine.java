@@ -0,0 +1,364 @@
+package services;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.net.ftp.FTPClient;
+import org.apache.commons.net.ftp.FTPCmd;
+
+/*
+ * Moves file data between the local disk and an FTP data connection.
+ * With a ChannelFTPClient uploads go through FileChannel.transferTo straight
+ * into the socket channel and downloads are read into a direct buffer, so
+ * the bytes never cross the Java heap. Other clients fall back to streams.
+ * When the session runs in MODE Z the data goes through a Deflater or
+ * Inflater instead, trading CPU for fewer bytes on the wire. Transfers that
+ * are verified are hashed on the side while they stream, see InlineDigest.
+ */
+public class TransferEngine {
+
+	private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+	// each hashed transfer holds a few buffers of this size at most
+	private static final int MAX_DIGEST_BUFFER = 1024 * 1024;
+
+	private final int bufferSize;
+	private final boolean directBuffers;
+
+	private final ThreadLocal<ByteBuffer> buffers;
+	// shared by the hashed transfers, each keeps its updates in order
+	private final ExecutorService hashers;
+
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong cpuNanos = new AtomicLong();
+	// file bytes of MODE Z transfers and the compressed bytes that carried them
+	private final AtomicLong deflatedBytes = new AtomicLong();
+	private final AtomicLong wireBytes = new AtomicLong();
+
+	/*
+	 * @param bufferSize: size of the per-thread copy buffer, unless the session's profile sets one
+	 * @param directBuffers: use off-heap buffers for downloads
+	 */
+	public TransferEngine(int bufferSize, boolean directBuffers) {
+		this.bufferSize = bufferSize;
+		this.directBuffers = directBuffers;
+		buffers = new ThreadLocal<>();
+		hashers = Executors.newFixedThreadPool(Math.max(1, Runtime.getRuntime().availableProcessors() / 2),
+				TransferExecutor.daemonThreads("ftp-hash"));
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	public boolean isDirectBuffers() {
+		return directBuffers;
+	}
+
+	/*
+	 * Sends the local file from offset with STOR, or APPE when append is set
+	 * @return boolean: true if the server confirmed the transfer
+	 */
+	public boolean upload(FTPClient session, String remoteName, FileChannel source, long offset, boolean append,
+			LongConsumer progress) throws IOException {
+		return upload(session, remoteName, source, offset, append, null, null, progress);
+	}
+
+	/*
+	 * Like upload above, at the pace the flow allows and hashing the bytes sent
+	 * @param flow: bandwidth share of the transfer, null for no limit
+	 * @param hasher: receives the file bytes from offset on while they stream, null to skip
+	 * hashing and send with transferTo; complete once this returns
+	 */
+	public boolean upload(FTPClient session, String remoteName, FileChannel source, long offset, boolean append,
+			BandwidthLimiter.Flow flow, RemoteChecksum.Hasher hasher, LongConsumer progress) throws IOException {
+		long cpu = cpuTime();
+		long sent = 0;
+		int chunk = bufferSize(session);
+		InlineDigest digest = digest(hasher, chunk);
+		try {
+			FTPCmd command = append ? FTPCmd.APPE : FTPCmd.STOR;
+			if(session instanceof ChannelFTPClient) {
+				ChannelFTPClient c = (ChannelFTPClient) session;
+				Socket socket = c.openFileConnection(command, remoteName);
+				if(socket == null) return false;
+				Deflater deflater = null;
+				try {
+					if(c.isDeflating()) {
+						deflater = new Deflater(compressionLevel(c));
+						DeflaterOutputStream out = new DeflaterOutputStream(socket.getOutputStream(), deflater, chunk);
+						sent = sendFile(source, offset, Channels.newChannel(out), chunk, c, flow, digest, progress);
+						out.finish();
+						out.flush();
+					}else {
+						WritableByteChannel target = socket.getChannel();
+						if(target == null) target = Channels.newChannel(socket.getOutputStream());
+						sent = sendFile(source, offset, target, chunk, c, flow, digest, progress);
+					}
+				} finally {
+					socket.close();
+					if(deflater != null) {
+						accountDeflated(sent, deflater.getBytesWritten());
+						deflater.end();
+					}
+				}
+			}else {
+				OutputStream out = append ? session.appendFileStream(remoteName) : session.storeFileStream(remoteName);
+				if(out == null) return false;
+				try {
+					sent = sendFile(source, offset, Channels.newChannel(out), chunk, null, flow, digest, progress);
+				} finally {
+					out.close();
+				}
+			}
+			if(digest != null) digest.finish();
+			return session.completePendingCommand();
+		} finally {
+			account(sent, cpu);
+		}
+	}
+
+	/*
+	 * Retrieves remotePath from offset and writes it at the same position of target
+	 * @param length: number of bytes wanted, or -1 to read until the end of the file
+	 * @return boolean: true if the RETR ended cleanly and the session can be reused,
+	 * false if it was cut short after length bytes
+	 */
+	public boolean download(FTPClient session, String remotePath, long offset, long length, FileChannel target,
+			LongConsumer progress) throws IOException {
+		return download(session, remotePath, offset, length, target, null, null, progress);
+	}
+
+	/*
+	 * Like download above, at the pace the flow allows and hashing the bytes received
+	 * @param flow: bandwidth share of the transfer, null for no limit
+	 * @param hasher: receives the bytes written from offset on, null to skip hashing;
+	 * complete once this returns
+	 */
+	public boolean download(FTPClient session, String remotePath, long offset, long length, FileChannel target,
+			BandwidthLimiter.Flow flow, RemoteChecksum.Hasher hasher, LongConsumer progress) throws IOException {
+		return receive(session, remotePath, offset, length, (buffer, position) -> {
+			while(buffer.hasRemaining()) position += target.write(buffer, position);
+		}, flow, hasher, progress);
+	}
+
+	/*
+	 * Like download above, but writes the bytes to target in the order they arrive,
+	 * e.g. into a BoundedPipe for a reader that consumes them meanwhile
+	 */
+	public boolean download(FTPClient session, String remotePath, long offset, long length, WritableByteChannel target,
+			BandwidthLimiter.Flow flow, RemoteChecksum.Hasher hasher, LongConsumer progress) throws IOException {
+		return receive(session, remotePath, offset, length, (buffer, position) -> {
+			while(buffer.hasRemaining()) target.write(buffer);
+		}, flow, hasher, progress);
+	}
+
+	/*
+	 * Where a download puts the bytes it receives
+	 */
+	private interface Sink {
+		// writes the whole buffer, position is the offset of its first byte in the remote file
+		void write(ByteBuffer buffer, long position) throws IOException;
+	}
+
+	private boolean receive(FTPClient session, String remotePath, long offset, long length, Sink target,
+			BandwidthLimiter.Flow flow, RemoteChecksum.Hasher hasher, LongConsumer progress) throws IOException {
+		long cpu = cpuTime();
+		long received = 0;
+		try {
+			if(offset > 0) session.setRestartOffset(offset);
+			ReadableByteChannel source;
+			Socket socket = null;
+			InputStream in = null;
+			ChannelFTPClient control = null;
+			Inflater inflater = null;
+			if(session instanceof ChannelFTPClient) {
+				control = (ChannelFTPClient) session;
+				socket = control.openFileConnection(FTPCmd.RETR, remotePath);
+				if(socket == null) throw new IOException("RETR refused for " + remotePath + ": " + session.getReplyString());
+				if(control.isDeflating()) {
+					inflater = new Inflater();
+					source = Channels.newChannel(new InflaterInputStream(socket.getInputStream(), inflater, bufferSize(session)));
+				}else {
+					source = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(socket.getInputStream());
+				}
+			}else {
+				in = session.retrieveFileStream(remotePath);
+				if(in == null) throw new IOException("RETR refused for " + remotePath + ": " + session.getReplyString());
+				source = Channels.newChannel(in);
+			}
+			boolean atEnd;
+			try {
+				InlineDigest digest = digest(hasher, bufferSize(session));
+				ByteBuffer shared = digest == null ? buffer(bufferSize(session)) : null;
+				long position = offset;
+				long remaining = length < 0 ? Long.MAX_VALUE : length;
+				while(remaining > 0) {
+					ByteBuffer buffer = digest != null ? digest.buffer() : shared;
+					buffer.clear();
+					int step = flow == null ? buffer.capacity() : flow.quantum(buffer.capacity());
+					buffer.limit((int) Math.min(remaining, step));
+					int n;
+					try {
+						n = source.read(buffer);
+					} catch (EOFException e) {
+						// some servers send nothing at all, not even an empty zlib stream, for an empty file
+						if(inflater == null || received > 0) throw e;
+						n = -1;
+					}
+					if(n < 0) {
+						if(length >= 0) throw new IOException("Unexpected end of data in " + remotePath + " at " + position);
+						break;
+					}
+					buffer.flip();
+					if(digest != null) digest.submit(buffer);
+					target.write(buffer, position);
+					position += n;
+					remaining -= n;
+					received += n;
+					if(progress != null) progress.accept(n);
+					if(control != null) control.keepAlive();
+					if(flow != null) flow.consume(n);
+				}
+				if(digest != null) digest.finish();
+				atEnd = length < 0 || isAtEnd(source);
+			} finally {
+				if(socket != null) socket.close();
+				else in.close();
+				if(inflater != null) {
+					accountDeflated(received, inflater.getBytesRead());
+					inflater.end();
+				}
+			}
+			return atEnd && session.completePendingCommand();
+		} finally {
+			account(received, cpu);
+		}
+	}
+
+	/*
+	 * @return long: CPU time spent by transfer threads per GB moved so far, in nanoseconds
+	 */
+	public long getCpuNanosPerGigabyte() {
+		long b = bytes.get();
+		return b == 0 ? 0 : (long) (cpuNanos.get() * (1024.0 * 1024 * 1024 / b));
+	}
+
+	public long getBytesTransferred() {
+		return bytes.get();
+	}
+
+	/*
+	 * @return double: file bytes per byte on the wire over the MODE Z transfers so far, 0 if there were none
+	 */
+	public double getCompressionRatio() {
+		long w = wireBytes.get();
+		return w == 0 ? 0 : (double) deflatedBytes.get() / w;
+	}
+
+	public long getDeflatedBytes() {
+		return deflatedBytes.get();
+	}
+
+	public long getWireBytes() {
+		return wireBytes.get();
+	}
+
+	/*
+	 * @param control: gets the chance to send keep-alives between chunks, may be null
+	 * @param flow: paces the file bytes, before any compression; may be null
+	 */
+	private long sendFile(FileChannel source, long offset, WritableByteChannel target, int chunk, ChannelFTPClient control,
+			BandwidthLimiter.Flow flow, InlineDigest digest, LongConsumer progress) throws IOException {
+		long size = source.size();
+		long position = offset;
+		while(position < size) {
+			int step = flow == null ? chunk : flow.quantum(chunk);
+			long n;
+			if(digest == null) {
+				n = source.transferTo(position, Math.min(step, size - position), target);
+			}else {
+				// the bytes have to be seen to be hashed: read them once, hash and send the same buffer
+				ByteBuffer b = digest.buffer();
+				b.limit((int) Math.min(Math.min(step, b.capacity()), size - position));
+				n = source.read(b, position);
+				if(n > 0) {
+					b.flip();
+					digest.submit(b);
+					while(b.hasRemaining()) target.write(b);
+				}
+			}
+			if(n <= 0) break;
+			position += n;
+			if(progress != null) progress.accept(n);
+			if(control != null) control.keepAlive();
+			if(flow != null) flow.consume(n);
+		}
+		return position - offset;
+	}
+
+	/*
+	 * @return InlineDigest: hashing in the background for hasher, null if there is none
+	 */
+	private InlineDigest digest(RemoteChecksum.Hasher hasher, int chunk) {
+		return hasher == null ? null : new InlineDigest(hasher, hashers, Math.min(chunk, MAX_DIGEST_BUFFER), directBuffers);
+	}
+
+	private static int compressionLevel(ChannelFTPClient session) {
+		ConnectionProfile p = session.getProfile();
+		return p == null ? Deflater.DEFAULT_COMPRESSION : Math.max(Deflater.BEST_SPEED, Math.min(Deflater.BEST_COMPRESSION, p.compressionLevel));
+	}
+
+	private void accountDeflated(long fileBytes, long compressed) {
+		deflatedBytes.addAndGet(fileBytes);
+		wireBytes.addAndGet(compressed);
+	}
+
+	private int bufferSize(FTPClient session) {
+		ConnectionProfile p = session instanceof ChannelFTPClient ? ((ChannelFTPClient) session).getProfile() : null;
+		return p != null && p.bufferSize > 0 ? p.bufferSize : bufferSize;
+	}
+
+	/*
+	 * @return ByteBuffer: the buffer of this thread, replaced when a profile asks for another size
+	 */
+	private ByteBuffer buffer(int size) {
+		ByteBuffer b = buffers.get();
+		if(b == null || b.capacity() != size) {
+			b = directBuffers ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+			buffers.set(b);
+		}
+		return b;
+	}
+
+	private boolean isAtEnd(ReadableByteChannel source) throws IOException {
+		ByteBuffer probe = ByteBuffer.allocate(1);
+		return source.read(probe) < 0;
+	}
+
+	private void account(long n, long cpuStart) {
+		bytes.addAndGet(n);
+		if(cpuStart >= 0) cpuNanos.addAndGet(cpuTime() - cpuStart);
+	}
+
+	private static long cpuTime() {
+		return THREADS.isCurrentThreadCpuTimeSupported() ? THREADS.getCurrentThreadCpuTime() : -1;
+	}
+}
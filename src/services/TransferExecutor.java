@@ -0,0 +1,71 @@
+package services;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class TransferExecutor {
+
+	// Max number of FTP commands waiting to run before new ones are rejected
+	private static final int QUEUE_CAPACITY = 64;
+
+	private final ThreadPoolExecutor executor;
+
+	public TransferExecutor(String name) {
+		this(name, 1);
+	}
+
+	/*
+	 * @param threads: number of workers, 1 for tasks that share a single FTPClient
+	 */
+	public TransferExecutor(String name, int threads) {
+		this(name, threads, QUEUE_CAPACITY);
+	}
+
+	/*
+	 * @param queueCapacity: tasks waiting before new ones are rejected, Integer.MAX_VALUE
+	 * for work whose amount is already bounded by whoever submits it
+	 */
+	public TransferExecutor(String name, int threads, int queueCapacity) {
+		executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+				new LinkedBlockingQueue<>(queueCapacity), daemonThreads(name));
+	}
+
+	/*
+	 * Runs an FTP task in background. Tasks sharing one FTPClient must go to a
+	 * single worker executor since the client is not thread safe.
+	 * @return CompletableFuture: completed with the task result or with the thrown exception
+	 */
+	public <T> CompletableFuture<T> submit(Callable<T> task) {
+		CompletableFuture<T> future = new CompletableFuture<>();
+		try {
+			executor.execute(() -> {
+				try {
+					future.complete(task.call());
+				} catch (Throwable t) {
+					future.completeExceptionally(t);
+				}
+			});
+		} catch (RuntimeException e) {
+			future.completeExceptionally(e);
+		}
+		return future;
+	}
+
+	public void shutdown() {
+		executor.shutdownNow();
+	}
+
+	static ThreadFactory daemonThreads(String name) {
+		AtomicInteger count = new AtomicInteger();
+		return r -> {
+			Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		};
+	}
+}
@@ -0,0 +1,178 @@
+package services;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+/*
+ * On-disk journal of transfers in flight. Each entry remembers which file is
+ * being moved and how many bytes were already written, so an interrupted
+ * transfer can continue with REST/APPE instead of starting again.
+ */
+public class TransferJournal {
+
+	public enum Direction { UPLOAD, DOWNLOAD }
+
+	// Progress is written to disk at most once per this many bytes per entry
+	private static final long FLUSH_EVERY_BYTES = 4L * 1024 * 1024;
+
+	public static class Entry {
+		public final Direction direction;
+		public final String server;
+		public final String remotePath;
+		public final String localPath;
+		public final long size;
+		public final long mtime;
+		// bytes committed for every segment of the transfer, a single one for plain transfers
+		final long[] committed;
+		long unflushed;
+
+		Entry(Direction direction, String server, String remotePath, String localPath, long size, long mtime, int segments) {
+			this.direction = direction;
+			this.server = server;
+			this.remotePath = remotePath;
+			this.localPath = localPath;
+			this.size = size;
+			this.mtime = mtime;
+			this.committed = new long[Math.max(1, segments)];
+		}
+
+		public boolean matches(long size, long mtime) {
+			return this.size == size && this.mtime == mtime;
+		}
+
+		public int getSegments() {
+			return committed.length;
+		}
+
+		public synchronized long getCommitted(int segment) {
+			return committed[segment];
+		}
+
+		public synchronized long getCommitted() {
+			long total = 0;
+			for(long c : committed) total += c;
+			return total;
+		}
+
+		/*
+		 * The whole identity of the file pair; NUL cannot occur in a path, so no two pairs share a key
+		 */
+		String key() {
+			return direction + "\0" + server + "\0" + remotePath + "\0" + localPath;
+		}
+	}
+
+	private final Path file;
+	private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+	public TransferJournal(Path file) {
+		this.file = file;
+		load();
+	}
+
+	/*
+	 * @return Entry: the journaled transfer of this file pair, or null if there is none
+	 */
+	public synchronized Entry find(Direction direction, String server, String remotePath, String localPath) {
+		Entry probe = new Entry(direction, server, remotePath, localPath, 0, 0, 1);
+		return entries.get(probe.key());
+	}
+
+	/*
+	 * Starts journaling a transfer, replacing any previous entry for the same file pair
+	 */
+	public synchronized Entry begin(Direction direction, String server, String remotePath, String localPath, long size, long mtime, int segments) {
+		Entry e = new Entry(direction, server, remotePath, localPath, size, mtime, segments);
+		entries.put(e.key(), e);
+		save();
+		return e;
+	}
+
+	/*
+	 * Records n more bytes written for a segment of the transfer
+	 */
+	public void commit(Entry e, int segment, long n) {
+		boolean flush;
+		synchronized(e) {
+			e.committed[segment] += n;
+			e.unflushed += n;
+			flush = e.unflushed >= FLUSH_EVERY_BYTES;
+			if(flush) e.unflushed = 0;
+		}
+		if(flush) {
+			synchronized(this) {
+				save();
+			}
+		}
+	}
+
+	public synchronized void complete(Entry e) {
+		if(entries.remove(e.key()) != null) save();
+	}
+
+	private void load() {
+		if(!Files.exists(file)) return;
+		Properties props = new Properties();
+		try(Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			props.load(r);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		int count = Integer.parseInt(props.getProperty("count", "0"));
+		for(int i = 0; i < count; i++) {
+			String p = i + ".";
+			try {
+				String[] done = props.getProperty(p + "committed").split(",");
+				Entry e = new Entry(Direction.valueOf(props.getProperty(p + "direction")), props.getProperty(p + "server"),
+						props.getProperty(p + "remote"), props.getProperty(p + "local"),
+						Long.parseLong(props.getProperty(p + "size")), Long.parseLong(props.getProperty(p + "mtime")), done.length);
+				for(int s = 0; s < done.length; s++) e.committed[s] = Long.parseLong(done[s]);
+				entries.put(e.key(), e);
+			} catch (RuntimeException ex) {
+				// skip a damaged entry, the transfer will just start from zero
+			}
+		}
+	}
+
+	private void save() {
+		Properties props = new Properties();
+		int i = 0;
+		for(Entry e : entries.values()) {
+			String p = i++ + ".";
+			StringBuilder done = new StringBuilder();
+			synchronized(e) {
+				for(int s = 0; s < e.committed.length; s++) {
+					if(s > 0) done.append(',');
+					done.append(e.committed[s]);
+				}
+			}
+			props.setProperty(p + "direction", e.direction.name());
+			props.setProperty(p + "server", e.server);
+			props.setProperty(p + "remote", e.remotePath);
+			props.setProperty(p + "local", e.localPath);
+			props.setProperty(p + "size", Long.toString(e.size));
+			props.setProperty(p + "mtime", Long.toString(e.mtime));
+			props.setProperty(p + "committed", done.toString());
+		}
+		props.setProperty("count", Integer.toString(i));
+		try {
+			Files.createDirectories(file.getParent());
+			Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			try(Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				props.store(w, "In-flight FTP transfers");
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,412 @@
+package services;
+
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongConsumer;
+import java.util.logging.Logger;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.net.ProtocolCommandEvent;
+import org.apache.commons.net.ProtocolCommandListener;
+import org.apache.commons.net.io.CopyStreamEvent;
+import org.apache.commons.net.io.CopyStreamListener;
+
+/*
+ * Counts the bytes of every transfer and times the control commands of every
+ * session. Aggregate throughput is sampled once per second; a summary line is
+ * logged periodically and the same numbers are published as an MXBean.
+ */
+public class TransferMetrics implements TransferMetricsMXBean {
+
+	private static final Logger LOG = Logger.getLogger(TransferMetrics.class.getName());
+	private static final String OBJECT_NAME = "services:type=TransferMetrics";
+
+	private static final long SAMPLE_MS = 1000;
+	// weight of the newest sample in the smoothed throughput
+	private static final double SMOOTHING = 0.3;
+
+	/*
+	 * One upload or download. The engine reports every chunk through accept(),
+	 * stream based copies through the CopyStreamListener callbacks.
+	 */
+	public static class Transfer implements LongConsumer, CopyStreamListener {
+		public final String name;
+		public final TransferJournal.Direction direction;
+		private final TransferMetrics metrics;
+		private final long start = System.nanoTime();
+		private final AtomicLong bytes = new AtomicLong();
+		private volatile long expected;
+		private volatile long firstByte;
+		private volatile long end;
+
+		Transfer(TransferMetrics metrics, String name, TransferJournal.Direction direction, long expected) {
+			this.metrics = metrics;
+			this.name = name;
+			this.direction = direction;
+			this.expected = expected;
+		}
+
+		@Override
+		public void accept(long n) {
+			if(firstByte == 0) firstByte = System.nanoTime();
+			bytes.addAndGet(n);
+			metrics.bytes.addAndGet(n);
+		}
+
+		@Override
+		public void bytesTransferred(CopyStreamEvent event) {
+			accept(event.getBytesTransferred());
+		}
+
+		@Override
+		public void bytesTransferred(long totalBytesTransferred, int bytesTransferred, long streamSize) {
+			accept(bytesTransferred);
+		}
+
+		/*
+		 * @param expected: bytes still to move, -1 if unknown
+		 */
+		public void setExpected(long expected) {
+			this.expected = expected;
+		}
+
+		public long getExpected() {
+			return expected;
+		}
+
+		public long getBytes() {
+			return bytes.get();
+		}
+
+		/*
+		 * @return long: millis from the start of the transfer to its first byte, -1 before it
+		 */
+		public long getTimeToFirstByteMillis() {
+			long f = firstByte;
+			return f == 0 ? -1 : TimeUnit.NANOSECONDS.toMillis(f - start);
+		}
+
+		public double getBytesPerSecond() {
+			long f = firstByte;
+			if(f == 0) return 0;
+			long until = end != 0 ? end : System.nanoTime();
+			return until == f ? 0 : bytes.get() * 1e9 / (until - f);
+		}
+	}
+
+	/*
+	 * Progress of everything running at the moment, for the UI
+	 */
+	public static class Progress {
+		public final int active;
+		public final long done;
+		// -1 while one of the running transfers has an unknown size
+		public final long expected;
+		public final double bytesPerSecond;
+		// of the compressed transfers so far, 0 if none
+		public final double compressionRatio;
+
+		Progress(int active, long done, long expected, double bytesPerSecond, double compressionRatio) {
+			this.active = active;
+			this.done = done;
+			this.expected = expected;
+			this.bytesPerSecond = bytesPerSecond;
+			this.compressionRatio = compressionRatio;
+		}
+
+		/*
+		 * @return int: 0..100, or -1 if the total is unknown
+		 */
+		public int getPercent() {
+			if(expected <= 0) return -1;
+			return (int) Math.min(100, done * 100 / expected);
+		}
+
+		/*
+		 * @return long: estimated seconds left, or -1 if it cannot be estimated
+		 */
+		public long getEtaSeconds() {
+			if(expected <= 0 || bytesPerSecond <= 0) return -1;
+			return (long) (Math.max(0, expected - done) / bytesPerSecond);
+		}
+	}
+
+	private static class CommandStats {
+		long count;
+		long totalNanos;
+		long maxNanos;
+
+		synchronized void record(long nanos) {
+			count++;
+			totalNanos += nanos;
+			maxNanos = Math.max(maxNanos, nanos);
+		}
+	}
+
+	/*
+	 * Pairs every command of one session with its first reply; the final reply
+	 * of a data transfer arrives without a command and is not timed
+	 */
+	private class CommandTimer implements ProtocolCommandListener {
+		private volatile String command;
+		private volatile long sent;
+
+		@Override
+		public void protocolCommandSent(ProtocolCommandEvent event) {
+			command = event.getCommand();
+			sent = System.nanoTime();
+		}
+
+		@Override
+		public void protocolReplyReceived(ProtocolCommandEvent event) {
+			String c = command;
+			if(c == null) return;
+			command = null;
+			commands.computeIfAbsent(c.toUpperCase(), k -> new CommandStats()).record(System.nanoTime() - sent);
+		}
+	}
+
+	private final TransferEngine engine;
+	private final long logEveryMs;
+
+	private final Set<Transfer> active = ConcurrentHashMap.newKeySet();
+	private final Map<String, CommandStats> commands = new ConcurrentHashMap<>();
+	private final AtomicLong bytes = new AtomicLong();
+	private final AtomicLong completed = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	// finished transfers, for the average throughput and time to first byte
+	private final AtomicLong finishedBytes = new AtomicLong();
+	private final AtomicLong finishedNanos = new AtomicLong();
+	private final AtomicLong firstByteMillis = new AtomicLong();
+	private final AtomicLong firstByteCount = new AtomicLong();
+
+	private final ScheduledExecutorService sampler;
+	private volatile double throughput;
+	private long lastBytes;
+	private long lastLog;
+	private long bytesAtLastLog;
+
+	/*
+	 * @param engine: source of the CPU cost per GB, may be null
+	 * @param logSeconds: interval of the summary log line while there is activity, 0 disables it
+	 */
+	public TransferMetrics(TransferEngine engine, long logSeconds) {
+		this.engine = engine;
+		this.logEveryMs = TimeUnit.SECONDS.toMillis(logSeconds);
+		lastLog = System.currentTimeMillis();
+		sampler = Executors.newSingleThreadScheduledExecutor(TransferExecutor.daemonThreads("ftp-metrics"));
+		sampler.scheduleAtFixedRate(this::sample, SAMPLE_MS, SAMPLE_MS, TimeUnit.MILLISECONDS);
+	}
+
+	public Transfer begin(String name, TransferJournal.Direction direction, long expected) {
+		Transfer t = new Transfer(this, name, direction, expected);
+		active.add(t);
+		return t;
+	}
+
+	public void finish(Transfer t, boolean success) {
+		if(t == null || !active.remove(t)) return;
+		t.end = System.nanoTime();
+		(success ? completed : failed).incrementAndGet();
+		if(t.firstByte != 0) {
+			finishedBytes.addAndGet(t.getBytes());
+			finishedNanos.addAndGet(t.end - t.firstByte);
+			firstByteMillis.addAndGet(t.getTimeToFirstByteMillis());
+			firstByteCount.incrementAndGet();
+		}
+	}
+
+	public void retry() {
+		retries.incrementAndGet();
+	}
+
+	/*
+	 * @return ProtocolCommandListener: a new timer to add to one session
+	 */
+	public ProtocolCommandListener commandListener() {
+		return new CommandTimer();
+	}
+
+	public Progress getProgress() {
+		long done = 0;
+		long expected = 0;
+		int n = 0;
+		for(Transfer t : active) {
+			n++;
+			done += t.getBytes();
+			long e = t.getExpected();
+			if(e < 0 || expected < 0) expected = -1;
+			else expected += e;
+		}
+		return new Progress(n, done, expected, n == 0 ? 0 : throughput, getCompressionRatio());
+	}
+
+	/*
+	 * Publishes the metrics on the platform MBean server, replacing an earlier instance
+	 */
+	public void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if(server.isRegistered(name)) server.unregisterMBean(name);
+			server.registerMBean(this, name);
+		} catch (JMException e) {
+			LOG.warning("Transfer metrics not published over JMX: " + e);
+		}
+	}
+
+	public void shutdown() {
+		sampler.shutdownNow();
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if(server.isRegistered(name)) server.unregisterMBean(name);
+		} catch (JMException e) {
+			// not registered
+		}
+	}
+
+	@Override
+	public long getBytesTransferred() {
+		return bytes.get();
+	}
+
+	@Override
+	public int getActiveTransfers() {
+		return active.size();
+	}
+
+	@Override
+	public long getCompletedTransfers() {
+		return completed.get();
+	}
+
+	@Override
+	public long getFailedTransfers() {
+		return failed.get();
+	}
+
+	@Override
+	public long getRetries() {
+		return retries.get();
+	}
+
+	@Override
+	public double getThroughputBytesPerSecond() {
+		return throughput;
+	}
+
+	@Override
+	public double getAverageTransferBytesPerSecond() {
+		long nanos = finishedNanos.get();
+		return nanos == 0 ? 0 : finishedBytes.get() * 1e9 / nanos;
+	}
+
+	@Override
+	public double getAverageTimeToFirstByteMillis() {
+		long n = firstByteCount.get();
+		return n == 0 ? 0 : (double) firstByteMillis.get() / n;
+	}
+
+	@Override
+	public Map<String, Double> getCommandLatencyMillis() {
+		Map<String, Double> m = new TreeMap<>();
+		commands.forEach((c, s) -> {
+			synchronized(s) {
+				m.put(c, s.count == 0 ? 0 : s.totalNanos / 1e6 / s.count);
+			}
+		});
+		return m;
+	}
+
+	@Override
+	public Map<String, Long> getCommandCounts() {
+		Map<String, Long> m = new TreeMap<>();
+		commands.forEach((c, s) -> {
+			synchronized(s) {
+				m.put(c, s.count);
+			}
+		});
+		return m;
+	}
+
+	@Override
+	public long getCpuNanosPerGigabyte() {
+		return engine == null ? 0 : engine.getCpuNanosPerGigabyte();
+	}
+
+	@Override
+	public double getCompressionRatio() {
+		return engine == null ? 0 : engine.getCompressionRatio();
+	}
+
+	@Override
+	public long getCompressedWireBytes() {
+		return engine == null ? 0 : engine.getWireBytes();
+	}
+
+	@Override
+	public String getSnapshot() {
+		StringBuilder sb = new StringBuilder("transfers");
+		sb.append(" active=").append(getActiveTransfers());
+		sb.append(" completed=").append(getCompletedTransfers());
+		sb.append(" failed=").append(getFailedTransfers());
+		sb.append(" retries=").append(getRetries());
+		sb.append(" bytes=").append(getBytesTransferred());
+		sb.append(" rate=").append(formatRate(getThroughputBytesPerSecond()));
+		sb.append(" avgRate=").append(formatRate(getAverageTransferBytesPerSecond()));
+		sb.append(String.format(" ttfb=%.1fms", getAverageTimeToFirstByteMillis()));
+		sb.append(" cpuPerGB=").append(TimeUnit.NANOSECONDS.toMillis(getCpuNanosPerGigabyte())).append("ms");
+		if(getCompressedWireBytes() > 0) sb.append(String.format(" zratio=%.2f zwire=%d", getCompressionRatio(), getCompressedWireBytes()));
+		commands.forEach((c, s) -> {
+			synchronized(s) {
+				if(s.count > 0) sb.append(String.format(" %s=%.1f/%.1fms(%d)", c, s.totalNanos / 1e6 / s.count, s.maxNanos / 1e6, s.count));
+			}
+		});
+		return sb.toString();
+	}
+
+	/*
+	 * @return String: bytes per second in a readable unit, like "12.3 MB/s"
+	 */
+	public static String formatRate(double bytesPerSecond) {
+		return formatBytes((long) bytesPerSecond) + "/s";
+	}
+
+	public static String formatBytes(long n) {
+		if(n < 1024) return n + " B";
+		String units = "KMGTPE";
+		double v = n;
+		int u = -1;
+		while(v >= 1024 && u < units.length() - 1) {
+			v /= 1024;
+			u++;
+		}
+		return String.format("%.1f %sB", v, units.charAt(u));
+	}
+
+	private synchronized void sample() {
+		long b = bytes.get();
+		double rate = (b - lastBytes) * 1000.0 / SAMPLE_MS;
+		lastBytes = b;
+		throughput = active.isEmpty() && rate == 0 ? 0 : SMOOTHING * rate + (1 - SMOOTHING) * throughput;
+		long now = System.currentTimeMillis();
+		if(logEveryMs > 0 && now - lastLog >= logEveryMs) {
+			// quiet while nothing moves
+			if(b != bytesAtLastLog || !active.isEmpty()) LOG.info(getSnapshot());
+			bytesAtLastLog = b;
+			lastLog = now;
+		}
+	}
+}
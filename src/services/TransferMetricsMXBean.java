@@ -0,0 +1,55 @@
+package services;
+
+import java.util.Map;
+
+/*
+ * Snapshot of the transfer metrics published over JMX as services:type=TransferMetrics
+ */
+public interface TransferMetricsMXBean {
+
+	long getBytesTransferred();
+
+	int getActiveTransfers();
+
+	long getCompletedTransfers();
+
+	long getFailedTransfers();
+
+	long getRetries();
+
+	/*
+	 * @return double: bytes per second over the last few seconds, all transfers together
+	 */
+	double getThroughputBytesPerSecond();
+
+	/*
+	 * @return double: bytes per second of the finished transfers, from first to last byte
+	 */
+	double getAverageTransferBytesPerSecond();
+
+	double getAverageTimeToFirstByteMillis();
+
+	/*
+	 * @return Map<String, Double>: average reply time of every control command sent, in millis
+	 */
+	Map<String, Double> getCommandLatencyMillis();
+
+	Map<String, Long> getCommandCounts();
+
+	long getCpuNanosPerGigabyte();
+
+	/*
+	 * @return double: file bytes per byte sent over the wire by MODE Z transfers, 0 if none ran
+	 */
+	double getCompressionRatio();
+
+	/*
+	 * @return long: bytes on the wire of the MODE Z transfers
+	 */
+	long getCompressedWireBytes();
+
+	/*
+	 * @return String: the one-line summary also written to the log
+	 */
+	String getSnapshot();
+}
@@ -0,0 +1,265 @@
+package services;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Persistent, prioritized queue of transfers run by a fixed number of workers.
+ * Failed jobs are retried with a growing delay. Jobs are removed from the
+ * queue file only once they finish, so after a restart they run again and
+ * the TransferJournal lets them continue from where they stopped.
+ */
+public class TransferQueue {
+
+	public enum Priority { HIGH, NORMAL, LOW }
+
+	private static final long SAVE_DELAY_MS = 1000;
+
+	/*
+	 * Runs one job
+	 * @return boolean: true if the transfer completed
+	 */
+	public interface JobRunner {
+		boolean run(Job job) throws IOException;
+	}
+
+	public static class Job {
+		public final TransferJournal.Direction direction;
+		public final String localPath;
+		public final String remotePath;
+		public final Priority priority;
+		final long seq;
+		int attempts;
+		Batch batch;
+
+		Job(TransferJournal.Direction direction, String localPath, String remotePath, Priority priority, long seq) {
+			this.direction = direction;
+			this.localPath = localPath;
+			this.remotePath = remotePath;
+			this.priority = priority;
+			this.seq = seq;
+		}
+	}
+
+	/*
+	 * Result of a group of jobs submitted together
+	 */
+	public static class Batch {
+		private final AtomicInteger remaining;
+		private final List<Job> failed = new ArrayList<>();
+		private final CompletableFuture<Batch> done = new CompletableFuture<>();
+		private final int size;
+
+		Batch(int size) {
+			this.size = size;
+			remaining = new AtomicInteger(size);
+			if(size == 0) done.complete(this);
+		}
+
+		public int getSize() {
+			return size;
+		}
+
+		public synchronized List<Job> getFailed() {
+			return new ArrayList<>(failed);
+		}
+
+		public CompletableFuture<Batch> future() {
+			return done;
+		}
+
+		void finished(Job job, boolean success) {
+			if(!success) {
+				synchronized(this) {
+					failed.add(job);
+				}
+			}
+			if(remaining.decrementAndGet() == 0) done.complete(this);
+		}
+	}
+
+	private final Path file;
+	private final JobRunner runner;
+	private final int maxAttempts;
+	private final long retryDelayMs;
+
+	private final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<>(64,
+			(a, b) -> a.priority != b.priority ? a.priority.compareTo(b.priority) : Long.compare(a.seq, b.seq));
+	// every job not finished yet, queued, waiting for a retry or running
+	private final Map<Long, Job> unfinished = new LinkedHashMap<>();
+	private final AtomicLong seq = new AtomicLong();
+	private final ScheduledExecutorService retries;
+	private final List<Thread> workers = new ArrayList<>();
+	private volatile boolean stopped;
+	private boolean saveScheduled;
+
+	/*
+	 * @param concurrency: number of jobs running at the same time
+	 * @param maxAttempts: a job is given up after failing this many times
+	 * @param retryDelayMs: delay before the first retry, doubled on every further one
+	 */
+	public TransferQueue(Path file, JobRunner runner, int concurrency, int maxAttempts, long retryDelayMs) {
+		this.file = file;
+		this.runner = runner;
+		this.maxAttempts = Math.max(1, maxAttempts);
+		this.retryDelayMs = retryDelayMs;
+		retries = Executors.newSingleThreadScheduledExecutor(TransferExecutor.daemonThreads("ftp-retry"));
+		load();
+		ThreadFactory threads = TransferExecutor.daemonThreads("ftp-queue");
+		for(int i = 0; i < Math.max(1, concurrency); i++) {
+			Thread t = threads.newThread(this::work);
+			workers.add(t);
+			t.start();
+		}
+	}
+
+	public Job upload(String localPath, String remotePath, Priority priority) {
+		return new Job(TransferJournal.Direction.UPLOAD, localPath, remotePath, priority, seq.incrementAndGet());
+	}
+
+	public Job download(String remotePath, String localPath, Priority priority) {
+		return new Job(TransferJournal.Direction.DOWNLOAD, localPath, remotePath, priority, seq.incrementAndGet());
+	}
+
+	/*
+	 * Queues the jobs as one batch
+	 * @return Batch: completes once every job has succeeded or run out of attempts
+	 */
+	public Batch submit(List<Job> jobs) {
+		Batch batch = new Batch(jobs.size());
+		synchronized(this) {
+			for(Job j : jobs) {
+				j.batch = batch;
+				unfinished.put(j.seq, j);
+			}
+			save();
+		}
+		queue.addAll(jobs);
+		return batch;
+	}
+
+	public synchronized int getPending() {
+		return unfinished.size();
+	}
+
+	public void shutdown() {
+		stopped = true;
+		retries.shutdownNow();
+		for(Thread t : workers) t.interrupt();
+		synchronized(this) {
+			if(saveScheduled) save();
+		}
+	}
+
+	private void work() {
+		while(!stopped) {
+			Job job;
+			try {
+				job = queue.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+			boolean success;
+			try {
+				success = runner.run(job);
+			} catch (IOException | RuntimeException e) {
+				success = false;
+			}
+			if(stopped) return;
+			if(success) {
+				finish(job, true);
+			}else if(++job.attempts < maxAttempts) {
+				long delay = retryDelayMs << Math.min(job.attempts - 1, 10);
+				retries.schedule(() -> queue.add(job), delay, TimeUnit.MILLISECONDS);
+			}else {
+				finish(job, false);
+			}
+		}
+	}
+
+	private void finish(Job job, boolean success) {
+		synchronized(this) {
+			unfinished.remove(job.seq);
+			scheduleSave();
+		}
+		if(job.batch != null) job.batch.finished(job, success);
+	}
+
+	/*
+	 * Completions of a big batch are written together instead of one file rewrite per job
+	 */
+	private synchronized void scheduleSave() {
+		if(saveScheduled) return;
+		saveScheduled = true;
+		retries.schedule(() -> {
+			synchronized(this) {
+				saveScheduled = false;
+				save();
+			}
+		}, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+	}
+
+	private void load() {
+		if(!Files.exists(file)) return;
+		Properties props = new Properties();
+		try(Reader r = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+			props.load(r);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
+		int count = Integer.parseInt(props.getProperty("count", "0"));
+		for(int i = 0; i < count; i++) {
+			String p = i + ".";
+			try {
+				Job j = new Job(TransferJournal.Direction.valueOf(props.getProperty(p + "direction")), props.getProperty(p + "local"),
+						props.getProperty(p + "remote"), Priority.valueOf(props.getProperty(p + "priority")), seq.incrementAndGet());
+				unfinished.put(j.seq, j);
+				queue.add(j);
+			} catch (RuntimeException ex) {
+				// skip a damaged job
+			}
+		}
+	}
+
+	private void save() {
+		Properties props = new Properties();
+		int i = 0;
+		for(Job j : unfinished.values()) {
+			String p = i++ + ".";
+			props.setProperty(p + "direction", j.direction.name());
+			props.setProperty(p + "local", j.localPath);
+			props.setProperty(p + "remote", j.remotePath);
+			props.setProperty(p + "priority", j.priority.name());
+		}
+		props.setProperty("count", Integer.toString(i));
+		try {
+			Files.createDirectories(file.getParent());
+			Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+			try(Writer w = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+				props.store(w, "Queued FTP transfers");
+			}
+			Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}